@@ -2,23 +2,75 @@ package no.ntnu.datakomm.chat;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Label;
 import javafx.scene.image.Image;
+import javafx.scene.layout.StackPane;
 import javafx.stage.Stage;
 
 /**
  * Class representing the main Graphical User Interface (GUI). JavaFX interface.
+ *
+ * To start faster, the window is shown right away with a placeholder, and the
+ * layout is loaded on a background thread. When started with a server
+ * (--host=... --port=... and optionally --user=...), the connection and the
+ * login start before the window, in parallel with the toolkit and the layout.
+ * The startup times are printed, and appended to a CSV file when the
+ * chat.startup.log property is set. With -Dchat.startup.exit=true the
+ * application exits once started, for measurements and to record the classes
+ * of the class-data sharing archive (see the appcds profile in pom.xml). With
+ * -Dchat.transcript.dir=directory the received messages are stored in a
+ * searchable TranscriptStore in that directory.
  */
 public class App extends Application {
+    private final StartupTimer startup = new StartupTimer();
+
+    // The client connecting in the background, null when no server was given
+    private TCPClient tcpClient;
+    private CompletableFuture<Boolean> connecting;
 
     public static void main(String[] args) {
         launch(args);
     }
 
+    /**
+     * Called by JavaFX on the launcher thread, before start(): starts the
+     * connection, if a server was given.
+     */
+    @Override
+    public void init() {
+        startup.mark("toolkit");
+        startup.expect("first frame", "ui ready");
+        Map<String, String> options = getParameters().getNamed();
+        String host = options.get("host");
+        if (host == null) {
+            return;
+        }
+        int port = Integer.parseInt(options.getOrDefault("port", "1300"));
+        String user = options.get("user");
+        startup.expect(user != null ? "login" : "connected");
+        tcpClient = new TCPClient();
+        connecting = CompletableFuture.supplyAsync(() -> {
+            boolean connected = tcpClient.connect(host, port);
+            if (connected) {
+                startupMark("connected");
+                if (user != null) {
+                    // The answer waits in the socket until the GUI listens
+                    tcpClient.tryLogin(user);
+                }
+            }
+            return connected;
+        });
+    }
+
     /**
      * This method is called automatically by JavaFX when the application is
      * launched
@@ -27,20 +79,81 @@ public class App extends Application {
      */
     @Override
     public void start(Stage primaryStage) {
-        URL r = getClass().getClassLoader().getResource("layout.fxml");
-        Parent root = null;
-        try {
-            root = FXMLLoader.load(r);
-        } catch (IOException e) {
-            System.out.println("Error while loading FXML");
-            return;
-        }
-        Scene scene = new Scene(root, 600, 400);
+        Scene scene = new Scene(new StackPane(new Label("Loading...")), 600, 400);
         scene.getStylesheets().add("styles/style.css");
         primaryStage.setTitle("NTNU Ålesund - ID203012 - ChatClient");
         primaryStage.setScene(scene);
-        Image anotherIcon = new Image("styles/ntnu.png");
-        primaryStage.getIcons().add(anotherIcon);
+        // Decoded in the background, shown when ready
+        primaryStage.getIcons().add(new Image("styles/ntnu.png", true));
         primaryStage.show();
+        markFirstFrame();
+
+        Thread loader = new Thread(() -> {
+            URL r = getClass().getClassLoader().getResource("layout.fxml");
+            FXMLLoader fxmlLoader = new FXMLLoader(r);
+            try {
+                // Nodes may be created on another thread, as long as they are not shown
+                Parent root = fxmlLoader.load();
+                Platform.runLater(() -> showLayout(scene, root, fxmlLoader.getController()));
+            } catch (IOException e) {
+                System.out.println("Error while loading FXML");
+            }
+        }, "fxml-loader");
+        loader.start();
+    }
+
+    /**
+     * Replace the placeholder with the layout, and give the background
+     * connection to the controller. Called on the GUI thread.
+     */
+    private void showLayout(Scene scene, Parent root, GUIController controller) {
+        scene.setRoot(root);
+        controller.setStartupTimer(this::startupMark);
+        if (connecting != null) {
+            String host = getParameters().getNamed().get("host");
+            controller.useConnection(tcpClient, connecting, host,
+                    getParameters().getNamed().getOrDefault("port", "1300"));
+        }
+        startupMark("ui ready");
+    }
+
+    /**
+     * Mark the first frame shown: an animation timer is called at the
+     * beginning of every frame, so its second call follows the first frame.
+     */
+    private void markFirstFrame() {
+        new AnimationTimer() {
+            private int frames = 0;
+
+            @Override
+            public void handle(long now) {
+                if (++frames == 2) {
+                    stop();
+                    startupMark("first frame");
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Mark a phase of the startup, and report the times when it is the last
+     * one. Called on any thread.
+     *
+     * @param phase Name of the phase
+     */
+    private void startupMark(String phase) {
+        if (startup.mark(phase)) {
+            System.out.println(startup.report());
+            String log = System.getProperty("chat.startup.log");
+            if (log != null) {
+                startup.appendTo(log);
+            }
+            if (Boolean.getBoolean("chat.startup.exit")) {
+                if (tcpClient != null) {
+                    tcpClient.disconnect();
+                }
+                Platform.exit();
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,83 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+
+/**
+ * An event received from the chat server, as published by
+ * TCPClient.getEventPublisher(). The same events as the ChatListener
+ * callbacks, as objects.
+ */
+public class ChatEvent {
+    /**
+     * The kind of event, one per ChatListener callback
+     */
+    public enum Type {
+        LOGIN_OK, LOGIN_ERROR, MESSAGE, MESSAGE_ERROR, USERS, SUPPORTED, COMMAND_ERROR
+    }
+
+    private final Type type;
+    private final TextMessage message;
+    private final String[] words;
+    private final String error;
+
+    private ChatEvent(Type type, TextMessage message, String[] words, String error) {
+        this.type = type;
+        this.message = message;
+        this.words = words;
+        this.error = error;
+    }
+
+    static ChatEvent login(boolean success, String errMsg) {
+        return new ChatEvent(success ? Type.LOGIN_OK : Type.LOGIN_ERROR, null, null, errMsg);
+    }
+
+    static ChatEvent message(TextMessage message) {
+        return new ChatEvent(Type.MESSAGE, message, null, null);
+    }
+
+    static ChatEvent words(Type type, String[] words) {
+        return new ChatEvent(type, null, words, null);
+    }
+
+    static ChatEvent error(Type type, String errMsg) {
+        return new ChatEvent(type, null, null, errMsg);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The received message for MESSAGE, null otherwise
+     */
+    public TextMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The users for USERS, the commands for SUPPORTED, null otherwise
+     */
+    public String[] getWords() {
+        return words;
+    }
+
+    /**
+     * @return The error message for LOGIN_ERROR, MESSAGE_ERROR and
+     * COMMAND_ERROR, null otherwise
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        if (message != null) {
+            return type + " " + message;
+        } else if (words != null) {
+            return type + " " + Arrays.toString(words);
+        } else if (error != null) {
+            return type + " " + error;
+        }
+        return type.toString();
+    }
+}
@@ -0,0 +1,208 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes the events of a TCPClient to subscribers, with backpressure: the
+ * client does not read the next command from the socket until every
+ * subscriber has requested more events (see awaitDemand()). Meanwhile the
+ * data waits in the socket buffers, and once they are full, TCP flow control
+ * makes the server wait too. Nothing is buffered in between, except for one
+ * event for a subscriber which subscribes while a command is being read.
+ *
+ * The events are sent on the listening thread of the client. A disconnect
+ * completes the subscriptions; subscribe again after reconnecting. Without
+ * subscribers, the client reads as fast as it can, as without a publisher.
+ * Note that the ChatListener callbacks are slowed down together with the
+ * subscribers: they are called for the same commands.
+ */
+class ChatEventPublisher implements ChatFlow.Publisher<ChatEvent>, ChatListener {
+    private final List<EventSubscription> subscriptions = new ArrayList<>();
+
+    /**
+     * The subscription of one subscriber. The fields are guarded by the
+     * publisher.
+     */
+    private class EventSubscription implements ChatFlow.Subscription {
+        private final ChatFlow.Subscriber<? super ChatEvent> subscriber;
+        private long demand = 0;
+        private boolean cancelled = false;
+        // Received while there was no demand, sent when there is
+        private ChatEvent pending;
+
+        EventSubscription(ChatFlow.Subscriber<? super ChatEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested " + n + " events, must be positive"));
+                return;
+            }
+            synchronized (ChatEventPublisher.this) {
+                if (!cancelled) {
+                    // Long.MAX_VALUE means unbounded
+                    demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+                    ChatEventPublisher.this.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (ChatEventPublisher.this) {
+                cancelled = true;
+                subscriptions.remove(this);
+                ChatEventPublisher.this.notifyAll();
+            }
+        }
+
+        /**
+         * Take one event of the demand. Call with the publisher locked.
+         *
+         * @return True if there was demand
+         */
+        private boolean take() {
+            if (cancelled || demand == 0) {
+                return false;
+            }
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void subscribe(ChatFlow.Subscriber<? super ChatEvent> subscriber) {
+        EventSubscription subscription = new EventSubscription(subscriber);
+        synchronized (this) {
+            subscriptions.add(subscription);
+        }
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Wait until every subscriber has requested at least one event, so that
+     * the next command can be read. Called by the listening thread before
+     * reading from the socket. Returns at once without subscribers.
+     */
+    void awaitDemand() {
+        while (true) {
+            List<EventSubscription> ready = new ArrayList<>();
+            List<ChatEvent> events = new ArrayList<>();
+            synchronized (this) {
+                try {
+                    while (!allHaveDemand()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (EventSubscription subscription : subscriptions) {
+                    if (subscription.pending != null) {
+                        ready.add(subscription);
+                        events.add(subscription.pending);
+                        subscription.pending = null;
+                    }
+                }
+            }
+            if (ready.isEmpty()) {
+                return;
+            }
+            // Send the pending events, then check the demand again
+            for (int i = 0; i < ready.size(); i++) {
+                deliver(ready.get(i), events.get(i));
+            }
+        }
+    }
+
+    private boolean allHaveDemand() {
+        for (EventSubscription subscription : subscriptions) {
+            if (subscription.demand == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send an event to every subscriber. Called on the listening thread.
+     */
+    private void publish(ChatEvent event) {
+        List<EventSubscription> targets;
+        synchronized (this) {
+            if (subscriptions.isEmpty()) {
+                return;
+            }
+            targets = new ArrayList<>(subscriptions);
+        }
+        for (EventSubscription subscription : targets) {
+            deliver(subscription, event);
+        }
+    }
+
+    private void deliver(EventSubscription subscription, ChatEvent event) {
+        boolean send;
+        synchronized (this) {
+            send = subscription.take();
+            if (!send && !subscription.cancelled) {
+                // Subscribed after awaitDemand(), keep the event for the next call
+                subscription.pending = event;
+            }
+        }
+        if (send) {
+            subscription.subscriber.onNext(event);
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+        List<EventSubscription> completed;
+        synchronized (this) {
+            completed = new ArrayList<>(subscriptions);
+            for (EventSubscription subscription : completed) {
+                subscription.cancelled = true;
+            }
+            subscriptions.clear();
+            notifyAll();
+        }
+        for (EventSubscription subscription : completed) {
+            subscription.subscriber.onComplete();
+        }
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        publish(ChatEvent.login(success, errMsg));
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        publish(ChatEvent.message(message));
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        publish(ChatEvent.error(ChatEvent.Type.MESSAGE_ERROR, errMsg));
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        publish(ChatEvent.words(ChatEvent.Type.USERS, usernames));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        publish(ChatEvent.words(ChatEvent.Type.SUPPORTED, commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        publish(ChatEvent.error(ChatEvent.Type.COMMAND_ERROR, errMsg));
+    }
+}
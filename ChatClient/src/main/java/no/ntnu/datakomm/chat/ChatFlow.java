@@ -0,0 +1,79 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Publisher and subscriber interfaces for streams with backpressure. They have
+ * the same methods and rules as java.util.concurrent.Flow (Reactive Streams),
+ * which is not available in Java 8; on Java 9 and later, a ChatFlow.Publisher
+ * can be wrapped as a Flow.Publisher by forwarding each call.
+ */
+public final class ChatFlow {
+
+    private ChatFlow() {
+    }
+
+    /**
+     * A producer of items, sent to subscribers as they request them.
+     *
+     * @param <T> Type of the items
+     */
+    public interface Publisher<T> {
+        /**
+         * Add a subscriber. Its onSubscribe() is called first, then onNext()
+         * for every requested item, until onComplete() or onError().
+         *
+         * @param subscriber The subscriber
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     *
+     * @param <T> Type of the items
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called before any other method, with the subscription used to request
+         * items. No item is sent before the first request.
+         *
+         * @param subscription The subscription
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item, never more times than requested.
+         *
+         * @param item The item
+         */
+        void onNext(T item);
+
+        /**
+         * Called when the stream failed. No other method is called after it.
+         *
+         * @param throwable The cause
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called when the stream has ended. No other method is called after it.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and one subscriber.
+     */
+    public interface Subscription {
+        /**
+         * Ask for more items. The requests add up.
+         *
+         * @param n Number of items, must be positive
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items. Items may still arrive for a short while.
+         */
+        void cancel();
+    }
+}
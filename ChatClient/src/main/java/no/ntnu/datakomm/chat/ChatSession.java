@@ -0,0 +1,350 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One chat session (one connection, one login) served by a ChatSessionPool. It
+ * offers the same commands and generates the same ChatListener events as
+ * TCPClient, but it does not own a thread: the socket is non-blocking and all
+ * the I/O is done by one of the selector threads of the pool. The listeners are
+ * notified on that selector thread, so they must return quickly - a slow
+ * listener delays all the other sessions served by the same thread.
+ *
+ * Sessions are created with ChatSessionPool.openSession(). Commands sent before
+ * the connection is established are queued and sent once it is. When the pool
+ * has a TlsTransport the connection is encrypted, and the commands wait for the
+ * TLS handshake too.
+ */
+public class ChatSession {
+    // Size of the buffer the socket is read into
+    private static final int READ_BUFFER_SIZE = 1024;
+    // Initial size of the buffer where one incoming line is collected
+    private static final int LINE_BUFFER_SIZE = 128;
+
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    // TLS on the channel, null for a plain connection
+    private final TlsChannel tls;
+    private final ResponseDispatcher dispatcher = new ResponseDispatcher();
+    private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // The following fields are used on the selector thread only
+    private SelectionKey key;
+    private final ByteBuffer readBuffer;
+    private byte[] lineBuffer = new byte[LINE_BUFFER_SIZE];
+    private int lineLength = 0;
+
+    private volatile boolean connected = false;
+    private volatile String lastError = null;
+
+    /**
+     * Start connecting to a chat server. Called by ChatSessionPool.
+     *
+     * @param loop      The selector thread which will serve this session
+     * @param address   Address of the chat server
+     * @param transport TLS settings, null for a plain connection
+     * @param listener  Listener registered before connecting, null for none
+     * @throws IOException When the socket can't be opened
+     */
+    ChatSession(SelectorLoop loop, InetSocketAddress address, TlsTransport transport,
+            ChatListener listener) throws IOException {
+        this.loop = loop;
+        if (listener != null) {
+            dispatcher.addListener(listener);
+        }
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if (transport != null) {
+            tls = new TlsChannel(transport.newClientEngine(address.getHostString(), address.getPort()),
+                    channel, transport);
+            // Decrypted records are read into this buffer whole
+            readBuffer = ByteBuffer.allocate(tls.applicationBufferSize());
+        } else {
+            tls = null;
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        channel.connect(address);
+        loop.execute(this::register);
+    }
+
+    /**
+     * Register the channel in the selector. Runs on the selector thread.
+     */
+    private void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+        } catch (ClosedChannelException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * @return true if the connection is established and not closed yet
+     */
+    public boolean isConnectionActive() {
+        return connected && !closed.get();
+    }
+
+    /**
+     * Close the connection and notify the listeners about it. Safe to call
+     * several times and from any thread, the listeners are notified only once.
+     */
+    public void disconnect() {
+        if (closed.compareAndSet(false, true)) {
+            connected = false;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("ERROR: An I/O error occured when closing this socket");
+            }
+            outgoing.clear();
+            dispatcher.onDisconnect();
+        }
+    }
+
+    /**
+     * Send a public message to all the recipients.
+     *
+     * @param message Message to send
+     * @return true if message was queued for sending, false on error
+     */
+    public boolean sendPublicMessage(String message) {
+        boolean success = sendCommand("msg " + message);
+        if (!success) {
+            lastError = "ERROR: Message could not be sent";
+        }
+        return success;
+    }
+
+    /**
+     * Send a private message to a single recipient.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return true if message was queued for sending, false on error
+     */
+    public boolean sendPrivateMessage(String recipient, String message) {
+        boolean success = sendCommand("privmsg " + recipient + " " + message);
+        if (!success) {
+            lastError = "ERROR: Private message could not be sent";
+        }
+        return success;
+    }
+
+    /**
+     * Send a login request to the chat server.
+     *
+     * @param username Username to use
+     */
+    public void tryLogin(String username) {
+        sendCommand("login " + username);
+    }
+
+    /**
+     * Send a request for latest user list to the server.
+     */
+    public void refreshUserList() {
+        sendCommand("users");
+    }
+
+    /**
+     * Send a request for the list of commands that server supports.
+     */
+    public void askSupportedCommands() {
+        sendCommand("help");
+    }
+
+    /**
+     * Get the last error message
+     *
+     * @return Error message or "" if there has been no error
+     */
+    public String getLastError() {
+        return lastError != null ? lastError : "";
+    }
+
+    /**
+     * Register a new listener for events (login result, incoming message, etc)
+     *
+     * The events are not queued: those which happened before the listener
+     * was added are not delivered to it. The connection is made on the
+     * selector thread right after openSession(), so a connection failure may
+     * already have been reported by then - check isConnectionActive() and
+     * getLastError(), or register the listener with
+     * ChatSessionPool.openSession(host, port, listener).
+     *
+     * @param listener
+     */
+    public void addListener(ChatListener listener) {
+        dispatcher.addListener(listener);
+    }
+
+    /**
+     * Unregister an event listener
+     *
+     * @param listener
+     */
+    public void removeListener(ChatListener listener) {
+        dispatcher.removeListener(listener);
+    }
+
+    /**
+     * Queue a command for sending. The selector thread will write it to the
+     * socket as soon as the socket accepts more data.
+     *
+     * @param cmd A command, without the newline
+     * @return true on success, false otherwise
+     */
+    private boolean sendCommand(String cmd) {
+        boolean success = false;
+        if (closed.get()) {
+            System.out.println("ERROR: Connection has been lost");
+        } else if (cmd == null) {
+            System.out.println("ERROR: Command was null");
+        } else if (cmd.trim().length() == 0) {
+            System.out.println("ERROR: Command was empty");
+        } else {
+            outgoing.add(ByteBuffer.wrap(WireCodec.encodeLine(cmd)));
+            if (connected) {
+                loop.execute(this::enableWrite);
+            }
+            success = true;
+        }
+        return success;
+    }
+
+    /**
+     * Ask the selector to tell us when the socket accepts more data. Runs on the
+     * selector thread.
+     */
+    private void enableWrite() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * The non-blocking connect has completed (successfully or not).
+     */
+    void onConnectable() throws IOException {
+        try {
+            channel.finishConnect();
+        } catch (IOException e) {
+            lastError = "ERROR: An I/O error occured when connecting to server";
+            throw e;
+        }
+        connected = true;
+        if (tls != null) {
+            tls.beginHandshake();
+        }
+        updateInterest();
+    }
+
+    /**
+     * Watch the socket for reading, and for writing while there is something
+     * to write.
+     */
+    private void updateInterest() {
+        boolean write;
+        if (tls != null) {
+            // The commands wait until the handshake is done
+            write = tls.wantsWrite() || (!tls.isHandshaking() && !outgoing.isEmpty());
+        } else {
+            write = !outgoing.isEmpty();
+        }
+        key.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read what has arrived, split it into lines and dispatch every complete
+     * line to the listeners.
+     */
+    void onReadable() throws IOException {
+        int count;
+        do {
+            count = (tls != null) ? tls.read(readBuffer) : channel.read(readBuffer);
+            if (count < 0) {
+                disconnect();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    dispatcher.dispatch(takeLine());
+                } else {
+                    if (lineLength == lineBuffer.length) {
+                        lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+                    }
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+            readBuffer.clear();
+            // With TLS, more records may be waiting in the decryption buffer
+        } while (tls != null && count > 0);
+        if (tls != null && key.isValid()) {
+            // The handshake may have finished, or have something to send
+            updateInterest();
+        }
+    }
+
+    /**
+     * @return The line collected so far, without the trailing carriage return.
+     * The line buffer is emptied.
+     */
+    private String takeLine() {
+        int length = lineLength;
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        lineLength = 0;
+        String line = WireCodec.decode(lineBuffer, 0, length);
+        if (lineBuffer.length > READ_BUFFER_SIZE) {
+            // Don't keep a huge buffer around after a single long line
+            lineBuffer = new byte[LINE_BUFFER_SIZE];
+        }
+        return line;
+    }
+
+    /**
+     * Write as much of the queued commands as the socket accepts.
+     */
+    void onWritable() throws IOException {
+        if (tls != null && (!tls.flush() || tls.isHandshaking())) {
+            // Encrypted bytes are still waiting, or the handshake is not done
+            tls.handshake();
+            updateInterest();
+            return;
+        }
+        ByteBuffer buffer;
+        while ((buffer = outgoing.peek()) != null) {
+            if (tls != null) {
+                if (!tls.write(buffer)) {
+                    return;
+                }
+            } else {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // Socket send buffer is full, continue when it drains
+                    return;
+                }
+            }
+            outgoing.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (!outgoing.isEmpty()) {
+            // A command was queued after the loop above saw an empty queue
+            enableWrite();
+        }
+    }
+}
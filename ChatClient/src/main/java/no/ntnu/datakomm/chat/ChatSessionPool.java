@@ -0,0 +1,107 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many chat sessions on a small, fixed number of NIO selector threads.
+ * Intended for bots and load tests where one TCPClient per session (one socket,
+ * one blocked listen thread each) would cost hundreds of threads. Each session
+ * gets its own ChatListeners, with the same events as a TCPClient.
+ *
+ * Example:
+ * <pre>
+ * ChatSessionPool pool = new ChatSessionPool(2);
+ * ChatSession bot = pool.openSession("localhost", 1300, myListener);
+ * bot.tryLogin("bot1");
+ * ...
+ * pool.close();
+ * </pre>
+ */
+public class ChatSessionPool implements AutoCloseable {
+
+    private final SelectorLoop[] loops;
+    // Encrypts the sessions, null for plain connections
+    private final TlsTransport tls;
+    // Used to spread the sessions evenly between the selector threads
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    /**
+     * Create the pool and start its selector threads.
+     *
+     * @param selectorThreads How many selector threads to use. One or two is
+     *                        usually enough, the threads mostly wait for data.
+     * @throws IOException When a selector can't be opened
+     */
+    public ChatSessionPool(int selectorThreads) throws IOException {
+        this(selectorThreads, null);
+    }
+
+    /**
+     * Create the pool and start its selector threads. The sessions are
+     * encrypted with TLS; sessions to the same server resume each other's TLS
+     * session instead of doing a full handshake.
+     *
+     * @param selectorThreads How many selector threads to use
+     * @param tls             TLS settings of the sessions, null for plain
+     *                        connections
+     * @throws IOException When a selector can't be opened
+     */
+    public ChatSessionPool(int selectorThreads, TlsTransport tls) throws IOException {
+        this.tls = tls;
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("At least one selector thread is needed");
+        }
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            loops[i] = new SelectorLoop("chat-selector-" + i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Start a new session towards a chat server. The method does not wait for
+     * the connection: it is completed in the background, and commands sent in
+     * the meantime are queued. If the connection fails, the listeners get
+     * onDisconnect() and getLastError() describes the error.
+     *
+     * The connection may fail before this method returns, before a listener
+     * can be added with addListener(): that onDisconnect() is lost. Use
+     * openSession(host, port, listener) to get every event.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return The new session
+     * @throws IOException When the socket can't be opened
+     */
+    public ChatSession openSession(String host, int port) throws IOException {
+        return openSession(host, port, null);
+    }
+
+    /**
+     * Start a new session towards a chat server, with a listener registered
+     * before connecting, so that it gets every event of the session -
+     * including an onDisconnect() for a connection which fails right away.
+     *
+     * @param host     host name or IP address of the chat server
+     * @param port     TCP port of the chat server
+     * @param listener The first listener of the session, null for none
+     * @return The new session
+     * @throws IOException When the socket can't be opened
+     */
+    public ChatSession openSession(String host, int port, ChatListener listener) throws IOException {
+        int index = Math.floorMod(nextLoop.getAndIncrement(), loops.length);
+        return new ChatSession(loops[index], new InetSocketAddress(host, port), tls, listener);
+    }
+
+    /**
+     * Disconnect all the sessions and stop the selector threads.
+     */
+    @Override
+    public void close() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of one TCPClient: traffic, received commands, send,
+ * connect and login latency, reconnects and the time spent in every
+ * ChatListener. Updating is lock-free. The values can be pulled with
+ * snapshot(), or read over JMX after registerMBean().
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+    // Used to give every registered client a unique JMX name
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+    /**
+     * Key under which received commands which are not part of the protocol
+     * are counted
+     */
+    public static final String OTHER_COMMANDS = "other";
+
+    // Counted one by one. Anything else the server sends is counted as
+    // OTHER_COMMANDS, so that a misbehaving server can't grow the map.
+    private static final Set<String> KNOWN_COMMANDS = new HashSet<>(Arrays.asList(
+            "loginok", "loginerr", "users", "msg", "privmsg", "msgerr", "cmderr", "supported",
+            MessageCompressor.PUBLIC_COMMAND, MessageCompressor.PRIVATE_COMMAND, FrameCodec.ACCEPTED));
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder linesIn = new LongAdder();
+    private final LongAdder linesOut = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final Map<String, LongAdder> commandsReceived = new ConcurrentHashMap<>();
+    private final LatencyRecorder sendLatency = new LatencyRecorder();
+    private final LatencyRecorder connectLatency = new LatencyRecorder();
+    private final LatencyRecorder loginLatency = new LatencyRecorder();
+    private final Map<String, LatencyRecorder> listenerDispatch = new ConcurrentHashMap<>();
+
+    // System.nanoTime() when the pending login was sent, 0 if none is pending
+    private volatile long loginStarted = 0;
+    private ObjectName registeredName;
+
+    void bytesIn(int count) {
+        bytesIn.add(count);
+    }
+
+    void lineIn() {
+        linesIn.increment();
+    }
+
+    void lineOut(int bytes, long startNanos) {
+        linesOut.increment();
+        bytesOut.add(bytes);
+        sendLatency.recordSince(startNanos);
+    }
+
+    void sendError() {
+        sendErrors.increment();
+    }
+
+    void connected(long startNanos) {
+        connects.increment();
+        connectLatency.recordSince(startNanos);
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+    }
+
+    void commandReceived(String command) {
+        String key = KNOWN_COMMANDS.contains(command) ? command : OTHER_COMMANDS;
+        commandsReceived.computeIfAbsent(key, c -> new LongAdder()).increment();
+    }
+
+    void loginSent() {
+        loginStarted = System.nanoTime();
+    }
+
+    void loginCompleted() {
+        long started = loginStarted;
+        if (started != 0) {
+            loginStarted = 0;
+            loginLatency.recordSince(started);
+        }
+    }
+
+    void listenerDispatched(ChatListener listener, long startNanos) {
+        listenerDispatch.computeIfAbsent(listener.getClass().getName(), c -> new LatencyRecorder())
+                .recordSince(startNanos);
+    }
+
+    /**
+     * Take a consistent-enough copy of all the values, for dashboards and logs.
+     * Each value is read atomically, but the values are not read at the same
+     * instant.
+     *
+     * @return The current values
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Register these metrics in the platform MBean server, under the name
+     * no.ntnu.datakomm.chat:type=TCPClient,name=&lt;name&gt;.
+     *
+     * @param name Name of the client, or null to generate one
+     * @return true on success, false otherwise
+     */
+    public synchronized boolean registerMBean(String name) {
+        boolean success = false;
+        try {
+            String clientName = (name != null) ? name : "client-" + NEXT_ID.getAndIncrement();
+            ObjectName objectName = new ObjectName("no.ntnu.datakomm.chat:type=TCPClient,name="
+                    + ObjectName.quote(clientName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = objectName;
+            success = true;
+        } catch (JMException e) {
+            System.out.println("ERROR: Could not register client metrics in JMX: " + e.getMessage());
+        }
+        return success;
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server, if registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (registeredName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(registeredName);
+            } catch (JMException e) {
+                System.out.println("ERROR: Could not unregister client metrics from JMX");
+            }
+            registeredName = null;
+        }
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getLinesIn() {
+        return linesIn.sum();
+    }
+
+    @Override
+    public long getLinesOut() {
+        return linesOut.sum();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    @Override
+    public long getConnects() {
+        return connects.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return Math.max(0, connects.sum() - 1);
+    }
+
+    @Override
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommandsReceived() {
+        Map<String, Long> result = new TreeMap<>();
+        commandsReceived.forEach((command, count) -> result.put(command, count.sum()));
+        return result;
+    }
+
+    @Override
+    public LatencySummary getSendLatency() {
+        return sendLatency.summary();
+    }
+
+    @Override
+    public LatencySummary getConnectLatency() {
+        return connectLatency.summary();
+    }
+
+    @Override
+    public LatencySummary getLoginLatency() {
+        return loginLatency.summary();
+    }
+
+    @Override
+    public Map<String, LatencySummary> getListenerDispatch() {
+        Map<String, LatencySummary> result = new TreeMap<>();
+        listenerDispatch.forEach((listener, recorder) -> result.put(listener, recorder.summary()));
+        return result;
+    }
+
+    /**
+     * Values of the metrics at one point in time.
+     */
+    public static final class Snapshot implements ClientMetricsMXBean {
+        private final long timestamp = System.currentTimeMillis();
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long linesIn;
+        private final long linesOut;
+        private final long sendErrors;
+        private final long connects;
+        private final long reconnects;
+        private final long connectFailures;
+        private final Map<String, Long> commandsReceived;
+        private final LatencySummary sendLatency;
+        private final LatencySummary connectLatency;
+        private final LatencySummary loginLatency;
+        private final Map<String, LatencySummary> listenerDispatch;
+
+        private Snapshot(ClientMetrics metrics) {
+            bytesIn = metrics.getBytesIn();
+            bytesOut = metrics.getBytesOut();
+            linesIn = metrics.getLinesIn();
+            linesOut = metrics.getLinesOut();
+            sendErrors = metrics.getSendErrors();
+            connects = metrics.getConnects();
+            reconnects = metrics.getReconnects();
+            connectFailures = metrics.getConnectFailures();
+            commandsReceived = Collections.unmodifiableMap(metrics.getCommandsReceived());
+            sendLatency = metrics.getSendLatency();
+            connectLatency = metrics.getConnectLatency();
+            loginLatency = metrics.getLoginLatency();
+            listenerDispatch = Collections.unmodifiableMap(metrics.getListenerDispatch());
+        }
+
+        /**
+         * @return When the snapshot was taken, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        @Override
+        public long getLinesIn() {
+            return linesIn;
+        }
+
+        @Override
+        public long getLinesOut() {
+            return linesOut;
+        }
+
+        @Override
+        public long getSendErrors() {
+            return sendErrors;
+        }
+
+        @Override
+        public long getConnects() {
+            return connects;
+        }
+
+        @Override
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        @Override
+        public long getConnectFailures() {
+            return connectFailures;
+        }
+
+        @Override
+        public Map<String, Long> getCommandsReceived() {
+            return commandsReceived;
+        }
+
+        @Override
+        public LatencySummary getSendLatency() {
+            return sendLatency;
+        }
+
+        @Override
+        public LatencySummary getConnectLatency() {
+            return connectLatency;
+        }
+
+        @Override
+        public LatencySummary getLoginLatency() {
+            return loginLatency;
+        }
+
+        @Override
+        public Map<String, LatencySummary> getListenerDispatch() {
+            return listenerDispatch;
+        }
+
+        @Override
+        public String toString() {
+            return "in=" + bytesIn + "B/" + linesIn + " lines, out=" + bytesOut + "B/" + linesOut
+                    + " lines, sendErrors=" + sendErrors + ", connects=" + connects
+                    + ", reconnects=" + reconnects + ", connectFailures=" + connectFailures
+                    + ", commands=" + commandsReceived + ", send[" + sendLatency
+                    + "], connect[" + connectLatency + "], login[" + loginLatency
+                    + "], listeners=" + listenerDispatch;
+        }
+    }
+}
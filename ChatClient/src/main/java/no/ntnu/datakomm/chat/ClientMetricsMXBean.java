@@ -0,0 +1,43 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+
+/**
+ * JMX view of ClientMetrics. All values are totals since the client was
+ * created.
+ */
+public interface ClientMetricsMXBean {
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getLinesIn();
+
+    long getLinesOut();
+
+    long getSendErrors();
+
+    long getConnects();
+
+    long getReconnects();
+
+    long getConnectFailures();
+
+    /**
+     * @return Number of received commands, per command word. Words which
+     * are not part of the protocol are counted together, as "other".
+     */
+    Map<String, Long> getCommandsReceived();
+
+    LatencySummary getSendLatency();
+
+    LatencySummary getConnectLatency();
+
+    LatencySummary getLoginLatency();
+
+    /**
+     * @return Time spent in the ChatListener callbacks, per listener class
+     */
+    Map<String, LatencySummary> getListenerDispatch();
+}
@@ -0,0 +1,206 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sorts the messages into conversations: the public room, and one per peer
+ * for the private messages. Each conversation keeps its last messages in a
+ * bounded buffer and counts the messages not seen yet. Only one conversation
+ * is active (shown); the others are just buffered, so showing messages costs
+ * in proportion to the traffic of the active conversation, not to the total
+ * traffic.
+ *
+ * Messages are added on any thread (the listening thread). The active
+ * conversation is changed and read on one thread (the GUI thread):
+ * <pre>
+ * // On the listening thread:
+ * router.add(key, message);
+ * // Later, on the GUI thread:
+ * show(router.takeNew());                // The new messages of the active one
+ * update(router.takeChanged());          // The new and the unread counts
+ * </pre>
+ *
+ * @param <T> Type of the messages
+ */
+public class ConversationRouter<T> {
+    /**
+     * Key of the public room. The other keys are the peer user names.
+     */
+    public static final String EVERYONE = "";
+
+    private final ConcurrentHashMap<String, Conversation<T>> conversations = new ConcurrentHashMap<>();
+    private final int capacity;
+    // Conversations created, or whose unread count changed, since takeChanged()
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private volatile String active = EVERYONE;
+
+    /**
+     * The messages of one conversation. Guarded by itself.
+     */
+    private static final class Conversation<T> {
+        private final ArrayDeque<T> messages = new ArrayDeque<>();
+        // Number of messages added, and number already given to the GUI
+        private long added = 0;
+        private long taken = 0;
+        private int unread = 0;
+    }
+
+    /**
+     * @param capacity Max number of messages kept per conversation, the
+     *                 oldest are dropped
+     */
+    public ConversationRouter(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a message to a conversation, creating the conversation if needed.
+     *
+     * @param key     EVERYONE or the peer
+     * @param message The message
+     * @return True if the conversation is the active one: takeNew() will
+     * return the message. False if it was counted as unread.
+     */
+    public boolean add(String key, T message) {
+        return add(key, message, true);
+    }
+
+    /**
+     * Add a message to a conversation, creating the conversation if needed.
+     *
+     * @param key     EVERYONE or the peer
+     * @param message The message
+     * @param unread  False for a message the user has seen already (sent by
+     *                the user): it is not counted as unread
+     * @return True if the conversation is the active one: takeNew() will
+     * return the message
+     */
+    public boolean add(String key, T message, boolean unread) {
+        Conversation<T> conversation = conversations.get(key);
+        if (conversation == null) {
+            conversation = conversations.computeIfAbsent(key, k -> new Conversation<>());
+            changed.add(key);
+        }
+        synchronized (conversation) {
+            if (conversation.messages.size() == capacity) {
+                conversation.messages.removeFirst();
+            }
+            conversation.messages.addLast(message);
+            conversation.added++;
+            // Compared under the lock: activate() takes it too
+            if (key.equals(active)) {
+                return true;
+            }
+            if (!unread) {
+                return false;
+            }
+            conversation.unread++;
+        }
+        changed.add(key);
+        return false;
+    }
+
+    /**
+     * Make a conversation the active one, creating it if needed, and mark its
+     * messages as read. Call on one thread only.
+     *
+     * @param key EVERYONE or the peer
+     * @return The buffered messages of the conversation, oldest first
+     */
+    public List<T> activate(String key) {
+        Conversation<T> conversation = conversations.computeIfAbsent(key, k -> {
+            changed.add(k);
+            return new Conversation<>();
+        });
+        // Messages being added to the previous active conversation are either
+        // shown before the switch or counted as unread after it
+        Conversation<T> previous = conversations.get(active);
+        synchronized (previous != null ? previous : conversation) {
+            synchronized (conversation) {
+                active = key;
+                if (conversation.unread > 0) {
+                    conversation.unread = 0;
+                    changed.add(key);
+                }
+                conversation.taken = conversation.added;
+                return new ArrayList<>(conversation.messages);
+            }
+        }
+    }
+
+    /**
+     * Get the messages added to the active conversation since the last call
+     * (or activate()). Messages dropped from the buffer in between are lost.
+     *
+     * @return The new messages, oldest first
+     */
+    public List<T> takeNew() {
+        Conversation<T> conversation = conversations.get(active);
+        List<T> messages = new ArrayList<>();
+        if (conversation == null) {
+            return messages;
+        }
+        synchronized (conversation) {
+            long count = Math.min(conversation.added - conversation.taken, conversation.messages.size());
+            Iterator<T> newest = conversation.messages.descendingIterator();
+            for (long i = 0; i < count; i++) {
+                messages.add(newest.next());
+            }
+            conversation.taken = conversation.added;
+        }
+        // Collected newest first
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * Get the conversations created, or whose unread count has changed, since
+     * the last call.
+     *
+     * @return The keys of the conversations
+     */
+    public List<String> takeChanged() {
+        List<String> keys = new ArrayList<>();
+        Iterator<String> iterator = changed.iterator();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+            iterator.remove();
+        }
+        return keys;
+    }
+
+    /**
+     * @param key EVERYONE or the peer
+     * @return Number of messages added to the conversation while it was not
+     * active, 0 if there is no such conversation
+     */
+    public int getUnread(String key) {
+        Conversation<T> conversation = conversations.get(key);
+        if (conversation == null) {
+            return 0;
+        }
+        synchronized (conversation) {
+            return conversation.unread;
+        }
+    }
+
+    /**
+     * @return The key of the active conversation
+     */
+    public String getActive() {
+        return active;
+    }
+
+    /**
+     * @return Number of conversations
+     */
+    public int size() {
+        return conversations.size();
+    }
+}
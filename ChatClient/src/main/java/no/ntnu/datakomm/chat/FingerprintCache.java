@@ -0,0 +1,143 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Set of 64-bit fingerprints which forgets them after a time window, with a
+ * fixed memory size. Fingerprints are kept in a ring in insertion order, so
+ * expired ones are always at the tail, plus an open addressing hash table
+ * (linear probing) with the ring index of each fingerprint for the lookups.
+ * When the ring is full the oldest fingerprint is dropped even if it has not
+ * expired yet. Nothing is allocated after construction. Not thread safe.
+ */
+class FingerprintCache {
+    // Ring entry: fingerprint and time it was added
+    private final long[] fingerprints;
+    private final long[] times;
+    // Ring index + 1 of the fingerprint in each slot, 0 = empty slot
+    private final int[] table;
+    private final int tableMask;
+    private final long window;
+    private final long fingerprintMask;
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * @param windowMillis    How long a fingerprint is remembered
+     * @param maxBytes        Max memory to use; determines the max number of
+     *                        fingerprints (about 24 bytes each)
+     * @param fingerprintBits Number of fingerprint bits kept, 1-64. Fewer bits
+     *                        means more false positives; less than 64 is only
+     *                        useful for measuring that.
+     */
+    FingerprintCache(long windowMillis, int maxBytes, int fingerprintBits) {
+        if (fingerprintBits < 1 || fingerprintBits > 64) {
+            throw new IllegalArgumentException("fingerprintBits must be 1-64");
+        }
+        // A table slot takes 4 bytes, and the table is at most half full so that
+        // probe sequences stay short: 16 bytes of ring per 2 slots
+        int tableSize = Integer.highestOneBit(Math.max(2, maxBytes / 12));
+        fingerprints = new long[tableSize / 2];
+        times = new long[tableSize / 2];
+        table = new int[tableSize];
+        tableMask = table.length - 1;
+        window = windowMillis;
+        fingerprintMask = (fingerprintBits == 64) ? -1L : (1L << fingerprintBits) - 1;
+    }
+
+    /**
+     * Add a fingerprint unless it is already present.
+     *
+     * @param fingerprint The fingerprint
+     * @param now         Current time in milliseconds
+     * @return true if it was added, false if it was already in the window
+     */
+    boolean add(long fingerprint, long now) {
+        expire(now);
+        fingerprint &= fingerprintMask;
+        int slot = slotOf(fingerprint);
+        while (table[slot] != 0) {
+            if (fingerprints[table[slot] - 1] == fingerprint) {
+                return false;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        if (size == fingerprints.length) {
+            removeOldest();
+            // Removing may have shifted entries into the free slot found above
+            slot = slotOf(fingerprint);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & tableMask;
+            }
+        }
+        int index = (head + size) % fingerprints.length;
+        fingerprints[index] = fingerprint;
+        times[index] = now;
+        table[slot] = index + 1;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return Number of fingerprints remembered
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return Max number of fingerprints remembered
+     */
+    int capacity() {
+        return fingerprints.length;
+    }
+
+    /**
+     * @return Bytes used by the arrays of the cache
+     */
+    long memoryBytes() {
+        return 16L * fingerprints.length + 4L * table.length;
+    }
+
+    /**
+     * Probability that a new message is taken for a duplicate, with the
+     * current number of fingerprints.
+     */
+    double falsePositiveProbability() {
+        return size / Math.pow(2, Long.bitCount(fingerprintMask));
+    }
+
+    private void expire(long now) {
+        while (size > 0 && now - times[head] >= window) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Remove the fingerprint at the tail of the ring from the table, closing
+     * the gap in its probe sequence by shifting later entries back.
+     */
+    private void removeOldest() {
+        int slot = slotOf(fingerprints[head]);
+        while (table[slot] != head + 1) {
+            slot = (slot + 1) & tableMask;
+        }
+        int next = (slot + 1) & tableMask;
+        while (table[next] != 0) {
+            int home = slotOf(fingerprints[table[next] - 1]);
+            // Move the entry back if its home is not between the gap and it
+            if (((next - home) & tableMask) >= ((next - slot) & tableMask)) {
+                table[slot] = table[next];
+                slot = next;
+            }
+            next = (next + 1) & tableMask;
+        }
+        table[slot] = 0;
+        head = (head + 1) % fingerprints.length;
+        size--;
+    }
+
+    private int slotOf(long fingerprint) {
+        // The low bits may be all there is, mix them with the high bits
+        long h = fingerprint * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & tableMask;
+    }
+}
@@ -0,0 +1,122 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary framing, a negotiated alternative to the newline-terminated text
+ * protocol. Every command is sent as one frame:
+ * <pre>
+ * +----------------+--------+---------------------------+
+ * | length: varint | opcode | payload: UTF-8, length-1 B |
+ * +----------------+--------+---------------------------+
+ * </pre>
+ * The length covers the opcode and the payload and is encoded in 7-bit groups,
+ * least significant first, with the high bit set on all but the last byte. The
+ * opcode identifies the command word and the payload is the rest of the
+ * command (the argument), so message bodies may contain newlines. Commands
+ * without an opcode are sent with opcode 0 and the whole command as payload.
+ *
+ * Negotiation: when the server lists "binframe" in its supported commands, the
+ * client sends the line "binframe" and sends frames from then on. The server
+ * answers with the line "binframeok" and sends frames after it.
+ */
+final class FrameCodec {
+    /**
+     * Command which asks the server to switch to binary frames
+     */
+    static final String EXTENSION = "binframe";
+    /**
+     * Last text line from the server, frames follow it
+     */
+    static final String ACCEPTED = "binframeok";
+    /**
+     * Frames larger than this are rejected
+     */
+    static final int MAX_FRAME_SIZE = 1 << 20;
+
+    // The payload of an opcode 0 frame is a complete command
+    private static final int RAW = 0;
+
+    // Index = opcode. Never reorder, only append: the opcodes are on the wire.
+    private static final String[] COMMANDS = {
+        null, "login", "loginok", "loginerr", "msg", "privmsg", "msgerr", "cmderr",
+        "users", "help", "supported", MessageCompressor.PUBLIC_COMMAND,
+        MessageCompressor.PRIVATE_COMMAND
+    };
+
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+    static {
+        for (int opcode = 1; opcode < COMMANDS.length; opcode++) {
+            OPCODES.put(COMMANDS[opcode], opcode);
+        }
+    }
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encode a command as a frame.
+     *
+     * @param cmd The command, as it would be sent in the text protocol
+     * @return The frame bytes
+     */
+    static byte[] encode(String cmd) {
+        int space = cmd.indexOf(' ');
+        Integer opcode = OPCODES.get(space < 0 ? cmd : cmd.substring(0, space));
+        byte[] payload;
+        if (opcode == null) {
+            opcode = RAW;
+            payload = WireCodec.encode(cmd);
+        } else if (space < 0) {
+            payload = new byte[0];
+        } else {
+            payload = WireCodec.encode(CharBuffer.wrap(cmd, space + 1, cmd.length()));
+        }
+        int length = payload.length + 1;
+        byte[] frame = new byte[varintSize(length) + length];
+        int position = 0;
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            frame[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        frame[position++] = (byte) value;
+        frame[position++] = (byte) (int) opcode;
+        System.arraycopy(payload, 0, frame, position, payload.length);
+        return frame;
+    }
+
+    /**
+     * Fill in the command and argument of a received frame.
+     *
+     * @param opcode  The opcode of the frame
+     * @param payload The decoded payload, null if it was empty
+     * @param frame   Where the result is stored
+     */
+    static void decodeInto(int opcode, String payload, WireReader.Frame frame) {
+        if (opcode > RAW && opcode < COMMANDS.length) {
+            frame.command = COMMANDS[opcode];
+            frame.argument = payload;
+        } else if (opcode == RAW && payload != null) {
+            String[] commandArgument = payload.split(" ", 2);
+            frame.command = commandArgument[0];
+            frame.argument = (commandArgument.length == 2) ? commandArgument[1] : null;
+        } else {
+            // Opcode from a newer protocol version, ignored like unknown commands
+            frame.command = "";
+            frame.argument = payload;
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+}
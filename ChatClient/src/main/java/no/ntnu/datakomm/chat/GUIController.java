@@ -2,15 +2,20 @@ package no.ntnu.datakomm.chat;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Pane;
-import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.util.Callback;
 
 import static java.lang.Thread.sleep;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import javafx.collections.ObservableList;
 
 /**
@@ -37,7 +42,7 @@ public class GUIController implements ChatListener {
     private Button helpBtn;
 
     @FXML
-    private VBox userList;
+    private ListView<String> userList;
 
     @FXML
     private VBox textOutput;
@@ -60,25 +65,164 @@ public class GUIController implements ChatListener {
     @FXML
     private ScrollPane outputScroll;
 
+    @FXML
+    private ComboBox<String> conversationSelector;
+
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
 
+    // Stores the received messages when the chat.transcript.dir property is
+    // set, null otherwise
+    private TranscriptStore transcript;
+
+    // The users shown in userList, updated with the changes of every poll
+    private UserListModel users;
+
+    // Max number of names listed when a recipient prefix matches several users
+    private static final int MAX_COMPLETIONS = 10;
+
+    // Older messages are removed from the chat window
+    private static final int MAX_SHOWN_MESSAGES = 1000;
+
+    // Rows of the removed messages, reused for new ones
+    private final NodePool<MessageRow> messageRows = new NodePool<>(MessageRow::new, 100);
+
+    // Messages kept per conversation
+    private static final int CONVERSATION_SIZE = 500;
+
+    // The public room and the private conversations; only the active one is shown
+    private final ConversationRouter<ShownMessage> conversations = new ConversationRouter<>(CONVERSATION_SIZE);
+
+    // True while a refreshConversations() is waiting to run on the GUI thread
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+
+    /**
+     * A message and the way it is shown.
+     */
+    private static final class ShownMessage {
+        private final TextMessage msg;
+        private final MessageRow.Kind kind;
+
+        ShownMessage(TextMessage msg, MessageRow.Kind kind) {
+            this.msg = msg;
+            this.kind = kind;
+        }
+    }
+
     // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
     // the GUI.
     private Thread userPollThread;
 
+    // Marks the phases of the startup, see App
+    private volatile Consumer<String> startupMarks = phase -> {
+    };
+
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
     public void initialize() {
         tcpClient = new TCPClient();
+        transcript = openTranscript();
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
         textOutput.heightProperty().addListener((observable, oldValue, newValue)
                 -> outputScroll.setVvalue(1.0));
+        initUserList();
+        initConversationSelector();
         setKeyAndClickListeners();
     }
 
+    /**
+     * Show the users in a ListView: it creates cells for the visible rows
+     * only, so a room with thousands of users costs a screenful of nodes.
+     */
+    private void initUserList() {
+        ObservableList<String> items = userList.getItems();
+        users = new UserListModel(items) {
+            @Override
+            protected void replaceAll(List<String> sorted) {
+                // One change for the view instead of a clear and an add
+                items.setAll(sorted);
+            }
+        };
+        userList.setCellFactory(view -> {
+            ListCell<String> cell = new ListCell<String>() {
+                @Override
+                protected void updateItem(String user, boolean empty) {
+                    super.updateItem(user, empty);
+                    setText(empty ? null : user);
+                }
+            };
+            cell.getStyleClass().add("user");
+            // Clicking a user starts a private message to the user
+            cell.setOnMouseClicked(event -> {
+                if (!cell.isEmpty()) {
+                    startPrivateMessage(cell.getItem());
+                }
+            });
+            return cell;
+        });
+    }
+
+    /**
+     * List the conversations in the selector, with their unread counts, and
+     * show the selected one.
+     */
+    private void initConversationSelector() {
+        Callback<ListView<String>, ListCell<String>> cells = view -> new ListCell<String>() {
+            @Override
+            protected void updateItem(String conversation, boolean empty) {
+                super.updateItem(conversation, empty);
+                if (empty || conversation == null) {
+                    setText(null);
+                } else {
+                    String name = conversation.equals(ConversationRouter.EVERYONE) ? "Everyone" : conversation;
+                    int unread = conversations.getUnread(conversation);
+                    setText(unread > 0 ? name + " (" + unread + ")" : name);
+                }
+            }
+        };
+        conversationSelector.setCellFactory(cells);
+        conversationSelector.setButtonCell(cells.call(null));
+        conversationSelector.getItems().add(ConversationRouter.EVERYONE);
+        conversationSelector.getSelectionModel().select(ConversationRouter.EVERYONE);
+        conversationSelector.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, selected) -> {
+            if (selected != null && !selected.equals(conversations.getActive())) {
+                showConversation(selected);
+            }
+        });
+    }
+
+    /**
+     * Put "/privmsg user " in the message input box.
+     *
+     * @param user The recipient
+     */
+    private void startPrivateMessage(String user) {
+        textInput.setText("/privmsg " + user + " ");
+        textInput.requestFocus();
+        textInput.end();
+    }
+
+    /**
+     * Complete the recipient of "/privmsg prefix" in the message input box:
+     * a single matching user is filled in, several are listed in the status.
+     */
+    private void completeRecipient() {
+        String text = textInput.getText();
+        if (!text.startsWith("/privmsg ") || text.indexOf(' ', "/privmsg ".length()) >= 0) {
+            return;
+        }
+        String prefix = text.substring("/privmsg ".length());
+        List<String> matches = users.withPrefix(prefix, MAX_COMPLETIONS);
+        if (matches.size() == 1) {
+            startPrivateMessage(matches.get(0));
+        } else if (!matches.isEmpty()) {
+            serverStatus.setText("Matching users: " + String.join(", ", matches)
+                    + (matches.size() == MAX_COMPLETIONS ? ", ..." : ""));
+        }
+    }
+
     /**
      * Initialize handling for all GUI events: clicking on buttons, and key presses
      */
@@ -107,6 +251,10 @@ public class GUIController implements ChatListener {
                 // When "Enter" is pressed in the message input box: submit the message
                 inputSubmit();
                 event.consume(); // This is needed to disable beeping sound
+            } else if (event.getCode().equals(KeyCode.TAB)) {
+                // Tab completes the recipient of a private message
+                completeRecipient();
+                event.consume();
             }
         });
         submitBtn.setOnMouseClicked(event -> {
@@ -119,20 +267,24 @@ public class GUIController implements ChatListener {
     }
 
     /**
-     * Take the message from the text input box, send it to the server
+     * Take the message from the text input box, send it to the server. In a
+     * private conversation, the message is sent to the peer.
      */
     private void inputSubmit() {
         String msgToSend = textInput.getText();
         if (!msgToSend.isEmpty()) {
             TextMessage msg;
+            String conversation = conversations.getActive();
             if (tcpClient.isConnectionActive()) {
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
-                // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
+                // part and the text to send is the third. Otherwise, the whole message is sent to the peer of the
+                // private conversation, or as a public message.
                 String[] msgParts = msgToSend.split(" ", 3);
                 if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
-                    String recipient = msgParts[1];
-                    String message = msgParts[2];
-                    tcpClient.sendPrivateMessage(recipient, message);
+                    conversation = msgParts[1];
+                    tcpClient.sendPrivateMessage(conversation, msgParts[2]);
+                } else if (!conversation.equals(ConversationRouter.EVERYONE)) {
+                    tcpClient.sendPrivateMessage(conversation, msgToSend);
                 } else {
                     tcpClient.sendPublicMessage(msgToSend);
                 }
@@ -140,13 +292,15 @@ public class GUIController implements ChatListener {
             } else {
                 msg = new TextMessage("you", false, msgToSend);
             }
-            addMsgToGui(true, msg, false);
+            addMsgToGui(conversation, true, msg, false);
             textInput.setText("");
         }
     }
 
     /**
-     * Add a message to the GUI chat window
+     * Add a message to the GUI chat window: to the active conversation for a
+     * warning, to the conversation with the sender for a received private
+     * message, and to the public room otherwise.
      *
      * @param local   When true, this message was sent by us. When false -
      *                received from another user
@@ -154,58 +308,145 @@ public class GUIController implements ChatListener {
      * @param warning When true, this message is a warning that must be displayed to the user
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what 
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
+        String conversation;
+        if (warning) {
+            conversation = conversations.getActive();
+        } else if (!local && msg.isPrivate()) {
+            conversation = msg.getSender();
         } else {
-            senderText = msg.getSender() + ":";
+            conversation = ConversationRouter.EVERYONE;
         }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
+        addMsgToGui(conversation, local, msg, warning);
+    }
+
+    /**
+     * Add a message to a conversation. It is shown if the conversation is the
+     * active one, otherwise counted as unread. A message sent by us to
+     * another conversation (with /privmsg) is not unread: that conversation
+     * is shown instead.
+     *
+     * @param conversation ConversationRouter.EVERYONE or the peer
+     * @param local        When true, this message was sent by us. When false -
+     *                     received from another user
+     * @param msg          The message to be displayed
+     * @param warning      When true, this message is a warning that must be displayed to the user
+     */
+    private void addMsgToGui(String conversation, boolean local, TextMessage msg, boolean warning) {
+        MessageRow.Kind kind;
         if (warning) {
-            // This message is a warning/info, add specific style to it
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
-            if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
+            // This message is a warning/info
+            kind = msg.getSender().equals("err") ? MessageRow.Kind.WARNING : MessageRow.Kind.INFO;
+        } else if (local) {
+            if (tcpClient.isConnectionActive()) {
+                kind = MessageRow.Kind.SENT;
             } else {
-                textStyle.add("info");
+                // Trying to send a message without an active connection
+                serverStatus.setText("Please login to send messages to server");
+                kind = MessageRow.Kind.FAILED;
             }
         } else {
-            // Regular message
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
-                }
-                // Add empty space first (left), then the message (right)
-                messageContent.getChildren().addAll(messageText);
-                message.getChildren().addAll(spacer, messageContent);
-            } else {
-                textStyle.add("otherMessage");
-                // Add message first (left), then empty space (right)
-                messageContent.getChildren().addAll(messageSender, messageText);
-                message.getChildren().addAll(messageContent, spacer);
+            kind = MessageRow.Kind.RECEIVED;
+        }
+        conversations.add(conversation, new ShownMessage(msg, kind), !local);
+        refreshConversations();
+        if (local && !conversation.equals(conversations.getActive())) {
+            // Follow the message, the selection listener shows the conversation
+            conversationSelector.getSelectionModel().select(conversation);
+        }
+    }
+
+    /**
+     * Show the new messages of the active conversation, and update the unread
+     * counts in the conversation selector. Called on the GUI thread.
+     */
+    private void refreshConversations() {
+        refreshScheduled.set(false);
+        for (ShownMessage message : conversations.takeNew()) {
+            showMessage(message);
+        }
+        ObservableList<String> items = conversationSelector.getItems();
+        for (String conversation : conversations.takeChanged()) {
+            int index = items.indexOf(conversation);
+            if (index < 0) {
+                items.add(conversation);
+            } else if (!conversation.equals(conversations.getActive())) {
+                // Same item again: the cell shows the new unread count
+                items.set(index, conversation);
             }
         }
-        textOutput.getChildren().add(message);
+    }
+
+    /**
+     * Call refreshConversations() on the GUI thread, once for all the
+     * messages received until it runs.
+     */
+    private void scheduleRefresh() {
+        if (refreshScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::refreshConversations);
+        }
+    }
+
+    /**
+     * Show another conversation: its nodes are built now, from its buffered
+     * messages. Called on the GUI thread.
+     *
+     * @param conversation ConversationRouter.EVERYONE or the peer
+     */
+    private void showConversation(String conversation) {
+        ObservableList<Node> messages = textOutput.getChildren();
+        for (Node row : messages) {
+            messageRows.release((MessageRow) row.getUserData());
+        }
+        messages.clear();
+        for (ShownMessage message : conversations.activate(conversation)) {
+            showMessage(message);
+        }
+        refreshConversations();
+    }
+
+    /**
+     * Add a message to the chat window. The oldest message is removed when
+     * there are too many, and its nodes are reused for the next message.
+     */
+    private void showMessage(ShownMessage message) {
+        ObservableList<Node> messages = textOutput.getChildren();
+        if (messages.size() >= MAX_SHOWN_MESSAGES) {
+            Node oldest = messages.remove(0);
+            messageRows.release((MessageRow) oldest.getUserData());
+        }
+        MessageRow row = messageRows.acquire();
+        row.show(message.msg, message.kind);
+        messages.add(row.getNode());
+    }
+
+    /**
+     * Set what is called when the client has logged in for the first time,
+     * to measure the startup.
+     *
+     * @param startupMarks Called with the name of the phase, "login"
+     */
+    public void setStartupTimer(Consumer<String> startupMarks) {
+        this.startupMarks = startupMarks;
+    }
+
+    /**
+     * Use a connection which was started in the background while the GUI was
+     * loading, instead of the one started by the "Connect" button. Call on
+     * the GUI thread.
+     *
+     * @param client     The client, connecting or connected
+     * @param connecting Completed with the result of connect()
+     * @param host       The host it connects to
+     * @param port       The TCP port it connects to
+     */
+    public void useConnection(TCPClient client, CompletableFuture<Boolean> connecting, String host, String port) {
+        tcpClient = client;
+        hostInput.setText(host);
+        portInput.setText(port);
+        serverStatus.setText("Trying to connect...");
+        connectBtn.setText("Connecting...");
+        connectBtn.setDisable(true);
+        connecting.thenAccept(this::connectionDone);
     }
 
     /**
@@ -221,19 +462,49 @@ public class GUIController implements ChatListener {
         connectBtn.setDisable(true);
 
         // Run the connection in a new background thread to avoid GUI freeze
-        Thread connThread = new Thread(() -> {
-            boolean connected = tcpClient.connect(host, Integer.parseInt(port));
-            if (connected) {
-                // Connection established, start listening processes
-                tcpClient.addListener(this);
-                tcpClient.startListenThread();
-                startUserPolling();
-            }
-            updateButtons(connected);
-        });
+        Thread connThread = new Thread(() -> connectionDone(tcpClient.connect(host, Integer.parseInt(port))));
         connThread.start();
     }
 
+    /**
+     * Called on the connecting thread when the connection is established or
+     * has failed.
+     *
+     * @param connected True when the connection is established
+     */
+    private void connectionDone(boolean connected) {
+        if (connected) {
+            // Connection established, start listening processes
+            tcpClient.addListener(this);
+            if (transcript != null) {
+                tcpClient.addListener(transcript);
+            }
+            tcpClient.startListenThread();
+            startUserPolling();
+        }
+        updateButtons(connected);
+    }
+
+    /**
+     * Open the transcript of the received messages, in the directory given by
+     * the chat.transcript.dir system property.
+     *
+     * @return The transcript, or null when the property is not set or the
+     * transcript can't be opened
+     */
+    private static TranscriptStore openTranscript() {
+        String directory = System.getProperty("chat.transcript.dir");
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new TranscriptStore(new File(directory));
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not open the transcript: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Update texts and enabled/disabled state of GUI buttons according to
      * connection success.
@@ -321,6 +592,9 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onLoginResult(boolean success, String errMsg) {
+        if (success) {
+            startupMarks.accept("login");
+        }
         // Update the GUI. Do it on the GUI thread with Platform.runLater()
         Platform.runLater(() -> {
             if (success) {
@@ -339,8 +613,11 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onMessageReceived(TextMessage message) {
-        // Show the message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(false, message, false));
+        // Sort the message here, on the listening thread. The GUI thread only
+        // has work when the conversation is shown or an unread count changes.
+        String conversation = message.isPrivate() ? message.getSender() : ConversationRouter.EVERYONE;
+        conversations.add(conversation, new ShownMessage(message, MessageRow.Kind.RECEIVED));
+        scheduleRefresh();
     }
 
     /**
@@ -364,21 +641,12 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onUserList(String[] usernames) {
-        // Update the user list. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
-                    textInput.requestFocus();
-                    textInput.end();
-                });
-                userList.getChildren().add(text);
-            }
-        });
+        // Find the changes here, on the listening thread, and apply only them
+        // on the GUI thread
+        UserListModel.Changes changes = users.diff(usernames);
+        if (!changes.isEmpty()) {
+            Platform.runLater(() -> users.apply(changes));
+        }
     }
 
     /**
@@ -0,0 +1,309 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A chat client without the graphical interface, for bots, load tests and
+ * services: it uses TCPClient only, so no JavaFX class is loaded. Commands are
+ * read as lines, from stdin or a script, and the server events are written as
+ * lines, to stdout:
+ * <pre>
+ * /connect host port      connected host port | error ...
+ * /disconnect             disconnected
+ * /login name             loginok | loginerr ...
+ * /msg text (or "text")   (sent)            msg sender text
+ * /privmsg user text      (sent)            privmsg sender text
+ * /users                  users name1 name2 ...
+ * /help                   supported cmd1 cmd2 ...
+ * /await event [ms]       (waits for an event, e.g. "/await loginok 5000"),
+ *                         timeout event
+ * /sleep ms               (pauses the script)
+ * /quit                   (disconnects and stops)
+ * </pre>
+ * The other events are msgerr, cmderr and disconnected. Lines starting with
+ * "#" are comments. Run main() for a client on stdin/stdout, or create one
+ * with the streams of a service and call run() or execute().
+ */
+public class HeadlessClient implements ChatListener {
+    // How long /await waits when no time is given
+    private static final long DEFAULT_AWAIT_MILLIS = 10000;
+
+    private final TCPClient tcpClient;
+    private final PrintWriter out;
+
+    // Number of events received and not yet consumed by /await, per event name
+    private final Map<String, Integer> pendingEvents = new HashMap<>();
+
+    /**
+     * @param tcpClient The client to control
+     * @param out       Where the events are written, one per line
+     */
+    public HeadlessClient(TCPClient tcpClient, PrintWriter out) {
+        this.tcpClient = tcpClient;
+        this.out = out;
+        tcpClient.addListener(this);
+    }
+
+    /**
+     * Start a client on stdin and stdout. Usage:
+     * HeadlessClient [-tls] [-script file] [-transcript directory] [host port [username]]
+     * With -transcript the received messages are also stored in a searchable
+     * TranscriptStore in the given directory. The diagnostics of TCPClient go
+     * to stderr, so that stdout only has the events.
+     *
+     * @param args The command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        PrintWriter events = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), true);
+        System.setOut(System.err);
+
+        TCPClient tcpClient = new TCPClient();
+        Reader commands = new InputStreamReader(System.in, StandardCharsets.UTF_8);
+        TranscriptStore transcript = null;
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            if (args[i].equals("-tls")) {
+                try {
+                    tcpClient.setTlsTransport(TlsTransport.systemDefault());
+                } catch (GeneralSecurityException e) {
+                    System.out.println("ERROR: TLS is not available: " + e.getMessage());
+                    System.exit(1);
+                }
+                i++;
+            } else if (args[i].equals("-script") && i + 1 < args.length) {
+                commands = new InputStreamReader(new FileInputStream(args[i + 1]), StandardCharsets.UTF_8);
+                i += 2;
+            } else if (args[i].equals("-transcript") && i + 1 < args.length && transcript == null) {
+                transcript = new TranscriptStore(new File(args[i + 1]));
+                tcpClient.addListener(transcript);
+                i += 2;
+            } else {
+                System.out.println("Usage: HeadlessClient [-tls] [-script file] [-transcript directory]"
+                        + " [host port [username]]");
+                System.exit(1);
+            }
+        }
+
+        HeadlessClient client = new HeadlessClient(tcpClient, events);
+        if (i + 1 < args.length) {
+            client.execute("/connect " + args[i] + " " + args[i + 1]);
+            if (i + 2 < args.length) {
+                client.execute("/login " + args[i + 2]);
+            }
+        }
+        client.run(new BufferedReader(commands));
+        if (transcript != null) {
+            // Writes the messages still queued
+            transcript.close();
+        }
+    }
+
+    /**
+     * Execute commands until the end of the input or /quit, then disconnect.
+     *
+     * @param commands The commands, one per line
+     * @throws IOException When the commands can't be read
+     */
+    public void run(BufferedReader commands) throws IOException {
+        String line;
+        boolean running = true;
+        while (running && (line = commands.readLine()) != null) {
+            running = execute(line);
+        }
+        if (tcpClient.isConnectionActive()) {
+            tcpClient.disconnect();
+        }
+    }
+
+    /**
+     * Execute one command. A line which is not a command is sent as a public
+     * message.
+     *
+     * @param line The command
+     * @return False for /quit, true otherwise
+     */
+    public boolean execute(String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return true;
+        }
+        if (!line.startsWith("/")) {
+            tcpClient.sendPublicMessage(line);
+            return true;
+        }
+        String[] parts = line.split(" ", 3);
+        switch (parts[0]) {
+            case "/connect":
+                connect(parts);
+                break;
+            case "/disconnect":
+                tcpClient.disconnect();
+                break;
+            case "/login":
+                if (parts.length < 2) {
+                    event("error", "usage: /login name");
+                } else {
+                    tcpClient.tryLogin(line.substring("/login ".length()));
+                }
+                break;
+            case "/msg":
+                tcpClient.sendPublicMessage(line.length() > "/msg ".length() ? line.substring("/msg ".length()) : "");
+                break;
+            case "/privmsg":
+                if (parts.length < 3) {
+                    event("error", "usage: /privmsg user text");
+                } else {
+                    tcpClient.sendPrivateMessage(parts[1], parts[2]);
+                }
+                break;
+            case "/users":
+                tcpClient.refreshUserList();
+                break;
+            case "/help":
+                tcpClient.askSupportedCommands();
+                break;
+            case "/await":
+                if (parts.length < 2) {
+                    event("error", "usage: /await event [ms]");
+                } else {
+                    long millis = parts.length > 2 ? parseLong(parts[2], DEFAULT_AWAIT_MILLIS) : DEFAULT_AWAIT_MILLIS;
+                    if (!await(parts[1], millis)) {
+                        event("timeout", parts[1]);
+                    }
+                }
+                break;
+            case "/sleep":
+                sleep(parts.length > 1 ? parseLong(parts[1], 0) : 0);
+                break;
+            case "/quit":
+                return false;
+            default:
+                event("error", "unknown command " + parts[0]);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Wait until an event has been received, and consume it. An event received
+     * before the call counts, so "/login x" then "/await loginok" is safe.
+     *
+     * @param event  Name of the event, e.g. loginok or msg
+     * @param millis Max time to wait, in milliseconds
+     * @return True if the event was received, false after the timeout
+     */
+    public synchronized boolean await(String event, long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+        while (pendingEvents.getOrDefault(event, 0) == 0) {
+            if (left <= 0) {
+                return false;
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            left = deadline - System.currentTimeMillis();
+        }
+        pendingEvents.merge(event, -1, Integer::sum);
+        return true;
+    }
+
+    private void connect(String[] parts) {
+        int port = parts.length == 3 ? (int) parseLong(parts[2], -1) : -1;
+        if (port < 0) {
+            event("error", "usage: /connect host port");
+        } else if (tcpClient.isConnectionActive()) {
+            event("error", "already connected");
+        } else if (tcpClient.connect(parts[1], port)) {
+            tcpClient.startListenThread();
+            event("connected", parts[1] + " " + port);
+        } else {
+            event("error", "could not connect to " + parts[1] + " " + port);
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write an event line and wake up the commands waiting for it. Called on
+     * the listen thread for the server events.
+     */
+    private synchronized void event(String name, String argument) {
+        if (argument == null || argument.isEmpty()) {
+            out.println(name);
+        } else {
+            out.println(name + " " + argument);
+        }
+        pendingEvents.merge(name, 1, Integer::sum);
+        notifyAll();
+    }
+
+    @Override
+    public void onDisconnect() {
+        event("disconnected", null);
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        if (success) {
+            event("loginok", null);
+        } else {
+            event("loginerr", errMsg);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        event(message.isPrivate() ? "privmsg" : "msg", message.getSender() + " " + message.getText());
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        event("msgerr", errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        event("users", String.join(" ", usernames));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        event("supported", String.join(" ", commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        event("cmderr", errMsg);
+    }
+}
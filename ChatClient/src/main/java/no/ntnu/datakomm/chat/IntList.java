@@ -0,0 +1,39 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, used for the posting lists of the
+ * transcript index. Avoids boxing every message id into an Integer.
+ */
+class IntList {
+    private int[] values;
+    private int size = 0;
+
+    IntList() {
+        this(4);
+    }
+
+    IntList(int capacity) {
+        values = new int[Math.max(1, capacity)];
+    }
+
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    int get(int index) {
+        return values[index];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,39 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects durations of one kind of operation. Recording is lock-free and
+ * cheap enough for the hot path; summary() is meant for occasional polling.
+ */
+class LatencyRecorder {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos Duration of one operation, in nanoseconds
+     */
+    void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Record the time elapsed since the given start.
+     *
+     * @param startNanos Value of System.nanoTime() when the operation started
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The durations recorded so far
+     */
+    LatencySummary summary() {
+        return new LatencySummary(count.sum(), totalNanos.sum(), maxNanos.get());
+    }
+}
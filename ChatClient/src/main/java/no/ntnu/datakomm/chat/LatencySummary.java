@@ -0,0 +1,49 @@
+package no.ntnu.datakomm.chat;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of the recorded durations of one kind of operation, as exposed by
+ * ClientMetrics (and over JMX, as composite data).
+ */
+public final class LatencySummary {
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    /**
+     * @param count      Number of operations recorded
+     * @param totalNanos Total duration of all the operations, in nanoseconds
+     * @param maxNanos   Duration of the slowest operation, in nanoseconds
+     */
+    @ConstructorProperties({"count", "totalNanos", "maxNanos"})
+    public LatencySummary(long count, long totalNanos, long maxNanos) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @return Average duration in microseconds, 0 if nothing was recorded
+     */
+    public double getMeanMicros() {
+        return count > 0 ? totalNanos / 1000.0 / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fus max=%.1fus", count, getMeanMicros(), maxNanos / 1000.0);
+    }
+}
@@ -0,0 +1,148 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression for the "zmsg"/"zprivmsg" protocol extension. The text of a
+ * message is compressed with raw DEFLATE, using a preset dictionary of words
+ * that are common in chat text and pasted logs and stack traces, and sent as
+ * base64 so the command stays a single line of text:
+ * <pre>
+ * zmsg &lt;base64&gt;                      (client to server)
+ * zprivmsg &lt;recipient&gt; &lt;base64&gt;
+ * zmsg &lt;sender&gt; &lt;base64&gt;             (server to client)
+ * zprivmsg &lt;sender&gt; &lt;base64&gt;
+ * </pre>
+ * The extension is used only when the server lists "zmsg" in its supported
+ * commands. Compression and decompression may be called from different threads,
+ * each direction is synchronized separately.
+ */
+class MessageCompressor {
+    /**
+     * Command for a compressed public message
+     */
+    static final String PUBLIC_COMMAND = "zmsg";
+    /**
+     * Command for a compressed private message
+     */
+    static final String PRIVATE_COMMAND = "zprivmsg";
+    /**
+     * Messages shorter than this (in characters) are not worth compressing: the
+     * base64 overhead eats up the savings
+     */
+    static final int DEFAULT_THRESHOLD = 256;
+
+    // Decompressed messages larger than this are rejected, to protect against
+    // "zip bombs" from a malicious peer
+    private static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+    // Preset dictionary. DEFLATE finds matches closer to the end cheaper, so the
+    // most frequent strings are last.
+    private static final byte[] DICTIONARY = WireCodec.encode(
+            "https:// http:// www. .com .no .html .png "
+            + "DEBUG TRACE WARN WARNING FATAL INFO ERROR Error: "
+            + "org.springframework. org.apache. javafx. sun.reflect. jdk.internal. "
+            + "java.net.SocketException java.io.IOException "
+            + "java.lang.IllegalArgumentException java.lang.IllegalStateException "
+            + "java.lang.NullPointerException java.lang.RuntimeException "
+            + "java.util. java.lang. java.io. Exception in thread \"main\" "
+            + "Caused by: ... more (Native Method) (Unknown Source) .java:"
+            + "\tat no.ntnu. \tat java. \tat "
+            + "thanks please sorry what where when there their they "
+            + "would could should about just like know think have that this with "
+            + "from your you and the ");
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] deflateBuffer = new byte[4096];
+    private final byte[] inflateBuffer = new byte[4096];
+
+    /**
+     * Compress a message.
+     *
+     * @param text The message text
+     * @return The compressed message in base64, or null if compression would
+     * not make the message shorter
+     */
+    String compress(String text) {
+        byte[] input = WireCodec.encode(text);
+        byte[] output;
+        synchronized (deflater) {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input);
+            deflater.finish();
+            output = drain(deflater, deflateBuffer, input.length);
+        }
+        if (output == null) {
+            return null;
+        }
+        String encoded = Base64.getEncoder().withoutPadding().encodeToString(output);
+        return encoded.length() < input.length ? encoded : null;
+    }
+
+    /**
+     * Decompress a message.
+     *
+     * @param encoded The compressed message in base64
+     * @return The original message text
+     * @throws DataFormatException When the data is not a valid compressed
+     *                             message
+     */
+    String decompress(String encoded) throws DataFormatException {
+        byte[] input;
+        try {
+            input = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new DataFormatException("Invalid base64");
+        }
+        byte[] output = new byte[Math.max(64, input.length * 4)];
+        int length = 0;
+        synchronized (inflater) {
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(input);
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    if (length >= MAX_MESSAGE_SIZE) {
+                        throw new DataFormatException("Message too large");
+                    }
+                    output = Arrays.copyOf(output, Math.min(length * 2, MAX_MESSAGE_SIZE));
+                }
+                int count = inflater.inflate(output, length, output.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated message");
+                }
+                length += count;
+            }
+        }
+        return WireCodec.decode(output, 0, length);
+    }
+
+    /**
+     * Collect the compressed output of the deflater.
+     *
+     * @return The compressed bytes, or null if they are not shorter than the
+     * given limit
+     */
+    private static byte[] drain(Deflater deflater, byte[] buffer, int limit) {
+        byte[] output = new byte[Math.min(limit, buffer.length)];
+        int length = 0;
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            if (length + count >= limit) {
+                return null;
+            }
+            if (length + count > output.length) {
+                output = Arrays.copyOf(output, Math.min(limit, Math.max(length + count, output.length * 2)));
+            }
+            System.arraycopy(buffer, 0, output, length, count);
+            length += count;
+        }
+        return Arrays.copyOf(output, length);
+    }
+}
@@ -0,0 +1,175 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Drops duplicate messages before they reach a listener, for a setup where
+ * the same messages can be delivered again, like a server or bridge which
+ * replays the recent messages after a reconnect. Not used by default: the
+ * protocol has no message ids, so a user repeating a message ("ok", "yes")
+ * within the window would be dropped too. Wrap the real listener and register
+ * the wrapper instead:
+ * <pre>
+ * MessageDeduplicator dedup = new MessageDeduplicator(gui, 60000, 1 << 20);
+ * tcpClient.addListener(dedup);
+ * </pre>
+ * A message is a duplicate if a message with the same sender, private flag and
+ * text arrived within the time window. Messages are remembered by a 64-bit
+ * fingerprint only, so memory stays within the given cap however long the
+ * messages are; when the cap is reached the oldest fingerprints are forgotten
+ * before the window has passed. A false positive - a new message dropped
+ * because another message has the same fingerprint - is possible but
+ * extremely unlikely, see getFalsePositiveProbability(). All the other events
+ * are passed on unchanged.
+ */
+public class MessageDeduplicator implements ChatListener {
+    private final ChatListener listener;
+    private final FingerprintCache cache;
+    private final LongSupplier clock;
+    // Guarded by the monitor of this deduplicator
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param listener     The listener to pass unique messages to
+     * @param windowMillis How long a message is remembered
+     * @param maxBytes     Max memory used for remembering messages
+     */
+    public MessageDeduplicator(ChatListener listener, long windowMillis, int maxBytes) {
+        this(listener, windowMillis, maxBytes, 64, System::currentTimeMillis);
+    }
+
+    /**
+     * @param fingerprintBits Bits of the fingerprints kept, see FingerprintCache
+     * @param clock           Source of the current time in milliseconds
+     */
+    MessageDeduplicator(ChatListener listener, long windowMillis, int maxBytes, int fingerprintBits,
+                        LongSupplier clock) {
+        this.listener = listener;
+        this.cache = new FingerprintCache(windowMillis, maxBytes, fingerprintBits);
+        this.clock = clock;
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        boolean unique;
+        synchronized (this) {
+            unique = cache.add(fingerprint(message), clock.getAsLong());
+            if (unique) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        if (unique) {
+            listener.onMessageReceived(message);
+        }
+    }
+
+    /**
+     * @return Number of messages dropped as duplicates
+     */
+    public synchronized long getDuplicates() {
+        return hits;
+    }
+
+    /**
+     * @return Number of messages passed on
+     */
+    public synchronized long getUnique() {
+        return misses;
+    }
+
+    /**
+     * @return Share of the messages that were dropped as duplicates, 0-1
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    /**
+     * @return Probability that the next new message is wrongly dropped as a
+     * duplicate, given the number of messages currently remembered
+     */
+    public synchronized double getFalsePositiveProbability() {
+        return cache.falsePositiveProbability();
+    }
+
+    /**
+     * @return Number of messages currently remembered
+     */
+    public synchronized int getRemembered() {
+        return cache.size();
+    }
+
+    /**
+     * @return Max number of messages remembered, given the memory cap
+     */
+    public int getCapacity() {
+        return cache.capacity();
+    }
+
+    /**
+     * @return Bytes of memory used for remembering messages
+     */
+    public long getMemoryBytes() {
+        return cache.memoryBytes();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of sender, private flag and text, with a final mixing
+     * step so that all the bits depend on the whole message.
+     */
+    static long fingerprint(TextMessage message) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hashChars(hash, message.getSender());
+        hash = (hash ^ (message.isPrivate() ? 1 : 2)) * 0x100000001b3L;
+        hash = hashChars(hash, message.getText());
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long hashChars(long hash, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        // Separator, so that ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xFFFF) * 0x100000001b3L;
+    }
+
+    @Override
+    public void onDisconnect() {
+        listener.onDisconnect();
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        listener.onLoginResult(success, errMsg);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        listener.onMessageError(errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        listener.onUserList(usernames);
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        listener.onSupportedCommands(commands);
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        listener.onCommandError(errMsg);
+    }
+}
@@ -0,0 +1,131 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+/**
+ * The nodes showing one message in the chat window: a row with the message
+ * box on the left or the right, the sender and the text. The nodes are created
+ * once and reused for other messages (see NodePool): show() only changes the
+ * texts, and the style classes and children when they differ.
+ */
+class MessageRow {
+    /**
+     * How a message is shown
+     */
+    enum Kind {
+        /**
+         * Sent by us, on the right
+         */
+        SENT("sentMessage"),
+        /**
+         * Could not be sent (no connection), on the right
+         */
+        FAILED("failedMessage"),
+        /**
+         * From another user, with the sender, on the left
+         */
+        RECEIVED("otherMessage"),
+        /**
+         * An error, on the left
+         */
+        WARNING("warning"),
+        /**
+         * Information from the server, on the left
+         */
+        INFO("info");
+
+        // Computed once, instead of adding the classes to every new label
+        private final List<String> textStyles;
+
+        Kind(String style) {
+            textStyles = Collections.unmodifiableList(Arrays.asList(LABEL_STYLE, "message", style));
+        }
+    }
+
+    /**
+     * Number of nodes in a row
+     */
+    static final int NODE_COUNT = 5;
+
+    // The default class of a Label, replaced too when the list is set
+    private static final String LABEL_STYLE = "label";
+    private static final List<String> SENDER_STYLES =
+            Collections.unmodifiableList(Arrays.asList(LABEL_STYLE, "sender"));
+    private static final List<String> PRIVATE_SENDER_STYLES =
+            Collections.unmodifiableList(Arrays.asList(LABEL_STYLE, "sender", "private"));
+
+    private final HBox row = new HBox();
+    private final VBox content = new VBox();
+    private final Label sender = new Label();
+    private final Label text = new Label();
+    private final Pane spacer = new Pane();
+
+    MessageRow() {
+        text.setWrapText(true);
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        spacer.setMinSize(10, 1);
+        // Lets the controller find the row of a node it removes
+        row.setUserData(this);
+    }
+
+    /**
+     * @return The node to add to the chat window
+     */
+    Node getNode() {
+        return row;
+    }
+
+    /**
+     * Show a message in this row.
+     *
+     * @param msg  The message
+     * @param kind How to show it
+     */
+    void show(TextMessage msg, Kind kind) {
+        text.setText(msg.getText());
+        setIfChanged(text.getStyleClass(), kind.textStyles);
+        switch (kind) {
+            case SENT:
+            case FAILED:
+                // Empty space first (left), then the message (right)
+                setIfChanged(content.getChildren(), Collections.singletonList(text));
+                setIfChanged(row.getChildren(), Arrays.asList(spacer, content));
+                break;
+            case RECEIVED:
+                if (msg.isPrivate()) {
+                    sender.setText("Private from " + msg.getSender() + ":");
+                    setIfChanged(sender.getStyleClass(), PRIVATE_SENDER_STYLES);
+                } else {
+                    sender.setText(msg.getSender() + ":");
+                    setIfChanged(sender.getStyleClass(), SENDER_STYLES);
+                }
+                // Message first (left), then empty space (right)
+                setIfChanged(content.getChildren(), Arrays.asList(sender, text));
+                setIfChanged(row.getChildren(), Arrays.asList(content, spacer));
+                break;
+            default:
+                setIfChanged(content.getChildren(), Collections.singletonList(text));
+                setIfChanged(row.getChildren(), Collections.singletonList(content));
+                break;
+        }
+    }
+
+    /**
+     * Replace the content of a list, unless it already has that content:
+     * every change makes JavaFX redo the CSS or the layout of the nodes.
+     */
+    private static <T> void setIfChanged(ObservableList<T> list, List<? extends T> content) {
+        if (!list.equals(content)) {
+            list.setAll(content);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/**
+ * Keeps objects which are no longer used, to reuse them instead of creating
+ * new ones. Used for the GUI nodes of the chat messages: building a message
+ * row means creating several nodes and looking up their styles, reusing one
+ * only means setting its text. Not thread-safe, meant for the GUI thread.
+ *
+ * @param <T> Type of the pooled objects
+ */
+public class NodePool<T> {
+    private final Supplier<T> factory;
+    private final int maxIdle;
+    private final ArrayDeque<T> idle = new ArrayDeque<>();
+    private long created = 0;
+    private long reused = 0;
+
+    /**
+     * @param factory Creates a new object when none is idle
+     * @param maxIdle Max number of idle objects kept, the others are dropped
+     */
+    public NodePool(Supplier<T> factory, int maxIdle) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return An idle object, or a new one
+     */
+    public T acquire() {
+        T object = idle.pollLast();
+        if (object == null) {
+            created++;
+            return factory.get();
+        }
+        reused++;
+        return object;
+    }
+
+    /**
+     * Give back an object which is no longer used.
+     *
+     * @param object The object
+     */
+    public void release(T object) {
+        if (idle.size() < maxIdle) {
+            idle.addLast(object);
+        }
+    }
+
+    /**
+     * @return Number of objects created by the factory
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return Number of acquire() calls served by an idle object
+     */
+    public long getReused() {
+        return reused;
+    }
+
+    /**
+     * @return Number of idle objects
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+}
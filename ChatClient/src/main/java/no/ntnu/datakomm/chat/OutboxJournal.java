@@ -0,0 +1,422 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for outgoing messages. TCPClient appends every message
+ * to the journal before sending it, and marks it as sent when it has been
+ * written to the socket. Messages which were accepted but never written - the
+ * connection died while they were queued, or the application crashed - are
+ * still in the journal, and are sent again after the next login (see
+ * TCPClient.setOutboxJournal()).
+ *
+ * The journal is a memory-mapped file of two segments, used in turn:
+ * <pre>
+ * header: magic int | generation int
+ * record: length int | crc int | generation int | sent byte | payload (UTF-8, length bytes)
+ * </pre>
+ * The segment with the highest generation is the active one. A record with
+ * length 0, another generation or a wrong checksum ends it, so a record torn
+ * by a crash is ignored. Sent flags are updated in place. When every record
+ * has been sent the segment starts over at the beginning with a new
+ * generation number, which makes the old records invalid without erasing
+ * them. When the segment is full while some records are not sent, these are
+ * copied to the other segment, which then gets the next generation: the
+ * records are forced to disk before its header, so a crash during the copy
+ * leaves the old segment active.
+ *
+ * Durability uses group commit: append() returns only after the record has
+ * been forced to disk, but the forcing is done by one background thread, so
+ * all the records appended while a force is in progress share the next one.
+ * The sent flags are forced with the next commit, so after a crash a message
+ * may be sent twice, but never lost.
+ */
+public class OutboxJournal implements AutoCloseable {
+    /**
+     * Default size of a segment, the file holds two
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+
+    private static final int MAGIC = 0x4F424A31;
+    private static final int HEADER_SIZE = 8;
+    private static final int GENERATION_OFFSET = 4;
+    // length, crc, generation, sent flag
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final int SENT_FLAG_OFFSET = 12;
+    private static final int PAGE_SIZE = 4096;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int segmentSize;
+    private final Thread flusher;
+
+    // Everything below is guarded by the monitor of this journal
+    // Offset of the active segment in the file
+    private int base;
+    private int generation;
+    private int writePosition;
+    // Offsets of the records not sent yet, by command instance. In the order
+    // of the offsets, they are in the order of append().
+    private final Map<String, Integer> pending = new IdentityHashMap<>();
+    private long appended = 0;
+    private long durable = 0;
+    private boolean running = true;
+    // Part of the segment changed since the last force
+    private int dirtyStart = Integer.MAX_VALUE;
+    private int dirtyEnd = 0;
+
+    // Statistics
+    private long payloadBytes = 0;
+    private long forces = 0;
+    private long pagesForced = 0;
+    private long segmentSwitches = 0;
+
+    /**
+     * Open a journal with the default segment size.
+     *
+     * @param file The journal file, created if it does not exist
+     * @throws IOException When the file can not be opened or mapped
+     */
+    public OutboxJournal(File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open a journal. The messages not sent when it was last used are
+     * available from getPending().
+     *
+     * @param file        The journal file, created if it does not exist
+     * @param segmentSize Size of a segment in bytes, the file is twice as
+     *                    big. This limits the size of the unsent messages.
+     * @throws IOException When the file can not be opened or mapped
+     */
+    public OutboxJournal(File file, int segmentSize) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        if (this.file.length() > 2L * segmentSize) {
+            segmentSize = (int) (this.file.length() / 2);
+        }
+        this.segmentSize = segmentSize;
+        buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2L * segmentSize);
+        boolean firstValid = buffer.getInt(0) == MAGIC;
+        boolean secondValid = buffer.getInt(segmentSize) == MAGIC;
+        if (!firstValid && !secondValid) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(GENERATION_OFFSET, 0);
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.force();
+            firstValid = true;
+        }
+        base = (secondValid && (!firstValid || buffer.getInt(segmentSize + GENERATION_OFFSET)
+                > buffer.getInt(GENERATION_OFFSET))) ? segmentSize : 0;
+        generation = buffer.getInt(base + GENERATION_OFFSET);
+        recover();
+        flusher = new Thread(this::flushLoop, "outbox-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Append a command and wait until it is on disk.
+     *
+     * @param cmd The command. The same String instance must later be passed
+     *            to markSent().
+     * @return true when the command is in the journal, false if there was no
+     * room for it or the journal is closed
+     * @throws InterruptedException When interrupted while waiting for the disk
+     */
+    public boolean append(String cmd) throws InterruptedException {
+        byte[] payload = cmd.getBytes(StandardCharsets.UTF_8);
+        long sequence;
+        synchronized (this) {
+            if (!running) {
+                return false;
+            }
+            if (pending.isEmpty() && writePosition > base + HEADER_SIZE) {
+                startOver();
+            }
+            int size = RECORD_HEADER_SIZE + payload.length;
+            // Keep room for the terminating zero length
+            if (writePosition + size + 4 > base + segmentSize && !switchSegment(size)) {
+                return false;
+            }
+            int position = writePosition;
+            writeRecord(position, generation, payload);
+            writePosition += size;
+            markDirty(position, writePosition + 4);
+            pending.put(cmd, position);
+            payloadBytes += payload.length;
+            sequence = ++appended;
+            notifyAll();
+            while (durable < sequence && running) {
+                wait();
+            }
+            return durable >= sequence;
+        }
+    }
+
+    /**
+     * Mark a command as sent, so that it is not replayed. Does nothing if the
+     * command is not in the journal.
+     *
+     * @param cmd The instance passed to append(), or returned by getPending()
+     */
+    public synchronized void markSent(String cmd) {
+        Integer position = pending.remove(cmd);
+        if (position != null) {
+            buffer.put(position + SENT_FLAG_OFFSET, (byte) 1);
+            markDirty(position + SENT_FLAG_OFFSET, position + SENT_FLAG_OFFSET + 1);
+        }
+    }
+
+    /**
+     * @return The commands appended but not marked as sent, oldest first
+     */
+    public synchronized List<String> getPending() {
+        List<String> result = new ArrayList<>(pending.size());
+        for (Entry<String, Integer> record : pendingByPosition()) {
+            result.add(record.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of message bytes appended
+     */
+    public synchronized long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * @return Number of forces to disk (group commits)
+     */
+    public synchronized long getForces() {
+        return forces;
+    }
+
+    /**
+     * @return Number of commands appended
+     */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * @return Number of times the unsent records were copied to the other
+     * segment because the active one was full
+     */
+    public synchronized long getSegmentSwitches() {
+        return segmentSwitches;
+    }
+
+    /**
+     * Write amplification: bytes written to disk (whole pages, as the operating
+     * system writes them) per message byte appended.
+     *
+     * @return The ratio, 0 if nothing has been appended
+     */
+    public synchronized double getWriteAmplification() {
+        return payloadBytes > 0 ? (double) pagesForced * PAGE_SIZE / payloadBytes : 0;
+    }
+
+    /**
+     * Force the sent flags to disk and close the file. Threads waiting in
+     * append() return false.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not close the outbox journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Body of the flusher thread: force whatever has been appended since the
+     * last force, then wake up the appenders it covers.
+     */
+    private void flushLoop() {
+        while (true) {
+            long target;
+            int start;
+            int end;
+            synchronized (this) {
+                try {
+                    while (durable == appended && running) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (durable == appended) {
+                    return;
+                }
+                target = appended;
+                start = dirtyStart;
+                end = dirtyEnd;
+                dirtyStart = Integer.MAX_VALUE;
+                dirtyEnd = 0;
+            }
+            // Appenders keep writing while this runs; their records wait for the next force
+            buffer.force();
+            synchronized (this) {
+                durable = target;
+                forces++;
+                if (end > start) {
+                    pagesForced += (end - 1) / PAGE_SIZE - start / PAGE_SIZE + 1;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void markDirty(int start, int end) {
+        dirtyStart = Math.min(dirtyStart, start);
+        dirtyEnd = Math.max(dirtyEnd, end);
+    }
+
+    /**
+     * Continue at the beginning of the segment with a new generation number.
+     * Only when every record has been sent.
+     */
+    private void startOver() {
+        generation++;
+        buffer.putInt(base + GENERATION_OFFSET, generation);
+        buffer.putInt(base + HEADER_SIZE, 0);
+        writePosition = base + HEADER_SIZE;
+        markDirty(base + GENERATION_OFFSET, base + HEADER_SIZE + 4);
+    }
+
+    /**
+     * Copy the unsent records to the other segment, with the next generation,
+     * and make it the active one. Forced to disk before returning.
+     *
+     * @param size Size of the record to append next
+     * @return False if the unsent records and the next one would not fit,
+     * nothing is changed then
+     */
+    private boolean switchSegment(int size) {
+        List<Entry<String, Integer>> records = pendingByPosition();
+        int needed = HEADER_SIZE + size + 4;
+        for (Entry<String, Integer> record : records) {
+            needed += RECORD_HEADER_SIZE + buffer.getInt(record.getValue());
+        }
+        if (needed > segmentSize) {
+            return false;
+        }
+        int target = (base == 0) ? segmentSize : 0;
+        int nextGeneration = generation + 1;
+        int position = target + HEADER_SIZE;
+        for (Entry<String, Integer> record : records) {
+            byte[] payload = readPayload(record.getValue());
+            writeRecord(position, nextGeneration, payload);
+            pending.put(record.getKey(), position);
+            position += RECORD_HEADER_SIZE + payload.length;
+        }
+        buffer.putInt(position, 0);
+        // The records first: until the header has the new generation, the
+        // other segment stays the active one after a crash
+        buffer.force();
+        buffer.putInt(target, MAGIC);
+        buffer.putInt(target + GENERATION_OFFSET, nextGeneration);
+        buffer.force();
+        forces += 2;
+        pagesForced += (position + 3) / PAGE_SIZE - target / PAGE_SIZE + 2;
+        base = target;
+        generation = nextGeneration;
+        writePosition = position;
+        segmentSwitches++;
+        return true;
+    }
+
+    /**
+     * @return The records not sent yet, in the order they were appended
+     */
+    private List<Entry<String, Integer>> pendingByPosition() {
+        List<Entry<String, Integer>> records = new ArrayList<>(pending.entrySet());
+        records.sort(Entry.comparingByValue());
+        return records;
+    }
+
+    /**
+     * Write a record, its length last: that makes it visible to recover().
+     */
+    private void writeRecord(int position, int recordGeneration, byte[] payload) {
+        buffer.putInt(position + 4, checksum(recordGeneration, payload));
+        buffer.putInt(position + 8, recordGeneration);
+        buffer.put(position + SENT_FLAG_OFFSET, (byte) 0);
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + RECORD_HEADER_SIZE);
+        target.put(payload);
+        buffer.putInt(position + RECORD_HEADER_SIZE + payload.length, 0);
+        buffer.putInt(position, payload.length);
+    }
+
+    private byte[] readPayload(int position) {
+        byte[] payload = new byte[buffer.getInt(position)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + RECORD_HEADER_SIZE);
+        source.get(payload);
+        return payload;
+    }
+
+    /**
+     * Read the records of the active segment and collect the ones not sent.
+     */
+    private void recover() {
+        int end = base + segmentSize;
+        int position = base + HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= end) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length + 4 > end
+                    || buffer.getInt(position + 8) != generation) {
+                break;
+            }
+            byte[] payload = readPayload(position);
+            if (buffer.getInt(position + 4) != checksum(generation, payload)) {
+                // Torn by a crash: this and anything after it was never durable
+                break;
+            }
+            if (buffer.get(position + SENT_FLAG_OFFSET) == 0) {
+                pending.put(new String(payload, StandardCharsets.UTF_8), position);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        writePosition = position;
+        buffer.putInt(position, 0);
+    }
+
+    /**
+     * @return CRC-32 of the generation number and the payload of a record
+     */
+    private static int checksum(int generation, byte[] payload) {
+        CRC32 crc = new CRC32();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(generation >>> shift);
+        }
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
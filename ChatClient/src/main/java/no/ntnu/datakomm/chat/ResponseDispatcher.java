@@ -0,0 +1,286 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+
+/**
+ * Parses the lines received from the chat server and notifies the registered
+ * listeners about the corresponding events. Used both by TCPClient and by the
+ * multiplexed ChatSession, so that both generate exactly the same ChatListener
+ * events for the same server responses.
+ */
+class ResponseDispatcher {
+
+    private final List<ChatListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Commands listed in the last "supported" response from the server
+    private volatile Set<String> supportedCommands = Collections.emptySet();
+
+    // Created when the first compressed message arrives
+    private MessageCompressor decompressor;
+
+    // Where received commands and listener timings are counted, may be null
+    private final ClientMetrics metrics;
+
+    /**
+     * Create a dispatcher without metrics.
+     */
+    ResponseDispatcher() {
+        this(null);
+    }
+
+    /**
+     * @param metrics Where received commands and time spent in the listeners
+     *                are counted, null if not needed
+     */
+    ResponseDispatcher(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Register a new listener for events (login result, incoming message, etc)
+     *
+     * @param listener
+     */
+    void addListener(ChatListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregister an event listener
+     *
+     * @param listener
+     */
+    void removeListener(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Parse one line (one command) received from the server and notify the
+     * listeners about it. Unknown commands are ignored.
+     *
+     * @param serverResponse The line received from the server, without the newline
+     */
+    void dispatch(String serverResponse) {
+        String[] commandArgument = serverResponse.split(" ", 2);
+        String command = commandArgument[0];
+        String argument = (commandArgument.length == 2) ? commandArgument[1] : null;
+        dispatch(command, argument);
+    }
+
+    /**
+     * Notify the listeners about one command received from the server, already
+     * split into the command word and the argument (for example, from a binary
+     * frame).
+     *
+     * @param command  The command word
+     * @param argument The rest of the command, or null if there was none
+     */
+    void dispatch(String command, String argument) {
+        if (metrics != null) {
+            metrics.commandReceived(command);
+        }
+        switch (command) {
+        case "loginok":
+            if (metrics != null) {
+                metrics.loginCompleted();
+            }
+            onLoginResult(true, null);
+            break;
+
+        case "loginerr":
+            if (metrics != null) {
+                metrics.loginCompleted();
+            }
+            onLoginResult(false, argument);
+            break;
+
+        case "users":
+            onUsersList(splitWords(argument));
+            break;
+
+        case "msg": {
+            String[] senderMessage = splitWords(argument, 2);
+            String sender = senderMessage[0];
+            String message = (senderMessage.length == 2) ? senderMessage[1] : "";
+            onMsgReceived(false, sender, message);
+        }
+            break;
+
+        case "privmsg": {
+            String[] senderMessage = splitWords(argument, 2);
+            String sender = senderMessage[0];
+            String message = (senderMessage.length == 2) ? senderMessage[1] : "";
+            onMsgReceived(true, sender, message);
+        }
+            break;
+
+        case "msgerr":
+            onMsgError(argument);
+            break;
+
+        case "cmderr":
+            onCmdError(argument);
+            break;
+
+        case MessageCompressor.PUBLIC_COMMAND:
+            onCompressedMsgReceived(false, argument);
+            break;
+
+        case MessageCompressor.PRIVATE_COMMAND:
+            onCompressedMsgReceived(true, argument);
+            break;
+
+        case "supported": {
+            String[] commands = splitWords(argument);
+            supportedCommands = new HashSet<>(Arrays.asList(commands));
+            onSupported(commands);
+        }
+            break;
+
+        default:
+            break;
+        }
+    }
+
+    /**
+     * @param command A command word
+     * @return true if the server listed the command in its last "supported"
+     * response
+     */
+    boolean isSupported(String command) {
+        return supportedCommands.contains(command);
+    }
+
+    /**
+     * Decompress a "zmsg" or "zprivmsg" message and notify the listeners about
+     * it. A message which can't be decompressed is reported as a message error.
+     *
+     * @param priv     When true, this is a private message
+     * @param argument Sender and compressed text
+     */
+    private void onCompressedMsgReceived(boolean priv, String argument) {
+        String[] senderMessage = splitWords(argument, 2);
+        String sender = senderMessage[0];
+        if (decompressor == null) {
+            decompressor = new MessageCompressor();
+        }
+        try {
+            String message = (senderMessage.length == 2)
+                    ? decompressor.decompress(senderMessage[1]) : "";
+            onMsgReceived(priv, sender, message);
+        } catch (DataFormatException e) {
+            onMsgError("Invalid compressed message from " + sender);
+        }
+    }
+
+    /**
+     * Split a command argument into space-separated words. A missing argument
+     * gives an empty array instead of a NullPointerException.
+     */
+    private static String[] splitWords(String argument) {
+        return argument != null ? argument.split(" ") : new String[0];
+    }
+
+    private static String[] splitWords(String argument, int limit) {
+        return argument != null ? argument.split(" ", limit) : new String[] {""};
+    }
+
+    /**
+     * Notify listeners that login operation is complete (either with success or
+     * failure)
+     *
+     * @param success When true, login successful. When false, it failed
+     * @param errMsg  Error message if any
+     */
+    void onLoginResult(boolean success, String errMsg) {
+        notifyListeners(l -> l.onLoginResult(success, errMsg));
+    }
+
+    /**
+     * Notify listeners that socket was closed by the remote end (server or Internet
+     * error)
+     */
+    void onDisconnect() {
+        notifyListeners(listener -> listener.onDisconnect());
+    }
+
+    /**
+     * Notify listeners that server sent us a list of currently connected users
+     *
+     * @param users List with usernames
+     */
+    void onUsersList(String[] users) {
+        notifyListeners(l -> l.onUserList(users));
+    }
+
+    /**
+     * Notify listeners that a message is received from the server
+     *
+     * @param priv   When true, this is a private message
+     * @param sender Username of the sender
+     * @param text   Message text
+     */
+    void onMsgReceived(boolean priv, String sender, String text) {
+        TextMessage message = new TextMessage(sender, priv, text);
+        notifyListeners(l -> l.onMessageReceived(message));
+    }
+
+    /**
+     * Notify listeners that our message was not delivered
+     *
+     * @param errMsg Error description returned by the server
+     */
+    void onMsgError(String errMsg) {
+        notifyListeners(l -> l.onMessageError(errMsg));
+    }
+
+    /**
+     * Notify listeners that command was not understood by the server.
+     *
+     * @param errMsg Error message
+     */
+    void onCmdError(String errMsg) {
+        notifyListeners(l -> l.onCommandError(errMsg));
+    }
+
+    /**
+     * Notify listeners that a help response (supported commands) was received from
+     * the server
+     *
+     * @param commands Commands supported by the server
+     */
+    void onSupported(String[] commands) {
+        notifyListeners(l -> l.onSupportedCommands(commands));
+    }
+
+    /**
+     * Call every listener, measuring the time spent in each when metrics are
+     * collected. A listener which throws is reported and skipped: the others
+     * still get the event, and the thread reading the socket (shared by many
+     * sessions in a ChatSessionPool) keeps running.
+     *
+     * @param event The callback to make on each listener
+     */
+    private void notifyListeners(Consumer<ChatListener> event) {
+        for (ChatListener listener : listeners) {
+            long start = (metrics != null) ? System.nanoTime() : 0;
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                System.out.println("ERROR: Listener " + listener.getClass().getName() + " failed: " + e);
+            }
+            if (metrics != null) {
+                metrics.listenerDispatched(listener, start);
+            }
+        }
+    }
+}
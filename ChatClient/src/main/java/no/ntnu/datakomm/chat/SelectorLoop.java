@@ -0,0 +1,128 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One NIO selector thread which serves many chat sessions. All socket I/O of the
+ * sessions registered here happens on this thread. Other threads must not touch
+ * the selection keys directly, they submit tasks with execute() instead.
+ */
+class SelectorLoop implements Runnable {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param name Name of the selector thread
+     * @throws IOException When the selector can't be opened
+     */
+    SelectorLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start the selector thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * @return The selector where the sessions register their channels
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on the selector thread, as soon as possible.
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stop the selector thread and close all the sessions still registered.
+     */
+    void shutdown() {
+        execute(() -> {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                ((ChatSession) key.attachment()).disconnect();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.out.println("ERROR: An I/O error occured in the selector");
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("ERROR: A task failed in the selector: " + e);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                handle(key);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.out.println("ERROR: An I/O error occured when closing the selector");
+        }
+    }
+
+    /**
+     * Let the session owning the key handle the operations it is ready for.
+     * Whatever goes wrong only disconnects that session: the thread and the
+     * other sessions it serves keep running.
+     */
+    private void handle(SelectionKey key) {
+        ChatSession session = (ChatSession) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                session.onConnectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                session.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.onWritable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            session.disconnect();
+        } catch (RuntimeException e) {
+            System.out.println("ERROR: A session failed in the selector: " + e);
+            session.disconnect();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Rate-limited sending of commands for TCPClient. Commands are queued in three
+ * priority lanes and sent by a background thread, never faster than the
+ * configured rate. The control lane (login, help, users, ...) always goes
+ * first, then private messages, then public messages, so a burst of public
+ * messages can't delay a login. Each lane can additionally get its own, lower
+ * rate.
+ *
+ * Example: at most 20 commands per second with bursts of 5, of which at most
+ * 5 per second public messages:
+ * <pre>
+ * SendScheduler scheduler = new SendScheduler(20, 5);
+ * scheduler.setLaneRate(SendScheduler.Lane.PUBLIC, 5, 5);
+ * tcpClient.setSendScheduler(scheduler);
+ * </pre>
+ */
+public class SendScheduler {
+    /**
+     * Default max number of commands waiting in one lane
+     */
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+
+    /**
+     * Priority lanes, highest priority first
+     */
+    public enum Lane {
+        CONTROL, PRIVATE, PUBLIC
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final TokenBucket totalRate;
+    private final Map<Lane, TokenBucket> laneRates = new EnumMap<>(Lane.class);
+    private final Map<Lane, ArrayDeque<String>> queues = new EnumMap<>(Lane.class);
+    private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+
+    // The following fields are guarded by lock
+    private Predicate<String> sink;
+    private Thread thread;
+    private boolean running = false;
+
+    /**
+     * @param commandsPerSecond Max average number of commands sent per second
+     * @param burst             Max number of commands sent back-to-back
+     */
+    public SendScheduler(double commandsPerSecond, int burst) {
+        totalRate = new TokenBucket(commandsPerSecond, burst);
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Limit one lane further. The total rate still applies.
+     *
+     * @param lane              The lane to limit
+     * @param commandsPerSecond Max average number of commands per second in the lane
+     * @param burst             Max number of commands sent back-to-back from the lane
+     */
+    public void setLaneRate(Lane lane, double commandsPerSecond, int burst) {
+        lock.lock();
+        try {
+            laneRates.put(lane, new TokenBucket(commandsPerSecond, burst));
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param maxQueued Max number of commands waiting in one lane. Commands
+     *                  submitted to a full lane are rejected.
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @param lane A lane
+     * @return Number of commands waiting in the lane
+     */
+    public int getQueued(Lane lane) {
+        lock.lock();
+        try {
+            return queues.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find out which lane a command belongs to.
+     *
+     * @param cmd A protocol command
+     * @return The lane of the command
+     */
+    static Lane laneOf(String cmd) {
+        if (cmd.startsWith("msg ") || cmd.startsWith(MessageCompressor.PUBLIC_COMMAND + " ")) {
+            return Lane.PUBLIC;
+        } else if (cmd.startsWith("privmsg ") || cmd.startsWith(MessageCompressor.PRIVATE_COMMAND + " ")) {
+            return Lane.PRIVATE;
+        } else {
+            return Lane.CONTROL;
+        }
+    }
+
+    /**
+     * Start the sending thread. Called by TCPClient.
+     *
+     * @param sink Writes one command to the socket, returns false on error
+     */
+    void start(Predicate<String> sink) {
+        lock.lock();
+        try {
+            this.sink = sink;
+            if (!running) {
+                running = true;
+                thread = new Thread(this::sendLoop, "chat-send-scheduler");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the sending thread. Commands still waiting are dropped. Waits for
+     * the command being sent, if any, so that nothing is sent after this
+     * returns and a following start() can't leave two sending threads.
+     */
+    public void stop() {
+        Thread stopped;
+        lock.lock();
+        try {
+            running = false;
+            clear();
+            changed.signal();
+            stopped = thread;
+            thread = null;
+        } finally {
+            lock.unlock();
+        }
+        if (stopped != null && stopped != Thread.currentThread()) {
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue a command for sending.
+     *
+     * @param cmd The command
+     * @return true if the command was queued, false if its lane is full
+     */
+    boolean submit(String cmd) {
+        Lane lane = laneOf(cmd);
+        lock.lock();
+        try {
+            ArrayDeque<String> queue = queues.get(lane);
+            if (queue.size() >= maxQueued) {
+                return false;
+            }
+            queue.add(cmd);
+            changed.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop all waiting commands, for example when the connection is lost.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (ArrayDeque<String> queue : queues.values()) {
+                queue.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Body of the sending thread: take the next command the rate limits allow
+     * and send it, outside the lock.
+     */
+    private void sendLoop() {
+        try {
+            String cmd;
+            while ((cmd = takeNext()) != null) {
+                sink.test(cmd);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until a command may be sent and take it from its lane.
+     *
+     * @return The command, or null when the scheduler is stopped, or when
+     * this thread was replaced by a restart (stop() called from the sink)
+     */
+    private String takeNext() throws InterruptedException {
+        lock.lock();
+        try {
+            while (running && thread == Thread.currentThread()) {
+                long wait = Long.MAX_VALUE;
+                for (Lane lane : Lane.values()) {
+                    ArrayDeque<String> queue = queues.get(lane);
+                    if (!queue.isEmpty()) {
+                        TokenBucket laneRate = laneRates.get(lane);
+                        long laneWait = Math.max(totalRate.nanosUntilAvailable(),
+                                laneRate != null ? laneRate.nanosUntilAvailable() : 0);
+                        if (laneWait == 0) {
+                            totalRate.take();
+                            if (laneRate != null) {
+                                laneRate.take();
+                            }
+                            return queue.poll();
+                        }
+                        wait = Math.min(wait, laneWait);
+                    }
+                }
+                if (wait == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(Math.max(wait, TimeUnit.MICROSECONDS.toNanos(100)));
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
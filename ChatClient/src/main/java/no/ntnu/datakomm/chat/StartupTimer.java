@@ -0,0 +1,111 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records when the phases of the startup are done (toolkit started, first
+ * frame shown, connected, logged in...), in milliseconds since the JVM was
+ * started. The report can be appended to a CSV file, one line per start, to
+ * follow the startup time from one build to the next. Thread-safe: the phases
+ * are marked by the GUI thread and the connection threads.
+ */
+public class StartupTimer {
+    // The phases, in the order they were marked, with the wall clock time
+    private final Map<String, Long> marks = new LinkedHashMap<>();
+    private final List<String> expected = new ArrayList<>();
+    private boolean reported = false;
+
+    /**
+     * Set the phases which must be marked before the startup is complete.
+     *
+     * @param phases Names of the phases
+     */
+    public synchronized void expect(String... phases) {
+        for (String phase : phases) {
+            expected.add(phase);
+        }
+    }
+
+    /**
+     * Mark a phase as done, now. Only the first mark of a phase counts.
+     *
+     * @param phase Name of the phase
+     * @return True when this mark completes the startup: all the expected
+     * phases are marked, and this is the first time it returns true
+     */
+    public synchronized boolean mark(String phase) {
+        marks.putIfAbsent(phase, System.currentTimeMillis());
+        if (reported || !marks.keySet().containsAll(expected)) {
+            return false;
+        }
+        reported = true;
+        return true;
+    }
+
+    /**
+     * @param phase Name of the phase
+     * @return Milliseconds from the JVM start to the phase, or -1 if the phase
+     * has not been marked
+     */
+    public synchronized long getMillis(String phase) {
+        Long time = marks.get(phase);
+        return time == null ? -1 : time - jvmStartTime();
+    }
+
+    /**
+     * @return The marked phases and their times, e.g. "first frame 420 ms"
+     */
+    public synchronized String report() {
+        long start = jvmStartTime();
+        StringBuilder report = new StringBuilder("Startup:");
+        for (Map.Entry<String, Long> mark : marks.entrySet()) {
+            report.append(' ').append(mark.getKey()).append(' ')
+                    .append(mark.getValue() - start).append(" ms,");
+        }
+        report.setLength(report.length() - 1);
+        return report.toString();
+    }
+
+    /**
+     * Append the times of the expected phases to a CSV file: the date, then
+     * one column per phase, -1 for a phase which was not marked. A header line
+     * is written when the file is new.
+     *
+     * @param path The file
+     * @return True on success, false otherwise
+     */
+    public synchronized boolean appendTo(String path) {
+        boolean isNew = !new File(path).exists();
+        try (PrintWriter out = new PrintWriter(new FileWriter(path, true))) {
+            if (isNew) {
+                out.println("date," + String.join(",", expected));
+            }
+            StringBuilder line = new StringBuilder(LocalDateTime.now().withNano(0).toString());
+            for (String phase : expected) {
+                line.append(',').append(getMillis(phase));
+            }
+            out.println(line);
+            return true;
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not write the startup times to " + path);
+            return false;
+        }
+    }
+
+    /**
+     * The JVM start time. Looked up when needed only: the management classes
+     * take a few milliseconds to load, which should not delay the startup.
+     */
+    private static long jvmStartTime() {
+        return ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+}
@@ -2,18 +2,55 @@ package no.ntnu.datakomm.chat;
 
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 public class TCPClient {
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
+    private OutputStream toServer;
+    private WireReader fromServer;
     private Socket connection;
 
     // Hint: if you want to store a message for the last error, store it here
     private String lastError = null;
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    // Traffic, latency and listener timing counters
+    private final ClientMetrics metrics = new ClientMetrics();
+
+    // Parses server responses and notifies the registered listeners
+    private final ResponseDispatcher dispatcher = new ResponseDispatcher(metrics);
+
+    // Compression of large messages, see setCompressionEnabled()
+    private volatile boolean compressionEnabled = false;
+    private volatile int compressionThreshold = MessageCompressor.DEFAULT_THRESHOLD;
+    private final MessageCompressor compressor = new MessageCompressor();
+
+    // Binary framing, see setBinaryFramingEnabled()
+    private volatile boolean binaryFramingEnabled = false;
+    // True once we have asked the server to switch; commands are sent as frames
+    private boolean sendingFrames = false;
+    // True once the server has confirmed the switch; responses arrive as frames
+    private boolean receivingFrames = false;
+    private final WireReader.Frame frame = new WireReader.Frame();
+
+    // Rate limiting, null when commands are written immediately
+    private volatile SendScheduler sendScheduler;
+
+    // Messages are journaled here before they are sent, null when not used
+    private volatile OutboxJournal outbox;
+
+    // Journaled messages given to the current connection (written, queued or
+    // being written), not replayed at login. Guarded by itself.
+    private final Set<String> outboxInFlight = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Encrypts the connection, null for a plain connection
+    private volatile TlsTransport tls;
+
+    // Publishes the events with backpressure, null until asked for
+    private volatile ChatEventPublisher eventPublisher;
+
+    // Records the sent and received commands, null when not recording
+    private volatile TrafficRecorder recorder;
 
     /**
      * Connect to a chat server.
@@ -24,12 +61,23 @@ public class TCPClient {
      */
     public boolean connect(String host, int port) {
         boolean success = false;
+        long start = System.nanoTime();
         try {
-            connection = new Socket(host, port);
-            toServer = new PrintWriter(connection.getOutputStream(), true);
-            fromServer = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            TlsTransport transport = tls;
+            connection = (transport != null) ? transport.connect(host, port) : new Socket(host, port);
+            metrics.connected(start);
+            toServer = connection.getOutputStream();
+            fromServer = new WireReader(connection.getInputStream(), metrics);
+            clearOutboxInFlight();
+            sendingFrames = false;
+            receivingFrames = false;
             success = true;
+            if (compressionEnabled || binaryFramingEnabled) {
+                // Find out whether the server supports the extensions
+                askSupportedCommands();
+            }
         } catch (IOException e) {
+            metrics.connectFailed();
             System.out.println("ERROR: An I/O error occured when connecting to server");
         }
         return success;
@@ -54,6 +102,15 @@ public class TCPClient {
             }
             connection = null;
         }
+        if (sendScheduler != null) {
+            sendScheduler.clear();
+        }
+        // What this connection did not write is replayed after the next login
+        clearOutboxInFlight();
+        TrafficRecorder traffic = recorder;
+        if (traffic != null) {
+            traffic.flush();
+        }
         onDisconnect();
     }
 
@@ -65,27 +122,193 @@ public class TCPClient {
     }
 
     /**
-     * Send a command to server.
+     * Send a command to server. When a send scheduler is set, the command is
+     * queued and sent later, according to its rate limits.
      *
      * @param cmd A command. It should include the command word and optional
      *            attributes, according to the protocol.
-     * @return true on success, false otherwise
+     * @return true on success (command sent or queued), false otherwise
      */
     private boolean sendCommand(String cmd) {
         boolean success = false;
-        if (connection.isClosed() || toServer == null) {
+        if (connection == null || connection.isClosed() || toServer == null) {
             System.out.println("ERROR: Connection has been lost");
         } else if (cmd == null) {
             System.out.println("ERROR: Command was null");
         } else if (cmd.trim().length() == 0) {
             System.out.println("ERROR: Command was empty");
+        } else if (sendScheduler != null) {
+            success = sendScheduler.submit(cmd);
+            if (!success) {
+                System.out.println("ERROR: Send queue is full");
+            }
         } else {
-            toServer.println(cmd);
+            success = writeCommand(cmd);
+        }
+        return success;
+    }
+
+    /**
+     * Write a command to the socket, as a text line or as a binary frame.
+     *
+     * @param cmd The command
+     * @return true on success, false otherwise
+     */
+    private boolean writeCommand(String cmd) {
+        OutputStream out = toServer;
+        if (out == null) {
+            return false;
+        }
+        boolean success = false;
+        long start = System.nanoTime();
+        try {
+            // Several threads (GUI, user polling, scheduler) may send at the same time
+            synchronized (out) {
+                byte[] bytes = sendingFrames ? FrameCodec.encode(cmd) : WireCodec.encodeLine(cmd);
+                out.write(bytes);
+                metrics.lineOut(bytes.length, start);
+            }
             success = true;
+            TrafficRecorder traffic = recorder;
+            if (traffic != null) {
+                traffic.sent(cmd);
+            }
+            OutboxJournal journal = outbox;
+            if (journal != null) {
+                journal.markSent(cmd);
+                removeOutboxInFlight(cmd);
+            }
+        } catch (IOException e) {
+            metrics.sendError();
+            System.out.println("ERROR: An I/O error occured while sending command");
         }
         return success;
     }
 
+    /**
+     * Send commands through a rate-limiting scheduler with priority lanes
+     * instead of writing them immediately. Control commands (login, help,
+     * users) are sent before private messages, and private messages before
+     * public ones. Commands waiting in the scheduler are dropped when the
+     * connection is closed.
+     *
+     * @param scheduler The scheduler to use, or null to send immediately again
+     */
+    public void setSendScheduler(SendScheduler scheduler) {
+        if (sendScheduler != null && sendScheduler != scheduler) {
+            sendScheduler.stop();
+        }
+        sendScheduler = scheduler;
+        if (scheduler != null) {
+            scheduler.start(this::writeCommand);
+        }
+    }
+
+    /**
+     * Journal messages before sending them, so that messages which were
+     * accepted but not written to the socket when the connection died (or the
+     * application crashed) are sent again after the next successful login.
+     * A message counts as sent once it is written to the socket; messages lost
+     * after that, in the network, are not detected.
+     *
+     * @param journal The journal to use, or null to stop journaling
+     */
+    public void setOutboxJournal(OutboxJournal journal) {
+        outbox = journal;
+    }
+
+    /**
+     * Encrypt the connections with TLS, from the next connect() on. Keep the
+     * same TlsTransport for the reconnects, so that they resume the TLS session
+     * instead of doing a full handshake.
+     *
+     * @param transport The TLS settings, or null for plain connections
+     */
+    public void setTlsTransport(TlsTransport transport) {
+        tls = transport;
+    }
+
+    /**
+     * Record the commands sent and received from now on, with their time, to
+     * replay the session later with TrafficReplayer. The recording is flushed
+     * when the connection is closed; closing the recorder is up to the caller.
+     *
+     * @param recorder The recorder, or null to stop recording
+     */
+    public void setTrafficRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Send a message command, through the outbox journal when one is set.
+     *
+     * @param cmd The msg, privmsg, zmsg or zprivmsg command
+     * @return true if the command was sent or queued, or when it is safe in
+     * the journal and will be sent after the next login
+     */
+    private boolean sendMessageCommand(String cmd) {
+        OutboxJournal journal = outbox;
+        if (journal == null || connection == null) {
+            return sendCommand(cmd);
+        }
+        // In flight before it is in the journal, so that a login meanwhile does not replay it
+        synchronized (outboxInFlight) {
+            outboxInFlight.add(cmd);
+        }
+        boolean journaled = false;
+        try {
+            journaled = journal.append(cmd);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!journaled) {
+            removeOutboxInFlight(cmd);
+            System.out.println("ERROR: Message could not be written to the outbox journal");
+            return false;
+        }
+        // Even when sending fails now, the message is sent after the next login
+        if (!sendCommand(cmd)) {
+            removeOutboxInFlight(cmd);
+        }
+        return true;
+    }
+
+    /**
+     * Send the messages left in the outbox journal: the ones found when the
+     * journal was opened, and the ones a previous connection did not write.
+     * The messages of this connection are not sent again, even when they are
+     * still queued. Called on the listen thread when the server has accepted
+     * our login.
+     */
+    private void replayOutbox() {
+        OutboxJournal journal = outbox;
+        if (journal != null) {
+            for (String cmd : journal.getPending()) {
+                synchronized (outboxInFlight) {
+                    if (!outboxInFlight.add(cmd)) {
+                        continue;
+                    }
+                }
+                if (!sendCommand(cmd)) {
+                    removeOutboxInFlight(cmd);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void removeOutboxInFlight(String cmd) {
+        synchronized (outboxInFlight) {
+            outboxInFlight.remove(cmd);
+        }
+    }
+
+    private void clearOutboxInFlight() {
+        synchronized (outboxInFlight) {
+            outboxInFlight.clear();
+        }
+    }
+
     /**
      * Send a public message to all the recipients.
      *
@@ -93,7 +316,10 @@ public class TCPClient {
      * @return true if message sent, false on error
      */
     public boolean sendPublicMessage(String message) {
-        boolean success = sendCommand("msg " + message);
+        String compressed = compressIfUseful(message);
+        boolean success = (compressed != null)
+                ? sendMessageCommand(MessageCompressor.PUBLIC_COMMAND + " " + compressed)
+                : sendMessageCommand("msg " + message);
         if (!success) {
             lastError = "ERROR: Message could not be sent";
         }
@@ -106,6 +332,7 @@ public class TCPClient {
      * @param username Username to use
      */
     public void tryLogin(String username) {
+        metrics.loginSent();
         sendCommand("login " + username);
     }
 
@@ -125,13 +352,85 @@ public class TCPClient {
      * @return true if message sent, false on error
      */
     public boolean sendPrivateMessage(String recipient, String message) {
-        boolean success = sendCommand("privmsg " + recipient + " " + message);
+        String compressed = compressIfUseful(message);
+        boolean success = (compressed != null)
+                ? sendMessageCommand(MessageCompressor.PRIVATE_COMMAND + " " + recipient + " " + compressed)
+                : sendMessageCommand("privmsg " + recipient + " " + message);
         if (!success) {
             lastError = "ERROR: Private message could not be sent";
         }
         return false;
     }
 
+    /**
+     * Enable or disable compression of large messages. Compression is opt-in and
+     * only used when the server lists the "zmsg" extension in its supported
+     * commands. When enabled before connect(), the client asks the server for
+     * its supported commands right after connecting; otherwise call
+     * askSupportedCommands() to start using it.
+     *
+     * @param enabled When true, large messages are sent compressed if the
+     *                server supports it
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    /**
+     * Set the size below which messages are sent uncompressed even when
+     * compression is enabled.
+     *
+     * @param characters Minimum message length, in characters
+     */
+    public void setCompressionThreshold(int characters) {
+        compressionThreshold = characters;
+    }
+
+    /**
+     * Enable or disable binary framing. Binary framing is opt-in and only used
+     * when the server lists the "binframe" extension in its supported commands
+     * (see FrameCodec). Like compression, it is negotiated when the supported
+     * commands arrive, so enable it before connect(), or call
+     * askSupportedCommands() afterwards. Once switched, the connection stays in
+     * binary mode until it is closed.
+     *
+     * @param enabled When true, switch to binary frames if the server supports it
+     */
+    public void setBinaryFramingEnabled(boolean enabled) {
+        binaryFramingEnabled = enabled;
+    }
+
+    /**
+     * Ask the server to switch to binary frames, if we want them, the server
+     * supports them and we have not asked already. Called on the listen thread
+     * after every received command.
+     */
+    private void negotiateFraming() {
+        if (binaryFramingEnabled && toServer != null && dispatcher.isSupported(FrameCodec.EXTENSION)) {
+            synchronized (toServer) {
+                // Written directly: the switch must not wait behind queued messages
+                if (!sendingFrames && writeCommand(FrameCodec.EXTENSION)) {
+                    sendingFrames = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compress a message if compression is enabled, supported by the server and
+     * worth it for this message.
+     *
+     * @param message The message text
+     * @return The compressed message, or null if it should be sent as it is
+     */
+    private String compressIfUseful(String message) {
+        if (!compressionEnabled || message == null || message.length() < compressionThreshold
+                || !dispatcher.isSupported(MessageCompressor.PUBLIC_COMMAND)) {
+            return null;
+        }
+        return compressor.compress(message);
+    }
+
     /**
      * Send a request for the list of commands that server supports.
      */
@@ -148,6 +447,10 @@ public class TCPClient {
         String response = null;
         try {
             response = fromServer.readLine();
+            TrafficRecorder traffic = recorder;
+            if (traffic != null && response != null) {
+                traffic.received(response);
+            }
         } catch (IOException e) {
             System.out.println("ERROR: An I/O error occured while waiting for server response");
             disconnect();
@@ -155,6 +458,27 @@ public class TCPClient {
         return response;
     }
 
+    /**
+     * Wait for chat server's response when binary framing is in use
+     *
+     * @return true when a frame was received into the frame field, false when
+     * the connection was closed
+     */
+    private boolean waitServerFrame() {
+        boolean received = false;
+        try {
+            received = fromServer.readFrame(frame);
+            TrafficRecorder traffic = recorder;
+            if (traffic != null && received) {
+                traffic.received(frame.argument != null ? frame.command + " " + frame.argument : frame.command);
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: An I/O error occured while waiting for server response");
+            disconnect();
+        }
+        return received;
+    }
+
     /**
      * Get the last error message
      *
@@ -168,6 +492,34 @@ public class TCPClient {
         }
     }
 
+    /**
+     * Get the metrics of this client. Use getMetrics().snapshot() to pull the
+     * current values, or getMetrics().registerMBean() to publish them over JMX.
+     *
+     * @return The metrics, collected for the whole lifetime of the client
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the server events as a stream with backpressure, as an alternative
+     * to addListener(). The events are sent as the subscribers request them:
+     * while a subscriber has not requested more, nothing is read from the
+     * socket, so a slow subscriber slows the server down instead of letting
+     * events pile up in memory. The subscriptions are completed when the
+     * connection is closed.
+     *
+     * @return The publisher of the events, the same one for every call
+     */
+    public synchronized ChatFlow.Publisher<ChatEvent> getEventPublisher() {
+        if (eventPublisher == null) {
+            eventPublisher = new ChatEventPublisher();
+            addListener(eventPublisher);
+        }
+        return eventPublisher;
+    }
+
     /**
      * Start listening for incoming commands from the server in a new CPU thread.
      */
@@ -185,57 +537,33 @@ public class TCPClient {
      */
     private void parseIncomingCommands() {
         while (isConnectionActive()) {
-            String serverResponse = waitServerResponse();
-            if (serverResponse == null) {
-                disconnect();
-            } else {
-                String[] commandArgument = serverResponse.split(" ", 2);
-                String command = commandArgument[0];
-                String argument = (commandArgument.length == 2) ? commandArgument[1] : null;
-
-                switch (command) {
-                case "loginok":
-                    onLoginResult(true, null);
-                    break;
-
-                case "loginerr":
-                    onLoginResult(false, argument);
-                    break;
-
-                case "users":
-                    onUsersList(argument.split(" "));
-                    break;
-
-                case "msg": {
-                    String[] senderMessage = argument.split(" ", 2);
-                    String sender = senderMessage[0];
-                    String message = (senderMessage.length == 2) ? senderMessage[1] : "";
-                    onMsgReceived(false, sender, message);
-                }
-                    break;
-
-                case "privmsg": {
-                    String[] senderMessage = argument.split(" ", 2);
-                    String sender = senderMessage[0];
-                    String message = (senderMessage.length == 2) ? senderMessage[1] : "";
-                    onMsgReceived(true, sender, message);
+            ChatEventPublisher events = eventPublisher;
+            if (events != null) {
+                // Read the next command only when the subscribers want it
+                events.awaitDemand();
+            }
+            if (receivingFrames) {
+                if (waitServerFrame()) {
+                    dispatcher.dispatch(frame.command, frame.argument);
+                    if ("loginok".equals(frame.command)) {
+                        replayOutbox();
+                    }
+                } else {
+                    disconnect();
                 }
-                    break;
-
-                case "msgerr":
-                    onMsgError(argument);
-                    break;
-
-                case "cmderr":
-                    onCmdError(argument);
-                    break;
-
-                case "supported":
-                    onSupported(argument.split(" "));
-                    break;
-
-                default:
-                    break;
+            } else {
+                String serverResponse = waitServerResponse();
+                if (serverResponse == null) {
+                    disconnect();
+                } else if (serverResponse.equals(FrameCodec.ACCEPTED)) {
+                    // The server sends binary frames after this line
+                    receivingFrames = true;
+                } else {
+                    dispatcher.dispatch(serverResponse);
+                    if (serverResponse.equals("loginok")) {
+                        replayOutbox();
+                    }
+                    negotiateFraming();
                 }
             }
         }
@@ -247,9 +575,7 @@ public class TCPClient {
      * @param listener
      */
     public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
-        }
+        dispatcher.addListener(listener);
     }
 
     /**
@@ -258,29 +584,7 @@ public class TCPClient {
      * @param listener
      */
     public void removeListener(ChatListener listener) {
-        listeners.remove(listener);
-    }
-
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
-    // The following methods are all event-notificators - notify all the listeners
-    /////////////////////////////////////////////////////////////////////////////////////////////////////////// about
-    /////////////////////////////////////////////////////////////////////////////////////////////////////////// a
-    /////////////////////////////////////////////////////////////////////////////////////////////////////////// specific
-    /////////////////////////////////////////////////////////////////////////////////////////////////////////// event.
-    // By "event" here we mean "information received from the chat server".
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
-
-    /**
-     * Notify listeners that login operation is complete (either with success or
-     * failure)
-     *
-     * @param success When true, login successful. When false, it failed
-     * @param errMsg  Error message if any
-     */
-    private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
-            l.onLoginResult(success, errMsg);
-        }
+        dispatcher.removeListener(listener);
     }
 
     /**
@@ -288,54 +592,6 @@ public class TCPClient {
      * error)
      */
     private void onDisconnect() {
-        listeners.forEach(listener -> listener.onDisconnect());
-    }
-
-    /**
-     * Notify listeners that server sent us a list of currently connected users
-     *
-     * @param users List with usernames
-     */
-    private void onUsersList(String[] users) {
-        listeners.forEach(l -> l.onUserList(users));
-    }
-
-    /**
-     * Notify listeners that a message is received from the server
-     *
-     * @param priv   When true, this is a private message
-     * @param sender Username of the sender
-     * @param text   Message text
-     */
-    private void onMsgReceived(boolean priv, String sender, String text) {
-        listeners.forEach(l -> l.onMessageReceived(new TextMessage(sender, priv, text)));
-    }
-
-    /**
-     * Notify listeners that our message was not delivered
-     *
-     * @param errMsg Error description returned by the server
-     */
-    private void onMsgError(String errMsg) {
-        listeners.forEach(l -> l.onMessageError(errMsg));
-    }
-
-    /**
-     * Notify listeners that command was not understood by the server.
-     *
-     * @param errMsg Error message
-     */
-    private void onCmdError(String errMsg) {
-        listeners.forEach(l -> l.onCommandError(errMsg));
-    }
-
-    /**
-     * Notify listeners that a help response (supported commands) was received from
-     * the server
-     *
-     * @param commands Commands supported by the server
-     */
-    private void onSupported(String[] commands) {
-        listeners.forEach(l -> l.onSupportedCommands(commands));
+        dispatcher.onDisconnect();
     }
 }
@@ -41,7 +41,16 @@ public class TextMessage {
 
     @Override
     public boolean equals(Object o) {
-        return o != null && o.hashCode() == this.hashCode();
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        TextMessage other = (TextMessage) o;
+        return priv == other.priv
+                && Objects.equals(sender, other.sender)
+                && Objects.equals(text, other.text);
     }
 
     @Override
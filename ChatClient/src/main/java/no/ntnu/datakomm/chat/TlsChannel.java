@@ -0,0 +1,240 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS on a non-blocking SocketChannel, for ChatSession. Reads and writes never
+ * block: what can't be written yet stays in the outgoing buffer until flush()
+ * succeeds, and a partial record stays in the incoming buffer until the rest
+ * arrives. The handshake is driven by the same calls, so the selector thread
+ * only has to watch wantsWrite() and call read() and flush() when the socket is
+ * ready. The handshake tasks (certificate checks) run on the calling thread.
+ *
+ * Used by one thread at a time (the selector thread of the session).
+ */
+class TlsChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+    private final TlsTransport transport;
+    // Encrypted bytes received, in write mode
+    private ByteBuffer netIn;
+    // Encrypted bytes to send, in read mode
+    private ByteBuffer netOut;
+    // Sessions cached before the handshake, to detect a resumed one
+    private Set<ByteBuffer> cachedSessions;
+    private boolean handshakeCounted = false;
+
+    /**
+     * @param engine    The engine, in client mode
+     * @param channel   The connected channel
+     * @param transport Where the handshakes are counted
+     */
+    TlsChannel(SSLEngine engine, SocketChannel channel, TlsTransport transport) {
+        this.engine = engine;
+        this.channel = channel;
+        this.transport = transport;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize);
+        netOut.flip();
+    }
+
+    /**
+     * @return Size a buffer passed to read() must have to hold a whole record
+     */
+    int applicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Start the handshake, once the channel is connected.
+     */
+    void beginHandshake() throws IOException {
+        cachedSessions = transport.cachedSessions();
+        engine.beginHandshake();
+        handshake();
+    }
+
+    /**
+     * @return True until the handshake has completed
+     */
+    boolean isHandshaking() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * @return True if there are bytes to send, or the handshake has something
+     * to send: the socket should be watched for writing
+     */
+    boolean wantsWrite() {
+        return netOut.hasRemaining()
+                || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    /**
+     * Read what has arrived and decrypt it. Records received earlier but not
+     * decrypted yet (the buffer was full) are decrypted first, so call read()
+     * until it returns 0 or less.
+     *
+     * @param application Where the decrypted bytes are put. Must have room for
+     *                    applicationBufferSize() bytes.
+     * @return Number of decrypted bytes, 0 if none are available yet, -1 when
+     * the connection is closed
+     */
+    int read(ByteBuffer application) throws IOException {
+        int start = application.position();
+        if (!unwrap(application)) {
+            return -1;
+        }
+        if (application.position() == start) {
+            int count = channel.read(netIn);
+            if (count < 0) {
+                try {
+                    engine.closeInbound();
+                } catch (SSLException e) {
+                    // Closed without close_notify, nothing to do about it
+                }
+                return -1;
+            }
+            if (!unwrap(application)) {
+                return -1;
+            }
+        }
+        handshake();
+        return application.position() - start;
+    }
+
+    /**
+     * Encrypt and send bytes, as many as the socket accepts.
+     *
+     * @param application The bytes to send
+     * @return True if all of them are sent, false if the rest must wait until
+     * the socket accepts more (call write() or flush() again then)
+     */
+    boolean write(ByteBuffer application) throws IOException {
+        while (application.hasRemaining()) {
+            if (!flush()) {
+                return false;
+            }
+            wrap(application);
+        }
+        return flush();
+    }
+
+    /**
+     * Send the encrypted bytes waiting in the outgoing buffer.
+     *
+     * @return True if the buffer is empty now
+     */
+    boolean flush() throws IOException {
+        if (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        return !netOut.hasRemaining();
+    }
+
+    /**
+     * Do the handshake steps which don't need more input: run the tasks and
+     * send the handshake messages.
+     */
+    void handshake() throws IOException {
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!flush()) {
+                    return;
+                }
+                wrap(EMPTY);
+            } else {
+                if (!handshakeCounted && !isHandshaking()) {
+                    handshakeCounted = true;
+                    transport.handshakeCompleted(engine.getSession(), cachedSessions);
+                }
+                // Waiting for the server, or done
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decrypt the buffered records into the application buffer.
+     *
+     * @return False if the server has closed the TLS connection
+     */
+    private boolean unwrap(ByteBuffer application) throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, application);
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        return false;
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) {
+                            // The record is larger than the buffer
+                            ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                                    engine.getSession().getPacketBufferSize(), netIn.capacity() * 2));
+                            larger.put(netIn);
+                            larger.flip();
+                            netIn = larger;
+                        }
+                        // The rest of the record has not arrived yet
+                        return true;
+                    case BUFFER_OVERFLOW:
+                        // The application buffer is full, continue on the next read()
+                        return true;
+                    default:
+                        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                                || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                            handshake();
+                        }
+                        break;
+                }
+            }
+            return true;
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Encrypt into the outgoing buffer, which must be empty.
+     */
+    private void wrap(ByteBuffer application) throws IOException {
+        netOut.clear();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(application, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            // The packet size may grow after the handshake; the caller retries
+            netOut = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(),
+                    netOut.capacity() * 2));
+            netOut.flip();
+        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("The TLS connection is closed");
+        }
+        flush();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
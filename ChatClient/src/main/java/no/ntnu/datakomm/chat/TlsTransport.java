@@ -0,0 +1,177 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Encrypts the connections to the chat server with TLS. Used by TCPClient
+ * (see setTlsTransport()) and by ChatSessionPool, whose non-blocking sessions
+ * run TLS on an SSLEngine.
+ *
+ * The TLS sessions are cached in the SSLContext, per server host and port.
+ * A reconnect through the same TlsTransport resumes the previous session
+ * (a session ticket in TLS 1.3, the session ID in TLS 1.2) instead of doing a
+ * full handshake, which saves the certificate check and a round trip in TLS
+ * 1.2. So keep one TlsTransport for all the connections, don't create one per
+ * connect. The server certificate is checked against the host name.
+ *
+ * Example, with a certificate generated by keytool:
+ * <pre>
+ * TlsTransport tls = TlsTransport.trusting("server.p12", "secret".toCharArray());
+ * client.setTlsTransport(tls);
+ * client.connect("localhost", 1300);
+ * </pre>
+ */
+public class TlsTransport {
+    private final SSLContext context;
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+
+    /**
+     * @param context The context holding the trusted certificates and the
+     *                session cache
+     */
+    public TlsTransport(SSLContext context) {
+        this.context = context;
+    }
+
+    /**
+     * @return A transport trusting the certificates the JVM trusts by default
+     * @throws GeneralSecurityException When TLS is not available
+     */
+    public static TlsTransport systemDefault() throws GeneralSecurityException {
+        return new TlsTransport(SSLContext.getDefault());
+    }
+
+    /**
+     * Create a transport trusting the certificates in a key store, for example
+     * a self-signed server certificate.
+     *
+     * @param trustStore Path of the key store (PKCS12 or JKS)
+     * @param password   Password of the key store
+     * @return The transport
+     * @throws IOException              When the key store can't be read
+     * @throws GeneralSecurityException When the key store is not valid
+     */
+    public static TlsTransport trusting(String trustStore, char[] password)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(trustStore.endsWith(".jks") ? "JKS" : "PKCS12");
+        try (InputStream in = new FileInputStream(trustStore)) {
+            keyStore.load(in, password);
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return new TlsTransport(context);
+    }
+
+    /**
+     * Open a TLS connection and complete the handshake.
+     *
+     * @param host host name or IP address of the server
+     * @param port TCP port of the server
+     * @return The connected socket
+     * @throws IOException When connecting fails or the server is not trusted
+     */
+    public Socket connect(String host, int port) throws IOException {
+        Set<ByteBuffer> cached = cachedSessions();
+        // Created with the host and port, so that the session can be resumed
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+        try {
+            socket.setSSLParameters(withHostnameCheck(socket.getSSLParameters()));
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        handshakeCompleted(socket.getSession(), cached);
+        return socket;
+    }
+
+    /**
+     * Create the engine of a non-blocking client connection. The handshake
+     * is done by the caller (see TlsChannel).
+     *
+     * @param host host name or IP address of the server
+     * @param port TCP port of the server
+     * @return The engine, in client mode
+     */
+    SSLEngine newClientEngine(String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setSSLParameters(withHostnameCheck(engine.getSSLParameters()));
+        return engine;
+    }
+
+    /**
+     * @return The IDs of the client sessions cached before a handshake, to
+     * be passed to handshakeCompleted()
+     */
+    Set<ByteBuffer> cachedSessions() {
+        Set<ByteBuffer> ids = new HashSet<>();
+        Enumeration<byte[]> cached = context.getClientSessionContext().getIds();
+        while (cached.hasMoreElements()) {
+            ids.add(ByteBuffer.wrap(cached.nextElement()));
+        }
+        return ids;
+    }
+
+    /**
+     * Count a completed handshake. A resumed handshake continues a session
+     * which was in the cache before the handshake (TLS 1.2), or the session
+     * of a ticket received earlier (TLS 1.3, cached under its own ID); a full
+     * handshake creates a session with a new ID.
+     *
+     * @param session The session of the connection
+     * @param cached  cachedSessions() before the handshake started
+     */
+    void handshakeCompleted(SSLSession session, Set<ByteBuffer> cached) {
+        handshakes.increment();
+        byte[] id = session.getId();
+        if (id.length > 0 && cached.contains(ByteBuffer.wrap(id))) {
+            resumed.increment();
+        }
+    }
+
+    /**
+     * @return Number of completed handshakes
+     */
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * @return Number of handshakes which resumed an earlier session
+     */
+    public long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    /**
+     * @return The SSLContext of this transport
+     */
+    public SSLContext getContext() {
+        return context;
+    }
+
+    private static SSLParameters withHostnameCheck(SSLParameters parameters) {
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        return parameters;
+    }
+}
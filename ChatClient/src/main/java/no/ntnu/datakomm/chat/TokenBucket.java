@@ -0,0 +1,52 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * A token bucket rate limiter: tokens are added at a fixed rate up to the
+ * capacity of the bucket, and every command sent takes one token. The capacity
+ * allows short bursts above the average rate. Not thread safe - the
+ * SendScheduler uses it under its own lock.
+ */
+class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param perSecond Average rate, in tokens per second
+     * @param burst     Capacity of the bucket, at least 1
+     */
+    TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        tokensPerNano = perSecond / 1e9;
+        capacity = burst;
+        tokens = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return How long to wait until a token is available, 0 if one is
+     * available now
+     */
+    long nanosUntilAvailable() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    /**
+     * Take one token. Call only when nanosUntilAvailable() returned 0.
+     */
+    void take() {
+        tokens -= 1;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
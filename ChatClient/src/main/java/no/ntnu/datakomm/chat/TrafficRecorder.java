@@ -0,0 +1,206 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the commands a TCPClient sends and receives, with the time, so that
+ * the session can be replayed later (see TrafficReplayer). One text line per
+ * command:
+ * <pre>
+ * 1503 &gt; login alice
+ * 2210 &lt; loginok
+ * </pre>
+ * The time is in microseconds since the first recorded command, "&gt;" is a
+ * command sent to the server and "&lt;" one received from the server. The
+ * commands are recorded as they are on the wire (e.g. zmsg for a compressed
+ * message), binary frames as the command they carry. Thread-safe.
+ */
+public class TrafficRecorder implements Closeable {
+    /**
+     * Direction of a command sent to the server
+     */
+    public static final char SENT = '>';
+    /**
+     * Direction of a command received from the server
+     */
+    public static final char RECEIVED = '<';
+
+    private final Writer out;
+    private long startNanos = -1;
+    private long recorded = 0;
+    private boolean failed = false;
+
+    /**
+     * One recorded command.
+     */
+    public static final class Entry {
+        private final long micros;
+        private final char direction;
+        private final String command;
+
+        public Entry(long micros, char direction, String command) {
+            this.micros = micros;
+            this.direction = direction;
+            this.command = command;
+        }
+
+        /**
+         * @return Microseconds since the first command of the session
+         */
+        public long getMicros() {
+            return micros;
+        }
+
+        /**
+         * @return SENT or RECEIVED
+         */
+        public char getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return The command, without the newline
+         */
+        public String getCommand() {
+            return command;
+        }
+    }
+
+    /**
+     * @param out Where the commands are written. Closed by close().
+     */
+    public TrafficRecorder(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Record to a file, replacing its content.
+     *
+     * @param path The file
+     * @return The recorder
+     * @throws IOException When the file can't be created
+     */
+    public static TrafficRecorder toFile(String path) throws IOException {
+        return new TrafficRecorder(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(path), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Record a command sent to the server.
+     *
+     * @param command The command, without the newline
+     */
+    void sent(String command) {
+        record(SENT, command);
+    }
+
+    /**
+     * Record a command received from the server.
+     *
+     * @param command The command, without the newline
+     */
+    void received(String command) {
+        record(RECEIVED, command);
+    }
+
+    private synchronized void record(char direction, String command) {
+        long now = System.nanoTime();
+        if (startNanos < 0) {
+            startNanos = now;
+        }
+        if (failed) {
+            return;
+        }
+        try {
+            out.write(Long.toString((now - startNanos) / 1000));
+            out.write(' ');
+            out.write(direction);
+            out.write(' ');
+            out.write(command);
+            out.write('\n');
+            recorded++;
+        } catch (IOException e) {
+            // Report once, the session goes on without recording
+            failed = true;
+            System.out.println("ERROR: Traffic could not be recorded: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the recorded commands which are still buffered.
+     */
+    public synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("ERROR: Traffic could not be recorded: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Number of commands recorded
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Read a recorded session. Lines which are not recorded commands are
+     * skipped.
+     *
+     * @param in The recording
+     * @return The commands, in the recorded order
+     * @throws IOException When the recording can't be read
+     */
+    public static List<Entry> read(BufferedReader in) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            int space = line.indexOf(' ');
+            if (space < 0 || line.length() < space + 3 || line.charAt(space + 2) != ' ') {
+                continue;
+            }
+            char direction = line.charAt(space + 1);
+            if (direction != SENT && direction != RECEIVED) {
+                continue;
+            }
+            try {
+                long micros = Long.parseLong(line.substring(0, space));
+                entries.add(new Entry(micros, direction, line.substring(space + 3)));
+            } catch (NumberFormatException e) {
+                // Not a recorded command
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Read a recorded session from a file.
+     *
+     * @param path The file
+     * @return The commands, in the recorded order
+     * @throws IOException When the file can't be read
+     */
+    public static List<Entry> read(String path) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(path), StandardCharsets.UTF_8))) {
+            return read(in);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+
+/**
+ * Replays sessions recorded by TrafficRecorder against a chat server: one
+ * TCPClient per session, sending the recorded commands through the client
+ * API at the recorded times, as recorded (speed 1), N times faster (speed N)
+ * or as fast as possible (speed 0). The received commands go through the
+ * parser and the listeners of TCPClient, as in the real client.
+ *
+ * Reports the throughput, the latency of the commands with a reply (login,
+ * users, help), and how late the commands were sent compared to the
+ * recording. A session can be replayed several times in parallel; the copies
+ * use other user names (alice becomes alicex1, alicex2...), in the login and
+ * private message commands.
+ */
+public class TrafficReplayer {
+    // How long to wait for the last replies after the last command
+    private static final long DRAIN_MILLIS = 2000;
+    // Time to connect all the clients before the first command
+    private static final long START_DELAY_MILLIS = 200;
+
+    private final List<List<TrafficRecorder.Entry>> sessions;
+
+    /**
+     * The counters of one replay, shared by its clients.
+     */
+    private static final class Counters {
+        final LongAdder sent = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder received = new LongAdder();
+        final LongAdder failedConnections = new LongAdder();
+        final LongAdder unanswered = new LongAdder();
+        final LatencyRecorder replyLatency = new LatencyRecorder();
+        final LatencyRecorder sendLag = new LatencyRecorder();
+        // Time of the last command sent or received
+        final LongAccumulator lastActivity = new LongAccumulator(Math::max, 0);
+
+        void activity() {
+            lastActivity.accumulate(System.nanoTime());
+        }
+    }
+
+    /**
+     * The results of a replay.
+     */
+    public static final class Result {
+        private final int sessions;
+        private final double speed;
+        private final long failedConnections;
+        private final long sent;
+        private final long skipped;
+        private final long received;
+        private final long unanswered;
+        private final long elapsedNanos;
+        private final LatencySummary replyLatency;
+        private final LatencySummary sendLag;
+
+        private Result(Counters counters, int sessions, double speed, long startNanos) {
+            this.sessions = sessions;
+            this.speed = speed;
+            this.failedConnections = counters.failedConnections.sum();
+            this.sent = counters.sent.sum();
+            this.skipped = counters.skipped.sum();
+            this.received = counters.received.sum();
+            this.unanswered = counters.unanswered.sum();
+            // Until the last command, not including the wait for missing replies
+            this.elapsedNanos = Math.max(1, counters.lastActivity.get() - startNanos);
+            this.replyLatency = counters.replyLatency.summary();
+            this.sendLag = counters.sendLag.summary();
+        }
+
+        /**
+         * @return Number of commands sent
+         */
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return Number of server events received by the clients
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * @return Number of clients which could not connect
+         */
+        public long getFailedConnections() {
+            return failedConnections;
+        }
+
+        /**
+         * @return Number of login, users and help commands without a reply
+         */
+        public long getUnanswered() {
+            return unanswered;
+        }
+
+        /**
+         * @return Time from the login, users or help command to the reply
+         */
+        public LatencySummary getReplyLatency() {
+            return replyLatency;
+        }
+
+        /**
+         * @return How late the commands were sent, compared to the recording
+         */
+        public LatencySummary getSendLag() {
+            return sendLag;
+        }
+
+        /**
+         * @return Sent commands per second
+         */
+        public double getSentPerSecond() {
+            return sent * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return Received events per second
+         */
+        public double getReceivedPerSecond() {
+            return received * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Replayed %d sessions (%d failed) %s: %d commands sent in %.2f s (%.0f/s, %d skipped), "
+                            + "%d events received (%.0f/s), reply latency %s, %d unanswered, send lag %s",
+                    sessions, failedConnections, speed > 0 ? "at " + speed + "x" : "as fast as possible",
+                    sent, elapsedNanos / 1e9, getSentPerSecond(), skipped, received, getReceivedPerSecond(),
+                    replyLatency, unanswered, sendLag);
+        }
+    }
+
+    /**
+     * Times the replies of one client: the commands with a reply are answered
+     * in order, so each reply belongs to the oldest command waiting for it.
+     */
+    private static class ReplyTimer implements ChatListener {
+        private final Counters counters;
+        private final ArrayDeque<Long> logins = new ArrayDeque<>();
+        private final ArrayDeque<Long> userLists = new ArrayDeque<>();
+        private final ArrayDeque<Long> helps = new ArrayDeque<>();
+        private boolean disconnected = false;
+
+        ReplyTimer(Counters counters) {
+            this.counters = counters;
+        }
+
+        synchronized void expect(ArrayDeque<Long> replies) {
+            replies.addLast(System.nanoTime());
+        }
+
+        private synchronized void reply(ArrayDeque<Long> replies) {
+            receivedEvent();
+            Long start = replies.pollFirst();
+            if (start != null) {
+                counters.replyLatency.recordSince(start);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait until every command has its reply, or for millis at most.
+         */
+        synchronized void awaitReplies(long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            long left = millis;
+            while (!disconnected && left > 0 && !(logins.isEmpty() && userLists.isEmpty() && helps.isEmpty())) {
+                wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+            counters.unanswered.add(logins.size() + userLists.size() + helps.size());
+        }
+
+        private void receivedEvent() {
+            counters.received.increment();
+            counters.activity();
+        }
+
+        @Override
+        public synchronized void onDisconnect() {
+            disconnected = true;
+            notifyAll();
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+            reply(logins);
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            receivedEvent();
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+            receivedEvent();
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+            reply(userLists);
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+            reply(helps);
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+            receivedEvent();
+        }
+    }
+
+    /**
+     * @param sessions The recorded sessions, see TrafficRecorder.read()
+     */
+    public TrafficReplayer(List<List<TrafficRecorder.Entry>> sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * Replay the sessions. Returns when every client has sent its commands
+     * and received its replies (or waited for them for 2 seconds).
+     *
+     * @param host   The chat server
+     * @param port   TCP port of the chat server
+     * @param speed  1 to send the commands at the recorded times, N for N
+     *               times faster, 0 for as fast as possible
+     * @param copies Number of times each session is replayed, in parallel
+     * @return The results
+     * @throws InterruptedException When interrupted while waiting for the clients
+     */
+    public Result replay(String host, int port, double speed, int copies) throws InterruptedException {
+        Counters counters = new Counters();
+        List<Thread> clients = new ArrayList<>();
+        long startNanos = System.nanoTime() + START_DELAY_MILLIS * 1000000;
+        for (int copy = 0; copy < copies; copy++) {
+            String suffix = (copy == 0) ? "" : "x" + copy;
+            for (List<TrafficRecorder.Entry> session : sessions) {
+                Thread client = new Thread(
+                        () -> replaySession(session, suffix, host, port, speed, startNanos, counters),
+                        "replay-" + clients.size());
+                clients.add(client);
+                client.start();
+            }
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return new Result(counters, clients.size(), speed, startNanos);
+    }
+
+    private void replaySession(List<TrafficRecorder.Entry> session, String suffix, String host, int port,
+                               double speed, long startNanos, Counters counters) {
+        TCPClient client = new TCPClient();
+        ReplyTimer timer = new ReplyTimer(counters);
+        client.addListener(timer);
+        if (!client.connect(host, port)) {
+            counters.failedConnections.increment();
+            return;
+        }
+        client.startListenThread();
+        MessageCompressor decompressor = new MessageCompressor();
+        try {
+            sleepUntil(startNanos);
+            for (TrafficRecorder.Entry entry : session) {
+                if (entry.getDirection() != TrafficRecorder.SENT) {
+                    continue;
+                }
+                if (speed > 0) {
+                    long due = startNanos + (long) (entry.getMicros() * 1000 / speed);
+                    sleepUntil(due);
+                    counters.sendLag.record(Math.max(0, System.nanoTime() - due));
+                }
+                if (send(client, timer, entry.getCommand(), suffix, decompressor)) {
+                    counters.sent.increment();
+                    counters.activity();
+                } else {
+                    counters.skipped.increment();
+                }
+            }
+            timer.awaitReplies(DRAIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        client.disconnect();
+    }
+
+    /**
+     * Send a recorded command through the client API.
+     *
+     * @return False if the command is not replayed: unknown, or handled by
+     * the client itself (like the switch to binary frames)
+     */
+    private static boolean send(TCPClient client, ReplyTimer timer, String command, String suffix,
+                         MessageCompressor decompressor) {
+        String[] parts = command.split(" ", 3);
+        try {
+            switch (parts[0]) {
+                case "login":
+                    timer.expect(timer.logins);
+                    client.tryLogin(command.substring("login ".length()) + suffix);
+                    return true;
+                case "msg":
+                    client.sendPublicMessage(command.length() > 4 ? command.substring(4) : "");
+                    return true;
+                case "privmsg":
+                    client.sendPrivateMessage(parts[1] + suffix, parts.length > 2 ? parts[2] : "");
+                    return true;
+                case MessageCompressor.PUBLIC_COMMAND:
+                    client.sendPublicMessage(decompressor.decompress(command.substring(parts[0].length() + 1)));
+                    return true;
+                case MessageCompressor.PRIVATE_COMMAND:
+                    client.sendPrivateMessage(parts[1] + suffix, decompressor.decompress(parts[2]));
+                    return true;
+                case "users":
+                    timer.expect(timer.userLists);
+                    client.refreshUserList();
+                    return true;
+                case "help":
+                    timer.expect(timer.helps);
+                    client.askSupportedCommands();
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (DataFormatException | IndexOutOfBoundsException e) {
+            // A truncated or corrupted recording
+            return false;
+        }
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long left = nanos - System.nanoTime();
+        if (left > 0) {
+            Thread.sleep(left / 1000000, (int) (left % 1000000));
+        }
+    }
+
+    /**
+     * Replay recorded sessions. Usage:
+     * TrafficReplayer host port speed copies recording...
+     * with speed 0 for as fast as possible.
+     *
+     * @param args The command line arguments
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 5) {
+            System.out.println("Usage: TrafficReplayer host port speed copies recording...");
+            return;
+        }
+        List<List<TrafficRecorder.Entry>> sessions = new ArrayList<>();
+        for (int i = 4; i < args.length; i++) {
+            sessions.add(TrafficRecorder.read(args[i]));
+        }
+        TrafficReplayer replayer = new TrafficReplayer(sessions);
+        System.out.println(replayer.replay(args[0], Integer.parseInt(args[1]),
+                Double.parseDouble(args[2]), Integer.parseInt(args[3])));
+    }
+}
@@ -0,0 +1,32 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * One message found in the transcript: the message and when it was received.
+ */
+public final class TranscriptEntry {
+    private final long timestamp;
+    private final TextMessage message;
+
+    /**
+     * @param timestamp When the message was received, in milliseconds since
+     *                  the epoch
+     * @param message   The message
+     */
+    public TranscriptEntry(long timestamp, TextMessage message) {
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public TextMessage getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return new java.util.Date(timestamp) + " " + message;
+    }
+}
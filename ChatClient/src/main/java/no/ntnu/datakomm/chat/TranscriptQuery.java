@@ -0,0 +1,95 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Search criteria for TranscriptStore.search(). All criteria are optional and
+ * combined with AND. The setters return the query, so they can be chained:
+ * <pre>
+ * new TranscriptQuery().sender("bob").keywords("socket timeout").limit(20)
+ * </pre>
+ */
+public class TranscriptQuery {
+    private String sender;
+    private Boolean privateMessages;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private List<String> keywords = Collections.emptyList();
+    private int limit = 100;
+
+    /**
+     * @param sender Only messages from this user
+     * @return This query
+     */
+    public TranscriptQuery sender(String sender) {
+        this.sender = sender;
+        return this;
+    }
+
+    /**
+     * @param privateMessages true for private messages only, false for public
+     *                        messages only
+     * @return This query
+     */
+    public TranscriptQuery privateMessages(boolean privateMessages) {
+        this.privateMessages = privateMessages;
+        return this;
+    }
+
+    /**
+     * @param from Only messages received at or after this time, in milliseconds
+     *             since the epoch
+     * @param to   Only messages received before this time
+     * @return This query
+     */
+    public TranscriptQuery between(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * @param text Words which must all occur in the message text (case
+     *             insensitive, whole words)
+     * @return This query
+     */
+    public TranscriptQuery keywords(String text) {
+        keywords = new ArrayList<>(TranscriptStore.tokenize(text));
+        return this;
+    }
+
+    /**
+     * @param limit Max number of results, the newest messages are returned
+     * @return This query
+     */
+    public TranscriptQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    String getSender() {
+        return sender;
+    }
+
+    Boolean getPrivateMessages() {
+        return privateMessages;
+    }
+
+    long getFrom() {
+        return from;
+    }
+
+    long getTo() {
+        return to;
+    }
+
+    List<String> getKeywords() {
+        return keywords;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+}
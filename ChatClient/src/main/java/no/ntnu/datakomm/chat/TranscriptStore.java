@@ -0,0 +1,493 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local, searchable transcript of the received chat messages. Register it as a
+ * listener on the client (TCPClient.addListener()) and every received message
+ * is appended to a log file and indexed, so old conversations can be searched
+ * by sender, private/public, time range and keywords (see TranscriptQuery).
+ * The GUI registers one when the chat.transcript.dir system property is set,
+ * and HeadlessClient with the -transcript option.
+ *
+ * The listen thread only puts the message in a queue; a separate indexing
+ * thread writes it to the log and updates the index, so a slow disk never
+ * delays the chat. The log is append-only, one record per message:
+ * <pre>
+ * timestamp: long | private: byte | sender: int length + UTF-8 | text: int length + UTF-8
+ * </pre>
+ * The index is kept in memory and rebuilt from the log when the store is
+ * opened: every message gets a sequential id, and for each word and each
+ * sender there is a list of the ids of the messages containing it. Since ids
+ * are assigned in arrival order these lists are sorted, so a query intersects
+ * them in linear time and walks them from the end to get the newest messages.
+ * The texts themselves stay on disk and are read only for the results.
+ */
+public class TranscriptStore implements ChatListener, AutoCloseable {
+    private static final String LOG_FILE = "transcript.log";
+    // Longer senders or texts in the log mean a damaged record
+    private static final int MAX_FIELD_SIZE = 1 << 24;
+    // Marks the end of the queue when the store is closed
+    private static final TranscriptEntry END = new TranscriptEntry(0, null);
+
+    private final File logFile;
+    private final DataOutputStream log;
+    private final RandomAccessFile reader;
+    private final BlockingQueue<TranscriptEntry> queue = new LinkedBlockingQueue<>();
+    private final Thread indexer;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // The index, guarded by lock. Per message id: timestamp, flags and offset
+    // of the record in the log file.
+    private long[] timestamps = new long[1024];
+    private long[] offsets = new long[1024];
+    private boolean[] privateFlags = new boolean[1024];
+    private int count = 0;
+    private final Map<String, IntList> words = new HashMap<>();
+    private final Map<String, IntList> senders = new HashMap<>();
+    // End of the last indexed record in the log file
+    private long indexedLength = 0;
+    // Where the next record goes in the log file, used by the indexing thread
+    private long logLength;
+
+    // Number of messages received and indexed, guarded by the monitor of queue
+    private long received = 0;
+    private long indexed = 0;
+
+    /**
+     * Open the transcript in the given directory, creating it if needed, and
+     * index the messages already stored there.
+     *
+     * @param directory Where the log file is stored
+     * @throws IOException When the log can not be read or created
+     */
+    public TranscriptStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        logFile = new File(directory, LOG_FILE);
+        load();
+        // Open for appending first, it creates the file
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true), 1 << 16));
+        reader = new RandomAccessFile(logFile, "r");
+        indexer = new Thread(this::indexLoop, "transcript-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Queue a received message for storing and indexing. Returns immediately.
+     *
+     * @param message message received (private or public)
+     */
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        add(System.currentTimeMillis(), message);
+    }
+
+    /**
+     * Store a message with the given timestamp. Used for importing old
+     * messages; they must be added in time order.
+     *
+     * @param timestamp When the message was received, in ms since the epoch
+     * @param message   The message
+     */
+    public void add(long timestamp, TextMessage message) {
+        synchronized (queue) {
+            received++;
+        }
+        queue.add(new TranscriptEntry(timestamp, message));
+    }
+
+    /**
+     * Wait until all the messages received so far are written and indexed.
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public void sync() throws InterruptedException {
+        synchronized (queue) {
+            long target = received;
+            while (indexed < target && indexer.isAlive()) {
+                queue.wait(100);
+            }
+        }
+    }
+
+    /**
+     * @return Number of messages in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the stored messages matching a query.
+     *
+     * @param query The search criteria
+     * @return The matching messages, newest first, at most query.limit() of
+     * them. Empty list if reading the log fails.
+     */
+    public List<TranscriptEntry> search(TranscriptQuery query) {
+        List<TranscriptEntry> result = new ArrayList<>();
+        int[] found = new int[Math.max(0, query.getLimit())];
+        long[] starts = new long[found.length];
+        long[] ends = new long[found.length];
+        long[] times = new long[found.length];
+        int matches = 0;
+        lock.readLock().lock();
+        try {
+            List<IntList> lists = new ArrayList<>();
+            if (query.getSender() != null) {
+                lists.add(senders.get(query.getSender()));
+            }
+            for (String word : query.getKeywords()) {
+                lists.add(words.get(word));
+            }
+            if (lists.contains(null)) {
+                // A sender or word which never occurs
+                return result;
+            }
+            // Only ids before this one can be in the time range
+            int end = firstAtOrAfter(query.getTo());
+            int start = firstAtOrAfter(query.getFrom());
+            Boolean privateOnly = query.getPrivateMessages();
+            if (lists.isEmpty()) {
+                for (int id = end - 1; id >= start && matches < found.length; id--) {
+                    if (privateOnly == null || privateFlags[id] == privateOnly) {
+                        found[matches++] = id;
+                    }
+                }
+            } else {
+                // Walk the shortest list from the end, look the id up in the others
+                lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+                IntList shortest = lists.get(0);
+                int[] cursors = new int[lists.size()];
+                for (int i = 1; i < lists.size(); i++) {
+                    cursors[i] = lists.get(i).size() - 1;
+                }
+                for (int i = shortest.size() - 1; i >= 0 && matches < found.length; i--) {
+                    int id = shortest.get(i);
+                    if (id >= end) {
+                        continue;
+                    }
+                    if (id < start) {
+                        break;
+                    }
+                    if (privateOnly != null && privateFlags[id] != privateOnly) {
+                        continue;
+                    }
+                    if (containsAll(lists, cursors, id)) {
+                        found[matches++] = id;
+                    }
+                }
+            }
+            for (int i = 0; i < matches; i++) {
+                int id = found[i];
+                starts[i] = offsets[id];
+                ends[i] = (id + 1 < count) ? offsets[id + 1] : indexedLength;
+                times[i] = timestamps[id];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            synchronized (reader) {
+                for (int i = 0; i < matches; i++) {
+                    result.add(readEntry(starts[i], ends[i], times[i]));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not read the transcript: " + e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Stop indexing and close the log. Messages already received are written
+     * first.
+     */
+    @Override
+    public void close() {
+        queue.add(END);
+        try {
+            indexer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            log.close();
+            synchronized (reader) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not close the transcript: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Split a text into lower case words for the index.
+     *
+     * @param text The text, may be null
+     * @return The distinct words, in order of first occurrence
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Body of the indexing thread: write and index the queued messages. The
+     * log is flushed whenever the queue is empty, so a burst of messages is
+     * written in one go, and the burst is indexed after the flush, so that a
+     * search never finds a record which is not in the file yet.
+     */
+    private void indexLoop() {
+        List<TranscriptEntry> batch = new ArrayList<>();
+        IntList sizes = new IntList(64);
+        try {
+            while (true) {
+                TranscriptEntry entry = queue.take();
+                long offset = logLength;
+                while (entry != null && entry != END) {
+                    batch.add(entry);
+                    sizes.add(append(entry));
+                    entry = queue.poll();
+                }
+                log.flush();
+                for (int i = 0; i < batch.size(); i++) {
+                    index(batch.get(i).getTimestamp(), batch.get(i).getMessage(), offset, sizes.get(i));
+                    offset += sizes.get(i);
+                }
+                synchronized (queue) {
+                    indexed += batch.size();
+                    queue.notifyAll();
+                }
+                batch.clear();
+                sizes.clear();
+                if (entry == END) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not write the transcript, indexing stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write one message to the log.
+     *
+     * @return Size of the record
+     */
+    private int append(TranscriptEntry entry) throws IOException {
+        TextMessage message = entry.getMessage();
+        byte[] sender = bytes(message.getSender());
+        byte[] text = bytes(message.getText());
+        log.writeLong(entry.getTimestamp());
+        log.writeByte(message.isPrivate() ? 1 : 0);
+        log.writeInt(sender.length);
+        log.write(sender);
+        log.writeInt(text.length);
+        log.write(text);
+        int size = 8 + 1 + 4 + sender.length + 4 + text.length;
+        logLength += size;
+        return size;
+    }
+
+    private void index(long timestamp, TextMessage message, long offset, int size) {
+        Set<String> tokens = tokenize(message.getText());
+        lock.writeLock().lock();
+        try {
+            if (count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                privateFlags = Arrays.copyOf(privateFlags, count * 2);
+            }
+            int id = count++;
+            // Time ranges are found by binary search, so keep the timestamps
+            // sorted even if the clock is set back
+            timestamps[id] = (id > 0) ? Math.max(timestamp, timestamps[id - 1]) : timestamp;
+            offsets[id] = offset;
+            privateFlags[id] = message.isPrivate();
+            indexedLength = offset + size;
+            String sender = message.getSender() != null ? message.getSender() : "";
+            senders.computeIfAbsent(sender, s -> new IntList()).add(id);
+            for (String token : tokens) {
+                words.computeIfAbsent(token, t -> new IntList()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read the existing log and build the index. A record cut short by a crash
+     * is dropped, and the log truncated after the last complete record.
+     */
+    private void load() throws IOException {
+        if (!logFile.exists()) {
+            logLength = 0;
+            return;
+        }
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 1 << 16))) {
+            while (true) {
+                long timestamp = in.readLong();
+                boolean priv = in.readByte() != 0;
+                byte[] sender = readBytes(in);
+                byte[] text = readBytes(in);
+                int size = 8 + 1 + 4 + sender.length + 4 + text.length;
+                index(timestamp, new TextMessage(new String(sender, StandardCharsets.UTF_8), priv,
+                        new String(text, StandardCharsets.UTF_8)), valid, size);
+                valid += size;
+            }
+        } catch (EOFException e) {
+            // End of the log, possibly in the middle of a record
+        }
+        if (valid < logFile.length()) {
+            System.out.println("WARNING: Dropping incomplete last record of " + logFile);
+            try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+                file.setLength(valid);
+            }
+        }
+        logLength = valid;
+    }
+
+    /**
+     * Read one record with a single read call.
+     *
+     * @param start     Offset of the record in the log
+     * @param end       Offset of the end of the record
+     * @param timestamp Timestamp of the record, from the index
+     */
+    private TranscriptEntry readEntry(long start, long end, long timestamp) throws IOException {
+        byte[] record = new byte[(int) (end - start)];
+        reader.seek(start);
+        reader.readFully(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        in.readLong();
+        boolean priv = in.readByte() != 0;
+        String sender = new String(readBytes(in), StandardCharsets.UTF_8);
+        String text = new String(readBytes(in), StandardCharsets.UTF_8);
+        return new TranscriptEntry(timestamp, new TextMessage(sender, priv, text));
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_SIZE) {
+            // Garbage at the end of the log, treated like a cut-off record
+            throw new EOFException("Invalid record");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] bytes(String s) {
+        return (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The first message id with a timestamp at or after the given
+     * time, or count if there is none
+     */
+    private int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Check whether all the lists except the first contain the id. The ids are
+     * checked in decreasing order, so each cursor only moves backwards.
+     */
+    private static boolean containsAll(List<IntList> lists, int[] cursors, int id) {
+        for (int i = 1; i < lists.size(); i++) {
+            IntList list = lists.get(i);
+            while (cursors[i] >= 0 && list.get(cursors[i]) > id) {
+                cursors[i]--;
+            }
+            if (cursors[i] < 0 || list.get(cursors[i]) != id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The transcript only cares about messages
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+}
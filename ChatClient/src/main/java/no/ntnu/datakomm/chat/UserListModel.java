@@ -0,0 +1,212 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The users logged in, sorted by name (ignoring case), for a virtualized list
+ * view such as a JavaFX ListView. The server sends the whole list on every
+ * poll; instead of rebuilding the view each time, the model works out what
+ * changed and inserts or removes only those names, found by binary search.
+ * The list view then only updates the cells of the changed rows.
+ *
+ * The work is split in two steps, so that the expensive part stays off the
+ * GUI thread:
+ * <pre>
+ * // On the thread receiving the user list:
+ * UserListModel.Changes changes = model.diff(usernames);
+ * // On the GUI thread, in the same order as the diffs:
+ * Platform.runLater(() -&gt; model.apply(changes));
+ * </pre>
+ */
+public class UserListModel {
+    /**
+     * Order of the names: ignoring case, then by case so that the order is total
+     */
+    public static final Comparator<String> ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    // A batch changing more than 1/REBUILD_FRACTION of the list replaces it in one go
+    private static final int REBUILD_FRACTION = 4;
+
+    // The sorted names, as shown. Changed by apply() only.
+    private final List<String> users;
+    // The names as of the last diff(), used by the receiving thread only
+    private Set<String> known = new HashSet<>();
+
+    /**
+     * The names added and removed by one user list update.
+     */
+    public static final class Changes {
+        private final List<String> added;
+        private final List<String> removed;
+
+        Changes(List<String> added, List<String> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+
+        /**
+         * @return The names which were not in the previous list, sorted
+         */
+        public List<String> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return The names which are not in the new list, sorted
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return True if the list has not changed
+         */
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /**
+     * @param users The list shown by the view, for example an ObservableList.
+     *              Must be empty, the model keeps it sorted.
+     */
+    public UserListModel(List<String> users) {
+        this.users = users;
+    }
+
+    /**
+     * Compare a new user list from the server with the previous one. Costs
+     * O(n) hash lookups, but does not touch the shown list, so it can run on
+     * the thread which received the list.
+     *
+     * @param usernames The users currently logged in, in any order
+     * @return What to apply() to the shown list
+     */
+    public synchronized Changes diff(String[] usernames) {
+        Set<String> current = new HashSet<>(Arrays.asList(usernames));
+        List<String> added = new ArrayList<>();
+        for (String user : current) {
+            if (!known.contains(user)) {
+                added.add(user);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String user : known) {
+            if (!current.contains(user)) {
+                removed.add(user);
+            }
+        }
+        known = current;
+        added.sort(ORDER);
+        removed.sort(ORDER);
+        return new Changes(added, removed);
+    }
+
+    /**
+     * Apply the changes to the shown list: O(log n) to find each changed name.
+     * A large batch (the first list, or a big part of the room leaving at
+     * once) replaces the whole list, as one change of the list instead of
+     * thousands. Call on the thread owning the list (the GUI thread), in the
+     * order the changes were computed.
+     *
+     * @param changes The result of diff()
+     */
+    public void apply(Changes changes) {
+        int count = changes.added.size() + changes.removed.size();
+        if (count == 0) {
+            return;
+        }
+        if (count > users.size() / REBUILD_FRACTION) {
+            rebuild(changes);
+            return;
+        }
+        for (String user : changes.removed) {
+            int index = Collections.binarySearch(users, user, ORDER);
+            if (index >= 0) {
+                users.remove(index);
+            }
+        }
+        for (String user : changes.added) {
+            int index = Collections.binarySearch(users, user, ORDER);
+            if (index < 0) {
+                users.add(-index - 1, user);
+            }
+        }
+    }
+
+    /**
+     * Find the users whose name starts with a prefix, ignoring case. Used to
+     * complete the recipient of a private message.
+     *
+     * @param prefix The beginning of the name
+     * @param limit  Max number of names to return
+     * @return The matching names, sorted
+     */
+    public List<String> withPrefix(String prefix, int limit) {
+        int index = Collections.binarySearch(users, prefix, String.CASE_INSENSITIVE_ORDER);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // With several names equal ignoring case, the search may land on any of them
+        while (index > 0 && startsWith(users.get(index - 1), prefix)) {
+            index--;
+        }
+        List<String> matches = new ArrayList<>();
+        while (index < users.size() && matches.size() < limit && startsWith(users.get(index), prefix)) {
+            matches.add(users.get(index++));
+        }
+        return matches;
+    }
+
+    /**
+     * @return Number of users shown
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Merge the changes into a new sorted list, in O(n), and replace the shown
+     * list with it.
+     */
+    private void rebuild(Changes changes) {
+        List<String> merged = new ArrayList<>(users.size() + changes.added.size());
+        Set<String> removed = new HashSet<>(changes.removed);
+        int i = 0;
+        int j = 0;
+        List<String> added = changes.added;
+        while (i < users.size() || j < added.size()) {
+            if (j == added.size() || (i < users.size() && ORDER.compare(users.get(i), added.get(j)) < 0)) {
+                String user = users.get(i++);
+                if (!removed.contains(user)) {
+                    merged.add(user);
+                }
+            } else {
+                merged.add(added.get(j++));
+            }
+        }
+        replaceAll(merged);
+    }
+
+    /**
+     * Replace the content of the shown list. Overridden for lists which can
+     * do it as one change, like ObservableList.setAll().
+     *
+     * @param sorted The new content
+     */
+    protected void replaceAll(List<String> sorted) {
+        users.clear();
+        users.addAll(sorted);
+    }
+
+    private static boolean startsWith(String user, String prefix) {
+        return user.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+}
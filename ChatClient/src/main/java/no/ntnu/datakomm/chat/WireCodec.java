@@ -0,0 +1,131 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts protocol lines between text and bytes. The wire format is always
+ * UTF-8, independent of the default charset of the host. Protocol verbs and
+ * most chat traffic are plain ASCII, so lines consisting of ASCII only are
+ * converted directly, without going through a charset coder. Other lines use
+ * an encoder/decoder which is created once per thread and then reused.
+ */
+final class WireCodec {
+
+    /**
+     * The charset used on the wire
+     */
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(()
+            -> CHARSET.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private static final ThreadLocal<CharsetDecoder> DECODER = ThreadLocal.withInitial(()
+            -> CHARSET.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private WireCodec() {
+    }
+
+    /**
+     * Encode a line of text, including the terminating newline.
+     *
+     * @param line The line, without the newline
+     * @return The bytes to send
+     */
+    static byte[] encodeLine(String line) {
+        int length = line.length();
+        if (isAscii(line)) {
+            byte[] bytes = new byte[length + 1];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) line.charAt(i);
+            }
+            bytes[length] = '\n';
+            return bytes;
+        }
+        ByteBuffer encoded = encodeBuffer(line);
+        byte[] bytes = new byte[encoded.remaining() + 1];
+        encoded.get(bytes, 0, bytes.length - 1);
+        bytes[bytes.length - 1] = '\n';
+        return bytes;
+    }
+
+    /**
+     * Encode text (no newline is added).
+     *
+     * @param text The text to encode
+     * @return The UTF-8 bytes of the text
+     */
+    static byte[] encode(CharSequence text) {
+        if (isAscii(text)) {
+            byte[] bytes = new byte[text.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) text.charAt(i);
+            }
+            return bytes;
+        }
+        ByteBuffer encoded = encodeBuffer(text);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode received bytes into text.
+     *
+     * @param bytes  Buffer holding the bytes
+     * @param offset Where the text starts in the buffer
+     * @param length Number of bytes to decode
+     * @return The decoded text
+     */
+    static String decode(byte[] bytes, int offset, int length) {
+        if (isAscii(bytes, offset, length)) {
+            // Every ASCII byte is one char, the ISO-8859-1 decoder is a plain copy
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        CharsetDecoder decoder = DECODER.get().reset();
+        try {
+            return decoder.decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            // Can't happen, malformed input is replaced instead of reported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer encodeBuffer(CharSequence text) {
+        CharsetEncoder encoder = ENCODER.get().reset();
+        try {
+            return encoder.encode(CharBuffer.wrap(text));
+        } catch (CharacterCodingException e) {
+            // Can't happen, unmappable input is replaced instead of reported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
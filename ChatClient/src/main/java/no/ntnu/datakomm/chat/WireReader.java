@@ -0,0 +1,222 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the messages sent by the server: newline-terminated lines in the text
+ * protocol, or length-prefixed frames after binary framing has been negotiated
+ * (see FrameCodec). The stream is read in bulk into one reusable buffer and
+ * every message is decoded once, without the intermediate char buffers of a
+ * Reader. Not thread safe - meant to be used by the single thread reading the
+ * socket.
+ */
+class WireReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    // Where the bytes and messages read are counted, may be null
+    private final ClientMetrics metrics;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    // Collects a line or frame which does not fit in the buffer, or a line
+    // which spans two reads
+    private byte[] pending = new byte[0];
+    private int pendingLength = 0;
+
+    /**
+     * One frame read by readFrame(). Reused for all the frames, so that reading
+     * a frame allocates nothing but the decoded strings.
+     */
+    static final class Frame {
+        String command;
+        String argument;
+    }
+
+    /**
+     * @param in The stream to read from
+     */
+    WireReader(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * @param in      The stream to read from
+     * @param metrics Where the bytes and messages read are counted, null if
+     *                not needed
+     */
+    WireReader(InputStream in, ClientMetrics metrics) {
+        this.in = in;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Read one line.
+     *
+     * @return The line without the newline (and without a trailing carriage
+     * return), or null when the end of the stream is reached
+     * @throws IOException When reading from the stream fails
+     */
+    String readLine() throws IOException {
+        while (true) {
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    String line = takeLine(i);
+                    position = i + 1;
+                    return line;
+                }
+            }
+            // No newline in the buffered bytes, keep them and read more
+            appendPending(buffer, position, limit - position);
+            position = 0;
+            limit = read(buffer, 0, buffer.length);
+            if (limit < 0) {
+                limit = 0;
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Read one binary frame: varint length, opcode byte and payload.
+     *
+     * @param frame Where the command and argument of the frame are stored
+     * @return true when a frame was read, false when the end of the stream is
+     * reached
+     * @throws IOException When reading from the stream fails or the frame is
+     *                     invalid
+     */
+    boolean readFrame(Frame frame) throws IOException {
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            if (position == limit && !fill(1)) {
+                return false;
+            }
+            int b = buffer[position++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Invalid frame length");
+            }
+        }
+        if (length < 1 || length > FrameCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        byte[] bytes;
+        int offset;
+        if (length <= BUFFER_SIZE) {
+            // Usual case: the whole frame is decoded straight from the buffer
+            if (limit - position < length && !fill(length)) {
+                throw new IOException("Connection closed in the middle of a frame");
+            }
+            bytes = buffer;
+            offset = position;
+            position += length;
+        } else {
+            readLarge(length);
+            bytes = pending;
+            offset = 0;
+            pendingLength = 0;
+        }
+        int opcode = bytes[offset] & 0xFF;
+        String payload = (length > 1) ? WireCodec.decode(bytes, offset + 1, length - 1) : null;
+        FrameCodec.decodeInto(opcode, payload, frame);
+        if (metrics != null) {
+            metrics.lineIn();
+        }
+        return true;
+    }
+
+    /**
+     * Read from the stream, counting the bytes.
+     */
+    private int read(byte[] target, int offset, int length) throws IOException {
+        int count = in.read(target, offset, length);
+        if (count > 0 && metrics != null) {
+            metrics.bytesIn(count);
+        }
+        return count;
+    }
+
+    /**
+     * Make sure at least the given number of bytes is buffered, moving the
+     * unread bytes to the beginning of the buffer if needed.
+     *
+     * @param needed Number of bytes needed, at most the buffer size
+     * @return false if the stream ended before enough bytes were read
+     */
+    private boolean fill(int needed) throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < needed) {
+            int count = read(buffer, limit, buffer.length - limit);
+            if (count < 0) {
+                return false;
+            }
+            limit += count;
+        }
+        return true;
+    }
+
+    /**
+     * Read a frame larger than the buffer into the pending array.
+     */
+    private void readLarge(int length) throws IOException {
+        pendingLength = 0;
+        int buffered = Math.min(limit - position, length);
+        appendPending(buffer, position, buffered);
+        position += buffered;
+        if (pending.length < length) {
+            pending = Arrays.copyOf(pending, length);
+        }
+        while (pendingLength < length) {
+            int count = read(pending, pendingLength, length - pendingLength);
+            if (count < 0) {
+                throw new IOException("Connection closed in the middle of a frame");
+            }
+            pendingLength += count;
+        }
+    }
+
+    /**
+     * @return The complete line ending at the given index of the buffer
+     */
+    private String takeLine(int newlineIndex) {
+        if (metrics != null) {
+            metrics.lineIn();
+        }
+        if (pendingLength == 0) {
+            int end = newlineIndex;
+            if (end > position && buffer[end - 1] == '\r') {
+                end--;
+            }
+            return WireCodec.decode(buffer, position, end - position);
+        }
+        appendPending(buffer, position, newlineIndex - position);
+        int end = pendingLength;
+        if (end > 0 && pending[end - 1] == '\r') {
+            end--;
+        }
+        pendingLength = 0;
+        return WireCodec.decode(pending, 0, end);
+    }
+
+    private void appendPending(byte[] source, int offset, int length) {
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+        }
+        System.arraycopy(source, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+}
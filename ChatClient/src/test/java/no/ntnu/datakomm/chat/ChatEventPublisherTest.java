@@ -0,0 +1,172 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChatEventPublisherTest {
+    private static final int MESSAGES = 2000;
+
+    // How many ms to wait for the events to arrive
+    private static final int WAIT_TIME = 5000;
+
+    private ServerSocket serverSocket;
+
+    /**
+     * Start a server which sends a user list, then MESSAGES messages to the
+     * first client, then closes the connection
+     *
+     * @throws IOException When the server can't be started
+     */
+    @Before
+    public void startServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread server = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                OutputStream out = socket.getOutputStream();
+                out.write("users alice bob\n".getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < MESSAGES; i++) {
+                    out.write(("msg alice message " + i + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                // The client disconnected
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * A subscriber which keeps the events and requests them when asked to.
+     */
+    private static class Collector implements ChatFlow.Subscriber<ChatEvent> {
+        final List<ChatEvent> events = new ArrayList<>();
+        ChatFlow.Subscription subscription;
+        Throwable error;
+        boolean completed = false;
+
+        @Override
+        public void onSubscribe(ChatFlow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(ChatEvent item) {
+            events.add(item);
+        }
+
+        @Override
+        public synchronized void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            completed = true;
+        }
+
+        synchronized int count() {
+            return events.size();
+        }
+    }
+
+    /**
+     * Test that no more events are sent than requested, that the client stops
+     * reading while there is no demand, and that the subscription completes
+     * when the connection is closed
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void testDemand() throws InterruptedException {
+        TCPClient client = new TCPClient();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        Collector collector = new Collector();
+        client.getEventPublisher().subscribe(collector);
+        assertNotNull(collector.subscription);
+        assertTrue(client.connect("localhost", serverSocket.getLocalPort()));
+        client.startListenThread();
+
+        // Nothing is read before the first request
+        Thread.sleep(200);
+        assertEquals(0, collector.count());
+        assertEquals(0, counter.userList);
+
+        collector.subscription.request(5);
+        waitFor(() -> collector.count() == 5);
+        Thread.sleep(200);
+        assertEquals(5, collector.count());
+        // The other listeners wait too: the reader has stopped
+        assertEquals(4, counter.msg);
+        synchronized (collector) {
+            assertEquals(ChatEvent.Type.USERS, collector.events.get(0).getType());
+            assertArrayEquals(new String[]{"alice", "bob"}, collector.events.get(0).getWords());
+            assertEquals("message 3", collector.events.get(4).getMessage().getText());
+        }
+
+        collector.subscription.request(Long.MAX_VALUE);
+        waitFor(() -> collector.count() == MESSAGES + 1);
+        assertEquals(MESSAGES + 1, collector.count());
+        waitFor(() -> collector.completed);
+        assertTrue(collector.completed);
+        assertNull(collector.error);
+        client.disconnect();
+    }
+
+    /**
+     * Test that a cancelled subscriber no longer holds the reader back, and
+     * that a request of 0 events is an error
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void testCancel() throws InterruptedException {
+        TCPClient client = new TCPClient();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        Collector slow = new Collector();
+        Collector invalid = new Collector();
+        client.getEventPublisher().subscribe(slow);
+        client.getEventPublisher().subscribe(invalid);
+        assertTrue(client.connect("localhost", serverSocket.getLocalPort()));
+        client.startListenThread();
+
+        invalid.subscription.request(0);
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+        slow.subscription.request(1);
+        waitFor(() -> slow.count() == 1);
+        slow.subscription.cancel();
+        waitFor(() -> counter.msg == MESSAGES);
+        assertEquals(MESSAGES, counter.msg);
+        assertEquals(1, slow.count());
+        assertEquals(0, invalid.count());
+        client.disconnect();
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIME;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChatSessionTest {
+    // How many ms to wait for the responses to arrive
+    private static final int WAIT_TIME = 5000;
+    private static final int SESSIONS = 5;
+
+    /**
+     * Test several plain sessions served by one selector thread: login,
+     * public and private messages, and disconnect
+     *
+     * @throws Exception When the test is interrupted or the server can't be started
+     */
+    @Test
+    public void testSessionsOnOneThread() throws Exception {
+        try (StandInChatServer server = new StandInChatServer();
+                ChatSessionPool pool = new ChatSessionPool(1)) {
+            ChatSession[] sessions = new ChatSession[SESSIONS];
+            SessionListener[] listeners = new SessionListener[SESSIONS];
+            for (int i = 0; i < SESSIONS; i++) {
+                listeners[i] = new SessionListener();
+                sessions[i] = pool.openSession("localhost", server.getPort(), listeners[i]);
+                sessions[i].tryLogin("user" + i);
+            }
+            waitFor(() -> {
+                int logins = 0;
+                for (SessionListener listener : listeners) {
+                    logins += listener.logins.get();
+                }
+                return logins == SESSIONS;
+            });
+            assertEquals(SESSIONS, server.getUserCount());
+            for (int i = 0; i < SESSIONS; i++) {
+                assertEquals(1, listeners[i].logins.get());
+                assertTrue(sessions[i].isConnectionActive());
+            }
+
+            assertTrue(sessions[0].sendPublicMessage("hello"));
+            assertTrue(sessions[1].sendPrivateMessage("user2", "secret"));
+            waitFor(() -> {
+                int received = 0;
+                for (SessionListener listener : listeners) {
+                    received += listener.messages.get() + listener.privateMessages.get();
+                }
+                return received == SESSIONS;
+            });
+            // Everyone but the sender gets the public message
+            assertEquals(0, listeners[0].messages.get());
+            for (int i = 1; i < SESSIONS; i++) {
+                assertEquals(1, listeners[i].messages.get());
+            }
+            assertEquals(1, listeners[2].privateMessages.get());
+            assertEquals(0, listeners[3].privateMessages.get());
+
+            sessions[0].disconnect();
+            // Only notified once
+            sessions[0].disconnect();
+            assertEquals(1, listeners[0].disconnects.get());
+            assertFalse(sessions[0].isConnectionActive());
+            assertFalse(sessions[0].sendPublicMessage("too late"));
+            waitFor(() -> server.getUserCount() == SESSIONS - 1);
+            assertEquals(SESSIONS - 1, server.getUserCount());
+
+            // All the events were delivered on the single selector thread
+            Set<String> threads = new HashSet<>();
+            for (SessionListener listener : listeners) {
+                threads.addAll(listener.threads);
+            }
+            assertEquals(1, threads.size());
+            assertFalse(threads.contains(Thread.currentThread().getName()));
+        }
+    }
+
+    /**
+     * Test that a listener which throws neither stops the other listeners
+     * nor the selector thread serving the other sessions
+     *
+     * @throws Exception When the test is interrupted or the server can't be started
+     */
+    @Test
+    public void testFailingListener() throws Exception {
+        try (StandInChatServer server = new StandInChatServer();
+                ChatSessionPool pool = new ChatSessionPool(1)) {
+            SessionListener alice = new SessionListener();
+            SessionListener bob = new SessionListener();
+            ChatSession aliceSession = pool.openSession("localhost", server.getPort(), new EmptyChatListener() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    throw new IllegalStateException("broken listener");
+                }
+            });
+            aliceSession.addListener(alice);
+            ChatSession bobSession = pool.openSession("localhost", server.getPort(), bob);
+            ChatSession carolSession = pool.openSession("localhost", server.getPort());
+            aliceSession.tryLogin("alice");
+            bobSession.tryLogin("bob");
+            carolSession.tryLogin("carol");
+            waitFor(() -> server.getUserCount() == 3 && alice.logins.get() == 1 && bob.logins.get() == 1);
+
+            for (int i = 0; i < 3; i++) {
+                carolSession.sendPublicMessage("hello " + i);
+            }
+            waitFor(() -> alice.messages.get() == 3 && bob.messages.get() == 3);
+            assertEquals(3, alice.messages.get());
+            assertEquals(3, bob.messages.get());
+            assertTrue(aliceSession.isConnectionActive());
+            assertTrue(bobSession.isConnectionActive());
+        }
+    }
+
+    /**
+     * Test that closing the pool disconnects the sessions still open
+     *
+     * @throws Exception When the test is interrupted or the server can't be started
+     */
+    @Test
+    public void testClosePool() throws Exception {
+        SessionListener listener = new SessionListener();
+        try (StandInChatServer server = new StandInChatServer()) {
+            ChatSession session;
+            try (ChatSessionPool pool = new ChatSessionPool(1)) {
+                session = pool.openSession("localhost", server.getPort(), listener);
+                session.tryLogin("alice");
+                waitFor(() -> listener.logins.get() == 1);
+            }
+            waitFor(() -> listener.disconnects.get() == 1);
+            assertEquals(1, listener.disconnects.get());
+            assertFalse(session.isConnectionActive());
+        }
+    }
+
+    /**
+     * Test that a listener given to openSession() is told about a connection
+     * which fails right away
+     *
+     * @throws Exception When the test is interrupted
+     */
+    @Test
+    public void testConnectionRefused() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            port = closed.getLocalPort();
+        }
+        SessionListener listener = new SessionListener();
+        try (ChatSessionPool pool = new ChatSessionPool(1)) {
+            ChatSession session = pool.openSession("localhost", port, listener);
+            waitFor(() -> listener.disconnects.get() == 1);
+            assertEquals(1, listener.disconnects.get());
+            assertFalse(session.isConnectionActive());
+            assertFalse(session.getLastError().isEmpty());
+        }
+    }
+
+    /**
+     * Counts the events of one session, and remembers the threads they were
+     * delivered on.
+     */
+    private static class SessionListener extends EmptyChatListener {
+        final AtomicInteger logins = new AtomicInteger();
+        final AtomicInteger messages = new AtomicInteger();
+        final AtomicInteger privateMessages = new AtomicInteger();
+        final AtomicInteger disconnects = new AtomicInteger();
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+            if (success) {
+                logins.incrementAndGet();
+            }
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            if (message.isPrivate()) {
+                privateMessages.incrementAndGet();
+            } else {
+                messages.incrementAndGet();
+            }
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void onDisconnect() {
+            disconnects.incrementAndGet();
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIME;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientMetricsTest {
+
+    /**
+     * Test that the protocol commands are counted one by one, and that
+     * everything else is counted as "other", however many different words
+     * the server sends
+     */
+    @Test
+    public void testCommandsReceived() {
+        ClientMetrics metrics = new ClientMetrics();
+        metrics.commandReceived("msg");
+        metrics.commandReceived("msg");
+        metrics.commandReceived("loginok");
+        metrics.commandReceived(MessageCompressor.PUBLIC_COMMAND);
+        for (int i = 0; i < 1000; i++) {
+            metrics.commandReceived("junk" + i);
+        }
+
+        Map<String, Long> commands = metrics.getCommandsReceived();
+        assertEquals(4, commands.size());
+        assertEquals(2L, (long) commands.get("msg"));
+        assertEquals(1L, (long) commands.get("loginok"));
+        assertEquals(1L, (long) commands.get(MessageCompressor.PUBLIC_COMMAND));
+        assertEquals(1000L, (long) commands.get(ClientMetrics.OTHER_COMMANDS));
+        assertNull(commands.get("junk0"));
+    }
+
+    /**
+     * Test the count, total, max and mean of the recorded durations
+     */
+    @Test
+    public void testLatency() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        LatencySummary empty = recorder.summary();
+        assertEquals(0, empty.getCount());
+        assertEquals(0.0, empty.getMeanMicros(), 0.0);
+
+        recorder.record(1000);
+        recorder.record(3000);
+        LatencySummary summary = recorder.summary();
+        assertEquals(2, summary.getCount());
+        assertEquals(4000, summary.getTotalNanos());
+        assertEquals(3000, summary.getMaxNanos());
+        assertEquals(2.0, summary.getMeanMicros(), 0.001);
+        assertEquals("n=2 mean=2.0us max=3.0us", summary.toString());
+
+        // The summary is a copy
+        recorder.record(5000);
+        assertEquals(2, summary.getCount());
+        assertEquals(3, recorder.summary().getCount());
+    }
+
+    /**
+     * Test that a snapshot holds all the values, and does not change when
+     * the metrics are updated afterwards
+     */
+    @Test
+    public void testSnapshot() {
+        ClientMetrics metrics = new ClientMetrics();
+        long start = System.nanoTime();
+        metrics.connectFailed();
+        metrics.connected(start);
+        metrics.connected(start);
+        metrics.bytesIn(10);
+        metrics.lineIn();
+        metrics.lineOut(6, start);
+        metrics.sendError();
+        metrics.commandReceived("users");
+        metrics.loginSent();
+        metrics.loginCompleted();
+        // Only the first response to a login is timed
+        metrics.loginCompleted();
+        metrics.listenerDispatched(new EmptyChatListener(), start);
+
+        ClientMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(10, snapshot.getBytesIn());
+        assertEquals(6, snapshot.getBytesOut());
+        assertEquals(1, snapshot.getLinesIn());
+        assertEquals(1, snapshot.getLinesOut());
+        assertEquals(1, snapshot.getSendErrors());
+        assertEquals(2, snapshot.getConnects());
+        assertEquals(1, snapshot.getReconnects());
+        assertEquals(1, snapshot.getConnectFailures());
+        assertEquals(1, snapshot.getSendLatency().getCount());
+        assertEquals(2, snapshot.getConnectLatency().getCount());
+        assertEquals(1, snapshot.getLoginLatency().getCount());
+        assertEquals(1L, (long) snapshot.getCommandsReceived().get("users"));
+        assertEquals(1, snapshot.getListenerDispatch()
+                .get(EmptyChatListener.class.getName()).getCount());
+
+        metrics.lineIn();
+        metrics.commandReceived("users");
+        assertEquals(1, snapshot.getLinesIn());
+        assertEquals(1L, (long) snapshot.getCommandsReceived().get("users"));
+        assertEquals(2, metrics.snapshot().getLinesIn());
+
+        try {
+            snapshot.getCommandsReceived().put("msg", 1L);
+            fail("The commands of a snapshot can be changed");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        try {
+            snapshot.getListenerDispatch().clear();
+            fail("The listener timings of a snapshot can be changed");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test that no reconnect is counted before the first connection
+     */
+    @Test
+    public void testNoConnection() {
+        ClientMetrics.Snapshot snapshot = new ClientMetrics().snapshot();
+        assertEquals(0, snapshot.getConnects());
+        assertEquals(0, snapshot.getReconnects());
+        assertTrue(snapshot.getCommandsReceived().isEmpty());
+    }
+}
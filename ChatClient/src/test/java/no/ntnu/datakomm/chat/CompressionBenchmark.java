@@ -0,0 +1,122 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+/**
+ * Measures what the "zmsg" extension costs and saves for typical payloads:
+ * bytes on the wire with and without the preset dictionary, and CPU time per
+ * message for compression and decompression. Not a unit test - run main().
+ */
+public class CompressionBenchmark {
+    private static final int WARMUP_ROUNDS = 20000;
+    private static final int MEASURED_ROUNDS = 50000;
+
+    public static void main(String[] args) throws DataFormatException {
+        Map<String, String> payloads = new LinkedHashMap<>();
+        payloads.put("short chat line", "hey, are you coming to the lab today?");
+        payloads.put("paragraph", repeat("I think the problem is that the server closes the socket "
+                + "before we have read the response, could you check the logs? ", 4));
+        payloads.put("stack trace", stackTrace());
+        payloads.put("log excerpt", logExcerpt());
+
+        MessageCompressor compressor = new MessageCompressor();
+        System.out.printf("%-16s %8s %10s %10s %10s %12s %12s%n", "payload", "raw B",
+                "no-dict B", "dict B", "sent B", "comp us/msg", "decomp us/msg");
+        for (Map.Entry<String, String> payload : payloads.entrySet()) {
+            String text = payload.getValue();
+            int raw = WireCodec.encode(text).length;
+            int noDictionary = base64Length(deflateWithoutDictionary(text));
+            String compressed = compressor.compress(text);
+            int withDictionary = compressed != null ? compressed.length() : -1;
+            boolean used = compressed != null && raw >= MessageCompressor.DEFAULT_THRESHOLD;
+            int sent = used ? withDictionary : raw;
+
+            double compressMicros = timeCompress(compressor, text);
+            double decompressMicros = compressed != null ? timeDecompress(compressor, compressed) : 0;
+            System.out.printf("%-16s %8d %10d %10d %10d %12.2f %12.2f%n", payload.getKey(), raw,
+                    noDictionary, withDictionary, sent, compressMicros, decompressMicros);
+        }
+        System.out.println("dict B = -1: compression refused, message sent as plain text");
+    }
+
+    private static double timeCompress(MessageCompressor compressor, String text) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            compressor.compress(text);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            compressor.compress(text);
+        }
+        return (System.nanoTime() - start) / 1000.0 / MEASURED_ROUNDS;
+    }
+
+    private static double timeDecompress(MessageCompressor compressor, String compressed)
+            throws DataFormatException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            compressor.decompress(compressed);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            compressor.decompress(compressed);
+        }
+        return (System.nanoTime() - start) / 1000.0 / MEASURED_ROUNDS;
+    }
+
+    private static byte[] deflateWithoutDictionary(String text) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(WireCodec.encode(text));
+        deflater.finish();
+        byte[] buffer = new byte[65536];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    private static int base64Length(byte[] bytes) {
+        return Base64.getEncoder().withoutPadding().encodeToString(bytes).length();
+    }
+
+    private static String stackTrace() {
+        StringBuilder trace = new StringBuilder(
+                "Exception in thread \"main\" java.lang.IllegalStateException: Not connected\n");
+        String[] frames = {"no.ntnu.datakomm.chat.TCPClient.sendCommand(TCPClient.java:80)",
+            "no.ntnu.datakomm.chat.TCPClient.sendPublicMessage(TCPClient.java:104)",
+            "no.ntnu.datakomm.chat.GUIController.inputSubmit(GUIController.java:135)",
+            "javafx.event.CompositeEventHandler.dispatchBubblingEvent(Unknown Source)",
+            "javafx.event.EventHandlerManager.dispatchBubblingEvent(Unknown Source)",
+            "sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)",
+            "java.lang.Thread.run(Thread.java:748)"};
+        for (String frame : frames) {
+            trace.append("\tat ").append(frame).append('\n');
+        }
+        trace.append("Caused by: java.net.SocketException: Connection reset\n")
+                .append("\tat java.net.SocketInputStream.read(SocketInputStream.java:210)\n")
+                .append("\t... 12 more");
+        return trace.toString();
+    }
+
+    private static String logExcerpt() {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            log.append("2018-03-0").append(i % 9 + 1).append(" 12:").append(10 + i)
+                    .append(i % 5 == 0 ? " WARN " : " INFO ")
+                    .append("Client ").append(1000 + i * 7).append(" connected from 10.0.0.")
+                    .append(i * 3).append('\n');
+        }
+        return log.toString();
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            result.append(text);
+        }
+        return result.toString();
+    }
+}
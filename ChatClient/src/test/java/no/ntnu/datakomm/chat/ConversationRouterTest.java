@@ -0,0 +1,84 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConversationRouterTest {
+
+    /**
+     * Test that only the messages of the active conversation are given to
+     * show, and that the others are counted as unread until activated
+     */
+    @Test
+    public void testRouting() {
+        ConversationRouter<String> router = new ConversationRouter<>(100);
+        assertEquals(ConversationRouter.EVERYONE, router.getActive());
+        assertTrue(router.add(ConversationRouter.EVERYONE, "hello all"));
+        assertFalse(router.add("bob", "hi from bob"));
+        assertFalse(router.add("bob", "are you there?"));
+        assertFalse(router.add("carol", "hi from carol"));
+        assertEquals(2, router.getUnread("bob"));
+        assertEquals(0, router.getUnread(ConversationRouter.EVERYONE));
+        assertEquals(new HashSet<>(Arrays.asList("", "bob", "carol")), new HashSet<>(router.takeChanged()));
+        assertTrue(router.takeChanged().isEmpty());
+        assertEquals(Collections.singletonList("hello all"), router.takeNew());
+        assertTrue(router.takeNew().isEmpty());
+
+        assertEquals(Arrays.asList("hi from bob", "are you there?"), router.activate("bob"));
+        assertEquals("bob", router.getActive());
+        assertEquals(0, router.getUnread("bob"));
+        assertEquals(Collections.singletonList("bob"), router.takeChanged());
+        assertTrue(router.takeNew().isEmpty());
+        assertTrue(router.add("bob", "yes"));
+        assertFalse(router.add(ConversationRouter.EVERYONE, "news"));
+        assertEquals(1, router.getUnread(ConversationRouter.EVERYONE));
+        assertEquals(Collections.singletonList("yes"), router.takeNew());
+
+        assertTrue(router.activate("dave").isEmpty());
+        assertEquals(4, router.size());
+    }
+
+    /**
+     * Test that a message sent by the user to another conversation is kept
+     * there, but not counted as unread
+     */
+    @Test
+    public void testSentToOtherConversation() {
+        ConversationRouter<String> router = new ConversationRouter<>(100);
+        router.takeChanged();
+        assertFalse(router.add("bob", "hi bob", false));
+        assertEquals(0, router.getUnread("bob"));
+        // New conversation, for the selector
+        assertEquals(Collections.singletonList("bob"), router.takeChanged());
+        assertFalse(router.add("bob", "still there?", false));
+        assertTrue(router.takeChanged().isEmpty());
+        assertEquals(Arrays.asList("hi bob", "still there?"), router.activate("bob"));
+        assertTrue(router.add("bob", "sent here", false));
+        assertEquals(Collections.singletonList("sent here"), router.takeNew());
+    }
+
+    /**
+     * Test that a conversation keeps its last messages only, and that
+     * takeNew() does not return dropped messages
+     */
+    @Test
+    public void testCapacity() {
+        ConversationRouter<Integer> router = new ConversationRouter<>(3);
+        for (int i = 0; i < 5; i++) {
+            router.add("bob", i);
+        }
+        assertEquals(5, router.getUnread("bob"));
+        assertEquals(Arrays.asList(2, 3, 4), router.activate("bob"));
+        router.add("bob", 5);
+        router.add("bob", 6);
+        assertEquals(Arrays.asList(5, 6), router.takeNew());
+        for (int i = 7; i < 12; i++) {
+            router.add("bob", i);
+        }
+        assertEquals(Arrays.asList(9, 10, 11), router.takeNew());
+    }
+}
@@ -0,0 +1,87 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    /**
+     * Test the frame layout: varint length, opcode, payload
+     */
+    @Test
+    public void testEncode() {
+        byte[] frame = FrameCodec.encode("loginok");
+        assertArrayEquals(new byte[] {1, 2}, frame);
+
+        frame = FrameCodec.encode("msg hi");
+        assertArrayEquals(new byte[] {3, 4, 'h', 'i'}, frame);
+
+        // 200 bytes of payload + opcode = 201 = 0b1_1001001, two varint bytes
+        StringBuilder text = new StringBuilder("msg ");
+        for (int i = 0; i < 200; i++) {
+            text.append('x');
+        }
+        frame = FrameCodec.encode(text.toString());
+        assertEquals(203, frame.length);
+        assertEquals((byte) 0xC9, frame[0]);
+        assertEquals(1, frame[1]);
+    }
+
+    /**
+     * Test that frames written by the encoder are read back by WireReader, also
+     * when they follow text lines in the same stream (as after negotiation)
+     *
+     * @throws IOException Never, the streams are in memory
+     */
+    @Test
+    public void testReadAfterText() throws IOException {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 30000; i++) {
+            big.append(i % 3 == 0 ? 'å' : 'a');
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(WireCodec.encodeLine("supported msg binframe"));
+        out.write(WireCodec.encodeLine(FrameCodec.ACCEPTED));
+        out.write(FrameCodec.encode("msg bob line one\nline two"));
+        out.write(FrameCodec.encode("loginok"));
+        out.write(FrameCodec.encode("privmsg bob " + big));
+        out.write(FrameCodec.encode("futurecmd with args"));
+
+        WireReader reader = new WireReader(new ByteArrayInputStream(out.toByteArray()));
+        WireReader.Frame frame = new WireReader.Frame();
+        assertEquals("supported msg binframe", reader.readLine());
+        assertEquals(FrameCodec.ACCEPTED, reader.readLine());
+        assertTrue(reader.readFrame(frame));
+        assertEquals("msg", frame.command);
+        assertEquals("bob line one\nline two", frame.argument);
+        assertTrue(reader.readFrame(frame));
+        assertEquals("loginok", frame.command);
+        assertNull(frame.argument);
+        assertTrue(reader.readFrame(frame));
+        assertEquals("privmsg", frame.command);
+        assertEquals("bob " + big, frame.argument);
+        assertTrue(reader.readFrame(frame));
+        assertEquals("futurecmd", frame.command);
+        assertEquals("with args", frame.argument);
+        assertFalse(reader.readFrame(frame));
+    }
+
+    /**
+     * Test that a frame cut in the middle is reported as an error
+     */
+    @Test
+    public void testTruncatedFrame() {
+        byte[] frame = FrameCodec.encode("msg hello");
+        WireReader reader = new WireReader(new ByteArrayInputStream(frame, 0, frame.length - 2));
+        try {
+            reader.readFrame(new WireReader.Frame());
+            fail("Truncated frame accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Compares the newline text protocol with binary frames: throughput and CPU
+ * time per message for encoding a stream of server messages and reading it
+ * back the way TCPClient does. Runs in memory, so the numbers show the codec
+ * cost without the network. Not a unit test - run main().
+ */
+public class FramingBenchmark {
+    private static final int MESSAGES = 200000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {16, 128, 1024};
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("%-6s %8s %14s %14s %12s%n", "mode", "text B", "msgs/s", "CPU ns/msg", "wire B/msg");
+        for (int size : sizes) {
+            String command = "msg alice " + text(size);
+            byte[] textStream = stream(command, false);
+            byte[] frameStream = stream(command, true);
+            // Warm up both paths before measuring
+            for (int i = 0; i < ROUNDS; i++) {
+                readText(textStream);
+                readFrames(frameStream);
+            }
+            report("text", size, textStream, threads, () -> readText(textStream));
+            report("frame", size, frameStream, threads, () -> readFrames(frameStream));
+        }
+    }
+
+    private interface Reader {
+        int read() throws IOException;
+    }
+
+    private static void report(String mode, int size, byte[] stream, ThreadMXBean threads, Reader reader)
+            throws IOException {
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        int count = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            count += reader.read();
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        System.out.printf("%-6s %8d %14.0f %14.1f %12.1f%n", mode, size, count * 1e9 / elapsed,
+                (double) cpu / count, (double) stream.length / MESSAGES);
+    }
+
+    private static byte[] stream(String command, boolean frames) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            out.write(frames ? FrameCodec.encode(command) : WireCodec.encodeLine(command));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read the stream like TCPClient does in text mode: one line, then split
+     * into command and argument.
+     */
+    private static int readText(byte[] stream) throws IOException {
+        WireReader reader = new WireReader(new ByteArrayInputStream(stream));
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] commandArgument = line.split(" ", 2);
+            if (commandArgument.length == 2) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int readFrames(byte[] stream) throws IOException {
+        WireReader reader = new WireReader(new ByteArrayInputStream(stream));
+        WireReader.Frame frame = new WireReader.Frame();
+        int count = 0;
+        while (reader.readFrame(frame)) {
+            if (frame.argument != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String text(int size) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,128 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeadlessClientTest {
+    private ServerSocket serverSocket;
+
+    /**
+     * Start a server which answers every login with loginok, sends every msg
+     * back to the sender and answers users with a fixed list
+     *
+     * @throws IOException When the server can't be started
+     */
+    @Before
+    public void startServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    new Thread(() -> serve(client)).start();
+                } catch (IOException e) {
+                    // Closed by stopServer()
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String response = null;
+                if (line.startsWith("login ")) {
+                    response = "loginok";
+                } else if (line.startsWith("msg ")) {
+                    response = "msg server " + line.substring(4);
+                } else if (line.equals("users")) {
+                    response = "users alice bob";
+                }
+                if (response != null) {
+                    out.write((response + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            // The client disconnected
+        }
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Test that a script is executed in order, waiting for the events, and
+     * that the events are written as lines
+     *
+     * @throws IOException Never, the script is in memory
+     */
+    @Test
+    public void testScript() throws IOException {
+        String script = "# Log in and say hello\n"
+                + "/connect localhost " + serverSocket.getLocalPort() + "\n"
+                + "/login alice\n"
+                + "/await loginok 5000\n"
+                + "hello there\n"
+                + "/await msg 5000\n"
+                + "/users\n"
+                + "/await users 5000\n"
+                + "/await msg 100\n"
+                + "/nonsense\n"
+                + "/quit\n"
+                + "never executed\n";
+        StringWriter output = new StringWriter();
+        HeadlessClient client = new HeadlessClient(new TCPClient(), new PrintWriter(output, true));
+        client.run(new BufferedReader(new StringReader(script)));
+
+        String[] events = output.toString().split("\\R");
+        assertEquals("connected localhost " + serverSocket.getLocalPort(), events[0]);
+        assertEquals("loginok", events[1]);
+        assertEquals("msg server hello there", events[2]);
+        assertEquals("users alice bob", events[3]);
+        assertEquals("timeout msg", events[4]);
+        assertEquals("error unknown command /nonsense", events[5]);
+        assertEquals("disconnected", events[6]);
+    }
+
+    /**
+     * Test that connecting to a closed port is reported as an error event
+     *
+     * @throws IOException When no free port can be found
+     */
+    @Test
+    public void testConnectError() throws IOException {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0)) {
+            port = closed.getLocalPort();
+        }
+        StringWriter output = new StringWriter();
+        HeadlessClient client = new HeadlessClient(new TCPClient(), new PrintWriter(output, true));
+        assertTrue(client.execute("/connect localhost " + port));
+        assertTrue(client.execute("/connect localhost"));
+        assertFalse(client.execute("/quit"));
+        String[] events = output.toString().split("\\R");
+        assertEquals("error could not connect to localhost " + port, events[0]);
+        assertEquals("error usage: /connect host port", events[1]);
+    }
+}
@@ -0,0 +1,64 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageCompressorTest {
+
+    private static final String STACK_TRACE = "Exception in thread \"main\" java.lang.NullPointerException\n"
+            + "\tat no.ntnu.datakomm.chat.TCPClient.sendCommand(TCPClient.java:80)\n"
+            + "\tat no.ntnu.datakomm.chat.TCPClient.sendPublicMessage(TCPClient.java:104)\n"
+            + "\tat no.ntnu.datakomm.chat.GUIController.inputSubmit(GUIController.java:135)\n"
+            + "\tat javafx.event.CompositeEventHandler.dispatchBubblingEvent(Unknown Source)\n"
+            + "\t... 42 more";
+
+    /**
+     * Test that a compressed message is shorter and decompresses to the original
+     *
+     * @throws DataFormatException When decompression fails
+     */
+    @Test
+    public void testRoundTrip() throws DataFormatException {
+        MessageCompressor compressor = new MessageCompressor();
+        String compressed = compressor.compress(STACK_TRACE);
+        assertNotNull(compressed);
+        assertTrue(compressed.length() < STACK_TRACE.length());
+        // Base64 without padding, can be sent as one line of text
+        assertTrue(compressed.matches("[A-Za-z0-9+/]+"));
+        assertEquals(STACK_TRACE, compressor.decompress(compressed));
+        // The same compressor can be reused
+        assertEquals("æøå " + STACK_TRACE, compressor.decompress(compressor.compress("æøå " + STACK_TRACE)));
+    }
+
+    /**
+     * Test that compression is refused when it does not make the message shorter
+     */
+    @Test
+    public void testIncompressible() {
+        MessageCompressor compressor = new MessageCompressor();
+        assertNull(compressor.compress("hi"));
+        assertNull(compressor.compress("Xq7#pL2!vR9&"));
+    }
+
+    /**
+     * Test that garbage is reported as an error instead of crashing the reader
+     */
+    @Test
+    public void testInvalidInput() {
+        MessageCompressor compressor = new MessageCompressor();
+        try {
+            compressor.decompress("not base64!");
+            fail("Invalid base64 accepted");
+        } catch (DataFormatException e) {
+            // expected
+        }
+        try {
+            compressor.decompress("AAAAAAAA");
+            fail("Invalid compressed data accepted");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageDeduplicatorTest {
+
+    /**
+     * Test that messages are equal when sender, private flag and text are
+     */
+    @Test
+    public void testTextMessageEquals() {
+        TextMessage message = new TextMessage("bob", false, "hi");
+        assertEquals(message, new TextMessage("bob", false, "hi"));
+        assertNotEquals(message, new TextMessage("bob", true, "hi"));
+        assertNotEquals(message, new TextMessage("alice", false, "hi"));
+        assertNotEquals(message, new TextMessage("bob", false, "hi!"));
+        assertNotEquals(message, null);
+        // Different messages with the same hash code, used to be equal
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertNotEquals(new TextMessage("bob", false, "Aa"), new TextMessage("bob", false, "BB"));
+    }
+
+    /**
+     * Test that duplicates are dropped within the window and passed after it
+     */
+    @Test
+    public void testWindow() {
+        long[] now = {1000};
+        List<TextMessage> received = new ArrayList<>();
+        MessageDeduplicator dedup = new MessageDeduplicator(new Collector(received), 500, 4096, 64,
+                () -> now[0]);
+        dedup.onMessageReceived(new TextMessage("bob", false, "hi"));
+        dedup.onMessageReceived(new TextMessage("bob", false, "hi"));
+        dedup.onMessageReceived(new TextMessage("bob", true, "hi"));
+        now[0] += 499;
+        dedup.onMessageReceived(new TextMessage("bob", false, "hi"));
+        now[0] += 1;
+        dedup.onMessageReceived(new TextMessage("bob", false, "hi"));
+        assertEquals(3, received.size());
+        assertEquals(2, dedup.getDuplicates());
+        assertEquals(3, dedup.getUnique());
+        assertEquals(0.4, dedup.getHitRate(), 1e-9);
+    }
+
+    /**
+     * Test that the memory cap is respected by forgetting the oldest messages
+     */
+    @Test
+    public void testMemoryCap() {
+        List<TextMessage> received = new ArrayList<>();
+        MessageDeduplicator dedup = new MessageDeduplicator(new Collector(received), 60000, 1024, 64,
+                () -> 0);
+        assertTrue(dedup.getMemoryBytes() <= 1024);
+        int capacity = dedup.getCapacity();
+        for (int i = 0; i <= capacity; i++) {
+            dedup.onMessageReceived(new TextMessage("bob", false, "message " + i));
+        }
+        assertEquals(capacity, dedup.getRemembered());
+        // The first message has been forgotten, the second not
+        dedup.onMessageReceived(new TextMessage("bob", false, "message 0"));
+        dedup.onMessageReceived(new TextMessage("bob", false, "message " + capacity));
+        assertEquals(capacity + 2, received.size());
+    }
+
+    /**
+     * Compare the cache with an exact model under random adds, expiry and
+     * eviction, with few distinct fingerprints so that they are often present
+     * and probe sequences collide a lot
+     */
+    @Test
+    public void testCacheAgainstModel() {
+        Random random = new Random(1);
+        FingerprintCache cache = new FingerprintCache(100, 12 * 256, 12);
+        ArrayDeque<long[]> model = new ArrayDeque<>();
+        int capacity = cache.capacity();
+        for (long now = 0; now < 200000; now++) {
+            long fingerprint = random.nextInt(1 << 12);
+            while (!model.isEmpty() && now - model.peekFirst()[1] >= 100) {
+                model.removeFirst();
+            }
+            boolean present = false;
+            for (long[] entry : model) {
+                present |= entry[0] == fingerprint;
+            }
+            boolean added = cache.add(fingerprint, now);
+            assertEquals(!present, added);
+            if (added) {
+                if (model.size() == capacity) {
+                    model.removeFirst();
+                }
+                model.addLast(new long[]{fingerprint, now});
+            }
+            assertEquals(model.size(), cache.size());
+        }
+    }
+
+    /**
+     * Test that false positives appear at about the estimated rate when the
+     * fingerprints are truncated
+     */
+    @Test
+    public void testFalsePositiveRate() {
+        List<TextMessage> received = new ArrayList<>();
+        MessageDeduplicator dedup = new MessageDeduplicator(new Collector(received), 60000, 1 << 16, 12,
+                () -> 0);
+        double expected = 0;
+        int messages = 20000;
+        for (int i = 0; i < messages; i++) {
+            expected += dedup.getFalsePositiveProbability();
+            dedup.onMessageReceived(new TextMessage("bob", false, "message " + i));
+        }
+        // All messages were unique, so every drop is a false positive
+        long falsePositives = dedup.getDuplicates();
+        assertTrue(falsePositives > 0);
+        assertEquals(expected, falsePositives, expected * 0.2);
+    }
+
+    /**
+     * Collects the messages passed on
+     */
+    private static class Collector extends EmptyChatListener {
+        private final List<TextMessage> messages;
+
+        Collector(List<TextMessage> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            messages.add(message);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.Scene;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+/**
+ * A burst of 10 000 messages rendered into a chat window which keeps the last
+ * 1000. Compares creating the nodes of every message (as the GUI used to do)
+ * with reusing the rows of the removed messages from a NodePool, and reports
+ * the nodes created per second and the messages rendered per second. The
+ * window is laid out after every batch of messages, like the GUI thread does
+ * between pulses. Not a unit test - needs JavaFX, run main().
+ */
+public class MessageRenderBenchmark extends Application {
+    private static final int MESSAGES = 10000;
+    private static final int SHOWN = 1000;
+    private static final int BATCH = 100;
+
+    private VBox output;
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+
+    @Override
+    public void start(Stage stage) {
+        output = new VBox();
+        stage.setScene(new Scene(output, 400, 600));
+        stage.show();
+        TextMessage[] burst = new TextMessage[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            burst[i] = new TextMessage("user" + (i % 7), i % 10 == 0, "Message number " + i);
+        }
+        for (int round = 0; round < 3; round++) {
+            boolean report = round == 2;
+            render(burst, null, report);
+            render(burst, new NodePool<>(MessageRow::new, 100), report);
+        }
+        Platform.exit();
+    }
+
+    /**
+     * Render the burst, with new rows when the pool is null
+     */
+    private void render(TextMessage[] burst, NodePool<MessageRow> pool, boolean report) {
+        ObservableList<Node> messages = output.getChildren();
+        messages.clear();
+        long created = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < burst.length; i++) {
+            if (messages.size() >= SHOWN) {
+                Node oldest = messages.remove(0);
+                if (pool != null) {
+                    pool.release((MessageRow) oldest.getUserData());
+                }
+            }
+            MessageRow row;
+            if (pool != null) {
+                row = pool.acquire();
+            } else {
+                row = new MessageRow();
+                created++;
+            }
+            row.show(burst[i], i % 3 == 0 ? MessageRow.Kind.SENT : MessageRow.Kind.RECEIVED);
+            messages.add(row.getNode());
+            if (i % BATCH == BATCH - 1) {
+                output.applyCss();
+                output.layout();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (pool != null) {
+            created = pool.getCreated();
+        }
+        if (report) {
+            System.out.printf("%-8s %8.0f nodes created/s, %8.0f messages/s (%d rows created)%n",
+                    pool == null ? "New:" : "Pooled:", created * MessageRow.NODE_COUNT / seconds,
+                    burst.length / seconds, created);
+        }
+    }
+}
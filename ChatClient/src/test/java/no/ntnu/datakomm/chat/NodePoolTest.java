@@ -0,0 +1,43 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NodePoolTest {
+
+    /**
+     * Test that released objects are reused before new ones are created
+     */
+    @Test
+    public void testReuse() {
+        NodePool<StringBuilder> pool = new NodePool<>(StringBuilder::new, 10);
+        StringBuilder first = pool.acquire();
+        StringBuilder second = pool.acquire();
+        assertNotSame(first, second);
+        assertEquals(2, pool.getCreated());
+        pool.release(first);
+        assertEquals(1, pool.getIdle());
+        assertSame(first, pool.acquire());
+        assertEquals(2, pool.getCreated());
+        assertEquals(1, pool.getReused());
+        assertEquals(0, pool.getIdle());
+    }
+
+    /**
+     * Test that no more than maxIdle objects are kept
+     */
+    @Test
+    public void testMaxIdle() {
+        NodePool<Object> pool = new NodePool<>(Object::new, 3);
+        for (int i = 0; i < 5; i++) {
+            pool.release(new Object());
+        }
+        assertEquals(3, pool.getIdle());
+        for (int i = 0; i < 5; i++) {
+            pool.acquire();
+        }
+        assertEquals(3, pool.getReused());
+        assertEquals(2, pool.getCreated());
+    }
+}
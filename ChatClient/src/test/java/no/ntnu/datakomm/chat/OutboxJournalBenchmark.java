@@ -0,0 +1,63 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the outbox journal: durable appends per second, messages per
+ * group commit and write amplification, for a growing number of threads
+ * sending at the same time. Every message is marked as sent right after it
+ * is appended, like TCPClient does when the socket write succeeds. Not a unit
+ * test - run main(), optionally with a directory on the disk to measure as
+ * argument (the default is the temp directory, which may be in memory).
+ */
+public class OutboxJournalBenchmark {
+    private static final int MESSAGES_PER_THREAD = 2000;
+    private static final String MESSAGE = "msg " + new String(new char[100]).replace('\0', 'x');
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        System.out.printf("%8s %12s %12s %14s %10s%n", "threads", "msgs/s", "us/msg", "msgs/commit", "write amp");
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            File file = File.createTempFile("outbox", ".journal", directory);
+            try (OutboxJournal journal = new OutboxJournal(file)) {
+                run(journal, threads);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static void run(OutboxJournal journal, int threadCount) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        // A new instance per message, like TCPClient builds them
+                        String cmd = new String(MESSAGE);
+                        if (journal.append(cmd)) {
+                            journal.markSent(cmd);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long messages = journal.getAppended();
+        System.out.printf("%8d %12.0f %12.1f %14.1f %10.1f%n", threadCount, messages * 1e9 / elapsed,
+                elapsed / 1e3 / messages * threadCount, (double) messages / journal.getForces(),
+                journal.getWriteAmplification());
+    }
+}
@@ -0,0 +1,227 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboxJournalTest {
+    // How many ms to wait for the messages to arrive
+    private static final int WAIT_TIME = 5000;
+
+    /**
+     * Test that the messages not marked as sent are replayed after reopening
+     *
+     * @throws Exception When the journal can not be written
+     */
+    @Test
+    public void testReplay() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        String first = "msg one";
+        String second = "privmsg bob two";
+        String third = "msg three æøå";
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertTrue(journal.append(first));
+            assertTrue(journal.append(second));
+            assertTrue(journal.append(third));
+            journal.markSent(second);
+            assertEquals(Arrays.asList(first, third), journal.getPending());
+        }
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertEquals(Arrays.asList(first, third), journal.getPending());
+            for (String cmd : journal.getPending()) {
+                journal.markSent(cmd);
+            }
+            assertTrue(journal.getPending().isEmpty());
+            // Starts over at the beginning, the old records are not replayed
+            assertTrue(journal.append("msg four"));
+        }
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertEquals(Arrays.asList("msg four"), journal.getPending());
+        }
+        file.delete();
+    }
+
+    /**
+     * Test that a record damaged by a crash ends the journal
+     *
+     * @throws Exception When the journal can not be written
+     */
+    @Test
+    public void testTornRecord() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertTrue(journal.append("msg one"));
+            assertTrue(journal.append("msg two"));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Last byte of the payload of the second record
+            long position = 8 + 13 + 7 + 13 + 6;
+            raf.seek(position);
+            raf.write('X');
+        }
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertEquals(Arrays.asList("msg one"), journal.getPending());
+        }
+        file.delete();
+    }
+
+    /**
+     * Test that an unsent message does not stop the journal from taking new
+     * ones when the segment is full: it is moved to the other segment
+     *
+     * @throws Exception When the journal can not be written
+     */
+    @Test
+    public void testSwitchSegment() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        String unsent = "msg never sent";
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertTrue(journal.append(unsent));
+            for (int i = 0; i < 1000; i++) {
+                String cmd = "msg sent " + i;
+                assertTrue(journal.append(cmd));
+                journal.markSent(cmd);
+            }
+            assertTrue(journal.getSegmentSwitches() > 1);
+            assertEquals(Arrays.asList(unsent), journal.getPending());
+            assertTrue(journal.append("msg last"));
+        }
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertEquals(Arrays.asList(unsent, "msg last"), journal.getPending());
+            journal.markSent(journal.getPending().get(0));
+            assertEquals(Arrays.asList("msg last"), journal.getPending());
+        }
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            assertEquals(Arrays.asList("msg last"), journal.getPending());
+        }
+        file.delete();
+    }
+
+    /**
+     * Test that appending fails instead of overwriting unsent messages when the
+     * segment is full
+     *
+     * @throws Exception When the journal can not be written
+     */
+    @Test
+    public void testFull() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        try (OutboxJournal journal = new OutboxJournal(file, 72)) {
+            // Distinct instances, like TCPClient builds them
+            assertTrue(journal.append(new String("msg 0123456789")));
+            assertTrue(journal.append(new String("msg 0123456789")));
+            assertFalse(journal.append(new String("msg 0123456789")));
+            assertEquals(2, journal.getAppended());
+        }
+        file.delete();
+    }
+
+    /**
+     * Test that a login replays the messages left in the journal by an earlier
+     * run or a lost connection, but not the ones still queued on the current
+     * connection: every message arrives once
+     *
+     * @throws Exception When the journal can not be written or the test is interrupted
+     */
+    @Test
+    public void testReplayOnLogin() throws Exception {
+        File file = File.createTempFile("outbox", ".journal");
+        try (OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            // Accepted, but the application was closed before it was sent
+            assertTrue(journal.append("msg recovered"));
+        }
+        try (StandInChatServer server = new StandInChatServer();
+             OutboxJournal journal = new OutboxJournal(file, 4096)) {
+            TCPClient bob = new TCPClient();
+            MessageCounter received = new MessageCounter();
+            bob.addListener(received);
+            assertTrue(bob.connect("localhost", server.getPort()));
+            bob.startListenThread();
+            bob.tryLogin("bob");
+
+            TCPClient alice = new TCPClient();
+            alice.setOutboxJournal(journal);
+            // Slow enough that the messages are still queued when loginok arrives
+            SendScheduler scheduler = new SendScheduler(20, 1);
+            alice.setSendScheduler(scheduler);
+            assertTrue(alice.connect("localhost", server.getPort()));
+            alice.startListenThread();
+            alice.tryLogin("alice");
+            for (int i = 0; i < 5; i++) {
+                alice.sendPublicMessage("queued " + i);
+            }
+            waitFor(() -> received.total() >= 6);
+            // Let any duplicate arrive
+            Thread.sleep(500);
+            assertEquals(1, received.count("recovered"));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(1, received.count("queued " + i));
+            }
+            assertEquals(6, received.total());
+
+            // Lost with the connection while queued, sent after the next login
+            for (int i = 0; i < 3; i++) {
+                alice.sendPublicMessage("lost " + i);
+            }
+            alice.disconnect();
+            assertTrue(alice.connect("localhost", server.getPort()));
+            alice.startListenThread();
+            alice.tryLogin("alice2");
+            waitFor(() -> received.total() >= 9);
+            Thread.sleep(500);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(1, received.count("lost " + i));
+            }
+            assertEquals(9, received.total());
+            assertTrue(journal.getPending().isEmpty());
+            alice.disconnect();
+            bob.disconnect();
+            scheduler.stop();
+        }
+        file.delete();
+    }
+
+    /**
+     * Counts the received messages by text.
+     */
+    private static class MessageCounter extends EmptyChatListener {
+        private final Map<String, Integer> counts = Collections.synchronizedMap(new HashMap<>());
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            counts.merge(message.getText(), 1, Integer::sum);
+        }
+
+        int count(String text) {
+            return counts.getOrDefault(text, 0);
+        }
+
+        int total() {
+            synchronized (counts) {
+                int total = 0;
+                for (int count : counts.values()) {
+                    total += count;
+                }
+                return total;
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIME;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Records the traffic of simulated users chatting on a StandInChatServer,
+ * then replays it: at the recorded speed, 10 times faster and as fast as
+ * possible, each session in 5 parallel copies. Also runs the received
+ * commands of the recording through the response parser and dispatcher
+ * alone, to compare parser changes on the same traffic. Not a unit test -
+ * run main(), optionally with recording files to replay instead of the
+ * simulated users.
+ */
+public class ReplayBenchmark {
+    private static final int USERS = 20;
+    private static final int COMMANDS_PER_USER = 100;
+    // Mean time between two commands of a user, in ms
+    private static final int THINK_MILLIS = 20;
+    private static final int COPIES = 5;
+
+    public static void main(String[] args) throws Exception {
+        try (StandInChatServer server = new StandInChatServer()) {
+            List<List<TrafficRecorder.Entry>> sessions = new ArrayList<>();
+            if (args.length > 0) {
+                for (String path : args) {
+                    sessions.add(TrafficRecorder.read(path));
+                }
+            } else {
+                sessions = record(server.getPort());
+            }
+            dispatch(sessions);
+            TrafficReplayer replayer = new TrafficReplayer(sessions);
+            for (double speed : new double[]{1, 10, 0}) {
+                System.out.println(replayer.replay("localhost", server.getPort(), speed, COPIES));
+            }
+        }
+    }
+
+    /**
+     * Simulate users: log in, then public and private messages and user list
+     * requests, with random pauses. Each user is recorded.
+     */
+    private static List<List<TrafficRecorder.Entry>> record(int port) throws Exception {
+        List<Thread> users = new ArrayList<>();
+        List<StringWriter> recordings = new ArrayList<>();
+        for (int u = 0; u < USERS; u++) {
+            StringWriter recording = new StringWriter();
+            recordings.add(recording);
+            String name = "user" + u;
+            Random random = new Random(u);
+            Thread user = new Thread(() -> {
+                TCPClient client = new TCPClient();
+                TrafficRecorder recorder = new TrafficRecorder(recording);
+                client.setTrafficRecorder(recorder);
+                if (!client.connect("localhost", port)) {
+                    return;
+                }
+                client.startListenThread();
+                client.tryLogin(name);
+                try {
+                    for (int i = 0; i < COMMANDS_PER_USER; i++) {
+                        Thread.sleep(random.nextInt(2 * THINK_MILLIS));
+                        int kind = random.nextInt(10);
+                        if (kind < 6) {
+                            client.sendPublicMessage("message " + i + " from " + name);
+                        } else if (kind < 9) {
+                            client.sendPrivateMessage("user" + random.nextInt(USERS), "private " + i);
+                        } else {
+                            client.refreshUserList();
+                        }
+                    }
+                    // Let the last messages of the others arrive
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                client.disconnect();
+            });
+            users.add(user);
+            user.start();
+        }
+        List<List<TrafficRecorder.Entry>> sessions = new ArrayList<>();
+        long commands = 0;
+        for (int u = 0; u < USERS; u++) {
+            users.get(u).join();
+            List<TrafficRecorder.Entry> session = TrafficRecorder.read(
+                    new BufferedReader(new StringReader(recordings.get(u).toString())));
+            commands += session.size();
+            sessions.add(session);
+        }
+        System.out.println("Recorded " + USERS + " sessions, " + commands + " commands");
+        return sessions;
+    }
+
+    /**
+     * Parse and dispatch the received commands, without the network.
+     */
+    private static void dispatch(List<List<TrafficRecorder.Entry>> sessions) {
+        List<String> received = new ArrayList<>();
+        for (List<TrafficRecorder.Entry> session : sessions) {
+            for (TrafficRecorder.Entry entry : session) {
+                if (entry.getDirection() == TrafficRecorder.RECEIVED) {
+                    received.add(entry.getCommand());
+                }
+            }
+        }
+        if (received.isEmpty()) {
+            return;
+        }
+        ResponseDispatcher dispatcher = new ResponseDispatcher(new ClientMetrics());
+        int[] events = new int[1];
+        dispatcher.addListener(new TextCounter(events));
+        int rounds = Math.max(1, 2000000 / received.size());
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (String command : received) {
+                    dispatcher.dispatch(command);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round == 2) {
+                System.out.printf("Parse and dispatch of the recorded commands: %.0f commands/s (%d events)%n",
+                        (double) rounds * received.size() * 1e9 / elapsed, events[0]);
+            }
+        }
+    }
+
+    /**
+     * Counts the events, so that the dispatch is not optimized away.
+     */
+    private static class TextCounter implements ChatListener {
+        private final int[] events;
+
+        TextCounter(int[] events) {
+            this.events = events;
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+            events[0]++;
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            events[0] += message.getText().length() > 0 ? 1 : 0;
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+            events[0]++;
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+            events[0] += usernames.length > 0 ? 1 : 0;
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+            events[0]++;
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+            events[0]++;
+        }
+    }
+}
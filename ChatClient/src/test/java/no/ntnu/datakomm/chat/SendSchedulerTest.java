@@ -0,0 +1,130 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SendSchedulerTest {
+
+    /**
+     * Test that commands are assigned to the right lanes
+     */
+    @Test
+    public void testLanes() {
+        assertEquals(SendScheduler.Lane.CONTROL, SendScheduler.laneOf("login bob"));
+        assertEquals(SendScheduler.Lane.CONTROL, SendScheduler.laneOf("users"));
+        assertEquals(SendScheduler.Lane.CONTROL, SendScheduler.laneOf("help"));
+        assertEquals(SendScheduler.Lane.PRIVATE, SendScheduler.laneOf("privmsg bob hi"));
+        assertEquals(SendScheduler.Lane.PUBLIC, SendScheduler.laneOf("msg hi"));
+        assertEquals(SendScheduler.Lane.PUBLIC, SendScheduler.laneOf("zmsg abcd"));
+    }
+
+    /**
+     * Test that queued control commands overtake queued messages
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testPriority() throws InterruptedException {
+        SendScheduler scheduler = new SendScheduler(1000, 10);
+        // Queue everything before the sending thread starts
+        assertTrue(scheduler.submit("msg one"));
+        assertTrue(scheduler.submit("msg two"));
+        assertTrue(scheduler.submit("privmsg bob three"));
+        assertTrue(scheduler.submit("login bob"));
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        scheduler.start(sent::add);
+        Thread.sleep(200);
+        scheduler.stop();
+        assertEquals(Arrays.asList("login bob", "privmsg bob three", "msg one", "msg two"), sent);
+    }
+
+    /**
+     * Test that the rate limit is respected and that full lanes reject commands
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testRateLimit() throws InterruptedException {
+        SendScheduler scheduler = new SendScheduler(10, 1);
+        scheduler.setMaxQueued(3);
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(scheduler.submit("msg " + i));
+        }
+        assertFalse(scheduler.submit("msg overflow"));
+        scheduler.start(sent::add);
+        // One command right away, then one every 100 ms
+        Thread.sleep(150);
+        assertEquals(2, sent.size());
+        Thread.sleep(200);
+        assertEquals(3, sent.size());
+        scheduler.stop();
+    }
+
+    /**
+     * Test that stop() waits for the command being sent, so that a start()
+     * right after it never leaves two sending threads
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testRestart() throws InterruptedException {
+        SendScheduler scheduler = new SendScheduler(100000, 100);
+        AtomicInteger sending = new AtomicInteger();
+        AtomicInteger maxSending = new AtomicInteger();
+        AtomicInteger sent = new AtomicInteger();
+        for (int round = 0; round < 50; round++) {
+            scheduler.start(cmd -> {
+                maxSending.accumulateAndGet(sending.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sending.decrementAndGet();
+                sent.incrementAndGet();
+                return true;
+            });
+            for (int i = 0; i < 5; i++) {
+                scheduler.submit("msg " + i);
+            }
+            Thread.sleep(2);
+            scheduler.stop();
+        }
+        int total = sent.get();
+        Thread.sleep(50);
+        assertEquals(1, maxSending.get());
+        // Nothing is sent after stop()
+        assertEquals(total, sent.get());
+
+        // stop() returns only when the command being sent is done
+        CountDownLatch inSink = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.start(cmd -> {
+            inSink.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        });
+        scheduler.submit("login bob");
+        assertTrue(inSink.await(1, TimeUnit.SECONDS));
+        Thread stopper = new Thread(scheduler::stop);
+        stopper.start();
+        stopper.join(100);
+        assertTrue(stopper.isAlive());
+        release.countDown();
+        stopper.join(1000);
+        assertFalse(stopper.isAlive());
+    }
+}
@@ -0,0 +1,185 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A local chat server speaking the text protocol of the course chat server
+ * (login, msg, privmsg, users, help), for the tests and benchmarks which
+ * can't depend on the real server. One thread per client, sharing a
+ * UserRegistry without a global lock. Extensions like
+ * compression and binary frames are not supported, so clients don't use them.
+ */
+public class StandInChatServer implements Closeable {
+    private static final String SUPPORTED = "supported login msg privmsg users help";
+
+    private final ServerSocket serverSocket;
+    // Logged in users
+    private final UserRegistry<Session> users = new UserRegistry<>(1000);
+
+    /**
+     * Start a server on a free port.
+     *
+     * @throws IOException When the server socket can't be opened
+     */
+    public StandInChatServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1000);
+        Thread acceptor = new Thread(this::acceptLoop, "stand-in-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return The TCP port of the server
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Number of users logged in
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Session session : users.sessions()) {
+            session.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Session session = new Session(serverSocket.accept());
+                Thread thread = new Thread(session, "stand-in-session");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed by close()
+            }
+        }
+    }
+
+    /**
+     * One client connection.
+     */
+    private class Session implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        private String username;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    handle(line);
+                }
+            } catch (IOException e) {
+                // The client disconnected
+            }
+            logout();
+            close();
+        }
+
+        private void handle(String line) {
+            String[] parts = line.split(" ", 2);
+            String argument = parts.length > 1 ? parts[1] : "";
+            switch (parts[0]) {
+                case "login":
+                    login(argument);
+                    break;
+                case "msg":
+                    if (username == null) {
+                        send("msgerr unauthorized");
+                    } else {
+                        broadcast("msg " + username + " " + argument);
+                    }
+                    break;
+                case "privmsg":
+                    privateMessage(argument);
+                    break;
+                case "users":
+                    send("users " + users.listNames());
+                    break;
+                case "help":
+                    send(SUPPORTED);
+                    break;
+                default:
+                    send("cmderr command not supported");
+                    break;
+            }
+        }
+
+        private void login(String name) {
+            if (!name.matches("[A-Za-z0-9]+")) {
+                send("loginerr incorrect username format");
+                return;
+            }
+            if (!users.login(name, this, username)) {
+                send("loginerr username already in use");
+                return;
+            }
+            username = name;
+            send("loginok");
+        }
+
+        private void privateMessage(String argument) {
+            String[] recipientText = argument.split(" ", 2);
+            if (username == null) {
+                send("msgerr unauthorized");
+                return;
+            }
+            Session recipient = users.get(recipientText[0]);
+            if (recipient == null) {
+                send("msgerr incorrect recipient " + recipientText[0]);
+            } else {
+                recipient.send("privmsg " + username + " " + (recipientText.length > 1 ? recipientText[1] : ""));
+            }
+        }
+
+        private void broadcast(String line) {
+            for (Session recipient : users.sessions()) {
+                if (recipient != this) {
+                    recipient.send(line);
+                }
+            }
+        }
+
+        private void logout() {
+            users.logout(username, this);
+        }
+
+        private synchronized void send(String line) {
+            try {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // The client is gone, its own thread cleans up
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
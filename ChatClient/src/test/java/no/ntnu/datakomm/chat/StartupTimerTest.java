@@ -0,0 +1,56 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StartupTimerTest {
+
+    /**
+     * Test that the startup is complete once, when the last expected phase is
+     * marked, in any order
+     */
+    @Test
+    public void testComplete() {
+        StartupTimer timer = new StartupTimer();
+        timer.expect("first frame", "login");
+        assertFalse(timer.mark("toolkit"));
+        assertFalse(timer.mark("login"));
+        assertTrue(timer.mark("first frame"));
+        assertFalse(timer.mark("first frame"));
+        assertTrue(timer.getMillis("login") >= 0);
+        assertEquals(-1, timer.getMillis("connected"));
+        assertTrue(timer.report().startsWith("Startup: toolkit "));
+        assertTrue(timer.report().contains(", login "));
+    }
+
+    /**
+     * Test that every run appends one line, after a header
+     *
+     * @throws IOException When the temporary file can't be used
+     */
+    @Test
+    public void testAppendTo() throws IOException {
+        File log = File.createTempFile("startup", ".csv");
+        log.delete();
+        try {
+            for (int run = 0; run < 2; run++) {
+                StartupTimer timer = new StartupTimer();
+                timer.expect("ui ready", "login");
+                timer.mark("ui ready");
+                assertTrue(timer.appendTo(log.getPath()));
+            }
+            List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+            assertEquals(3, lines.size());
+            assertEquals("date,ui ready,login", lines.get(0));
+            assertTrue(lines.get(2).endsWith(",-1"));
+        } finally {
+            log.delete();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TlsTransportTest {
+    private static final String PASSWORD = "unittest";
+
+    // How many ms to wait for the server response to arrive
+    private static final int WAIT_TIME = 5000;
+
+    private File keyStore;
+    private SSLServerSocket serverSocket;
+
+    /**
+     * Generate a certificate for localhost and start a TLS server which answers
+     * every login with loginok and sends every msg back to the sender
+     *
+     * @throws Exception When keytool fails or the server can't be started
+     */
+    @Before
+    public void startServer() throws Exception {
+        keyStore = File.createTempFile("tls", ".p12");
+        keyStore.delete();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server",
+                "-keyalg", "EC", "-validity", "1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keyStore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        while (process.getInputStream().read() >= 0) {
+            // Wait for keytool to finish
+        }
+        assertEquals(0, process.waitFor());
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    new Thread(() -> serve(client)).start();
+                } catch (IOException e) {
+                    // Closed by stopServer()
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("login ")) {
+                    out.write("loginok\n".getBytes(StandardCharsets.UTF_8));
+                } else if (line.startsWith("msg ")) {
+                    out.write(("msg server " + line.substring(4) + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            // The client disconnected
+        }
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        serverSocket.close();
+        keyStore.delete();
+    }
+
+    /**
+     * Test that TCPClient talks to the server over TLS, and that reconnecting
+     * resumes the TLS session
+     *
+     * @throws Exception When the test is interrupted or the key store can't be read
+     */
+    @Test
+    public void testTcpClient() throws Exception {
+        TlsTransport tls = TlsTransport.trusting(keyStore.getPath(), PASSWORD.toCharArray());
+        TCPClient client = new TCPClient();
+        client.setTlsTransport(tls);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        for (int i = 1; i <= 2; i++) {
+            int expected = i;
+            assertTrue(client.connect("localhost", serverSocket.getLocalPort()));
+            client.startListenThread();
+            client.tryLogin("alice");
+            assertTrue(client.sendPublicMessage("hello " + i));
+            waitFor(() -> counter.loginSuccess == expected && counter.msg == expected);
+            client.disconnect();
+        }
+        assertEquals(2, counter.loginSuccess);
+        assertEquals(2, tls.getHandshakes());
+        assertEquals(1, tls.getResumedHandshakes());
+    }
+
+    /**
+     * Test that ChatSession sends and receives over TLS on the selector
+     * thread, including lines longer than one TLS record
+     *
+     * @throws Exception When the test is interrupted or the key store can't be read
+     */
+    @Test
+    public void testChatSession() throws Exception {
+        TlsTransport tls = TlsTransport.trusting(keyStore.getPath(), PASSWORD.toCharArray());
+        StringBuilder longMessage = new StringBuilder();
+        while (longMessage.length() < 100000) {
+            longMessage.append("0123456789");
+        }
+        try (ChatSessionPool pool = new ChatSessionPool(1, tls)) {
+            ChatSession session = pool.openSession("localhost", serverSocket.getLocalPort());
+            List<String> messages = new ArrayList<>();
+            DummyResponseCounter counter = new DummyResponseCounter() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    synchronized (messages) {
+                        messages.add(message.getText());
+                    }
+                }
+            };
+            session.addListener(counter);
+            // Queued until the handshake is done
+            session.tryLogin("bob");
+            assertTrue(session.sendPublicMessage("short"));
+            assertTrue(session.sendPublicMessage(longMessage.toString()));
+            waitFor(() -> {
+                synchronized (messages) {
+                    return messages.size() == 2;
+                }
+            });
+            assertEquals(1, counter.loginSuccess);
+            synchronized (messages) {
+                assertEquals("short", messages.get(0));
+                assertEquals(longMessage.toString(), messages.get(1));
+            }
+            assertEquals(1, tls.getHandshakes());
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIME;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
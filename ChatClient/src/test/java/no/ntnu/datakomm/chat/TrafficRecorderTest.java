@@ -0,0 +1,107 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrafficRecorderTest {
+    // How many ms to wait for the server response to arrive
+    private static final int WAIT_TIME = 5000;
+
+    private StandInChatServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StandInChatServer();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Test that the commands sent and received by a client are recorded in
+     * order, and can be read back
+     *
+     * @throws Exception When the test is interrupted or the recording can't be read
+     */
+    @Test
+    public void testRecord() throws Exception {
+        StringWriter recording = new StringWriter();
+        TrafficRecorder recorder = new TrafficRecorder(recording);
+        TCPClient client = new TCPClient();
+        client.setTrafficRecorder(recorder);
+        assertTrue(client.connect("localhost", server.getPort()));
+        client.startListenThread();
+        client.tryLogin("alice");
+        client.refreshUserList();
+        waitFor(() -> recorder.getRecorded() == 4);
+        client.disconnect();
+        recorder.close();
+
+        List<TrafficRecorder.Entry> entries = TrafficRecorder.read(
+                new BufferedReader(new StringReader("# not a command\n" + recording)));
+        assertEquals(4, entries.size());
+        assertEquals(TrafficRecorder.SENT, entries.get(0).getDirection());
+        assertEquals("login alice", entries.get(0).getCommand());
+        assertEquals(0, entries.get(0).getMicros());
+        List<String> received = new ArrayList<>();
+        long previous = 0;
+        for (TrafficRecorder.Entry entry : entries) {
+            assertTrue(entry.getMicros() >= previous);
+            previous = entry.getMicros();
+            if (entry.getDirection() == TrafficRecorder.RECEIVED) {
+                received.add(entry.getCommand());
+            }
+        }
+        assertEquals(Arrays.asList("loginok", "users alice"), received);
+    }
+
+    /**
+     * Test that recorded sessions are replayed in parallel copies, with other
+     * user names, and that every reply is timed
+     *
+     * @throws Exception When the test is interrupted or the recording can't be read
+     */
+    @Test
+    public void testReplay() throws Exception {
+        List<List<TrafficRecorder.Entry>> sessions = new ArrayList<>();
+        sessions.add(TrafficRecorder.read(new BufferedReader(new StringReader(
+                "0 > login alice\n100 < loginok\n20000 > msg hello\n30000 > users\n30100 < users alice bob\n"))));
+        sessions.add(TrafficRecorder.read(new BufferedReader(new StringReader(
+                "0 > login bob\n100 < loginok\n25000 > privmsg alice hi\n26000 > help\n40000 > binframe\n"))));
+        TrafficReplayer replayer = new TrafficReplayer(sessions);
+
+        TrafficReplayer.Result result = replayer.replay("localhost", server.getPort(), 10, 2);
+        assertEquals(0, result.getFailedConnections());
+        assertEquals(12, result.getSent());
+        assertEquals(0, result.getUnanswered());
+        assertEquals(8, result.getReplyLatency().getCount());
+        assertEquals(14, result.getSendLag().getCount());
+
+        result = replayer.replay("localhost", server.getPort(), 0, 1);
+        assertEquals(6, result.getSent());
+        assertEquals(0, result.getSendLag().getCount());
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIME;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Fills a transcript with a million generated messages and measures the
+ * indexing rate and the latency of typical searches. Not a unit test - run
+ * main(), optionally with the number of messages as argument.
+ */
+public class TranscriptBenchmark {
+    private static final String[] USERS = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+    private static final String[] WORDS = {
+        "hello", "server", "socket", "timeout", "port", "login", "error", "message", "thread", "java",
+        "client", "test", "works", "again", "why", "fixed", "commit", "build", "maven", "exception"
+    };
+    private static final int QUERY_ROUNDS = 100;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        File directory = Files.createTempDirectory("transcript-benchmark").toFile();
+        Random random = new Random(42);
+        long firstTimestamp = System.currentTimeMillis();
+        try (TranscriptStore store = new TranscriptStore(directory)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int w = 0; w < 8; w++) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                text.append(i);
+                store.add(firstTimestamp + i, new TextMessage(USERS[random.nextInt(USERS.length)],
+                        random.nextInt(10) == 0, text.toString()));
+            }
+            store.sync();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Indexed %d messages in %.1f s (%.0f msgs/s), log %d MB%n", messages,
+                    elapsed / 1e9, messages * 1e9 / elapsed,
+                    new File(directory, "transcript.log").length() >> 20);
+
+            long middle = firstTimestamp + messages / 2;
+            query(store, "sender", new TranscriptQuery().sender("bob"));
+            query(store, "private", new TranscriptQuery().privateMessages(true));
+            query(store, "time range", new TranscriptQuery().between(middle, middle + 1000));
+            query(store, "keyword", new TranscriptQuery().keywords("timeout"));
+            query(store, "2 keywords + sender", new TranscriptQuery().keywords("socket timeout").sender("carol"));
+            query(store, "rare keyword", new TranscriptQuery().keywords(String.valueOf(messages / 3)));
+            query(store, "keyword in old range", new TranscriptQuery().keywords("maven exception")
+                    .privateMessages(true).between(firstTimestamp, firstTimestamp + messages / 10));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static void query(TranscriptStore store, String name, TranscriptQuery query) {
+        int results = 0;
+        // Warm up
+        for (int i = 0; i < QUERY_ROUNDS; i++) {
+            results = store.search(query).size();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_ROUNDS; i++) {
+            store.search(query);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / QUERY_ROUNDS;
+        System.out.printf("%-22s %4d results %10.1f us%n", name, results, micros);
+    }
+}
@@ -0,0 +1,83 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TranscriptStoreTest {
+
+    /**
+     * Test searching by sender, private flag, time range and keywords
+     *
+     * @throws Exception When the transcript can not be written
+     */
+    @Test
+    public void testSearch() throws Exception {
+        File directory = Files.createTempDirectory("transcript").toFile();
+        try (TranscriptStore store = new TranscriptStore(directory)) {
+            fill(store);
+            assertEquals(4, store.size());
+
+            List<TranscriptEntry> fromBob = store.search(new TranscriptQuery().sender("bob"));
+            assertEquals(2, fromBob.size());
+            // Newest first
+            assertEquals("Socket timeout again", fromBob.get(0).getMessage().getText());
+
+            assertEquals(1, store.search(new TranscriptQuery().privateMessages(true)).size());
+            assertEquals(3, store.search(new TranscriptQuery().privateMessages(false)).size());
+            assertEquals(2, store.search(new TranscriptQuery().between(2000, 4000)).size());
+
+            List<TranscriptEntry> timeouts = store.search(new TranscriptQuery().keywords("TIMEOUT"));
+            assertEquals(3, timeouts.size());
+            assertEquals(1, store.search(new TranscriptQuery().keywords("socket, timeout!")
+                    .sender("bob").privateMessages(false)).size());
+            assertEquals(1, store.search(new TranscriptQuery().keywords("timeout").limit(1)).size());
+            assertTrue(store.search(new TranscriptQuery().keywords("nothing")).isEmpty());
+            assertTrue(store.search(new TranscriptQuery().sender("nobody")).isEmpty());
+        }
+    }
+
+    /**
+     * Test that the index is rebuilt when the transcript is opened again, and
+     * that a record cut short by a crash is dropped
+     *
+     * @throws Exception When the transcript can not be written
+     */
+    @Test
+    public void testReopen() throws Exception {
+        File directory = Files.createTempDirectory("transcript").toFile();
+        try (TranscriptStore store = new TranscriptStore(directory)) {
+            fill(store);
+        }
+        // Simulate a crash in the middle of writing the last record
+        truncate(new File(directory, "transcript.log"), 5);
+        try (TranscriptStore store = new TranscriptStore(directory)) {
+            assertEquals(3, store.size());
+            store.add(5000, new TextMessage("carol", false, "timeout fixed"));
+            store.sync();
+            List<TranscriptEntry> timeouts = store.search(new TranscriptQuery().keywords("timeout"));
+            assertEquals(3, timeouts.size());
+            assertEquals("carol", timeouts.get(0).getMessage().getSender());
+            assertEquals(5000, timeouts.get(0).getTimestamp());
+        }
+    }
+
+    private static void fill(TranscriptStore store) throws InterruptedException {
+        store.add(1000, new TextMessage("alice", false, "Hello everyone"));
+        store.add(2000, new TextMessage("bob", false, "I get a timeout"));
+        store.add(3000, new TextMessage("alice", true, "Timeout? Which port?"));
+        store.add(4000, new TextMessage("bob", false, "Socket timeout again"));
+        store.sync();
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - bytes);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A large room polled again and again, with a few users joining and leaving
+ * between the polls. Compares the old way of showing the list (clear it and
+ * add every user again, one list change per user) with UserListModel (diff
+ * on the receiving thread, apply the changes on the GUI thread). Reports the
+ * time spent on each thread and the number of list changes a view would have
+ * to process per poll. Not a unit test - run main(), optionally with the
+ * number of users and the changes per poll as arguments.
+ */
+public class UserListBenchmark {
+    private static final int POLLS = 2000;
+
+    /**
+     * Counts the elements added to and removed from the list.
+     */
+    private static class CountingList extends ArrayList<String> {
+        long changes = 0;
+
+        @Override
+        public boolean add(String user) {
+            changes++;
+            return super.add(user);
+        }
+
+        @Override
+        public void add(int index, String user) {
+            changes++;
+            super.add(index, user);
+        }
+
+        @Override
+        public String remove(int index) {
+            changes++;
+            return super.remove(index);
+        }
+
+        @Override
+        public void clear() {
+            changes += size();
+            super.clear();
+        }
+    }
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int changesPerPoll = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random random = new Random(42);
+        String[][] polls = new String[POLLS][];
+        List<String> room = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            room.add("user" + i);
+        }
+        int next = users;
+        for (int poll = 0; poll < POLLS; poll++) {
+            for (int i = 0; i < changesPerPoll / 2; i++) {
+                room.set(random.nextInt(room.size()), "user" + next++);
+            }
+            String[] list = room.toArray(new String[0]);
+            // The server sends the list in its own order
+            Collections.shuffle(Arrays.asList(list), random);
+            polls[poll] = list;
+        }
+
+        for (int round = 0; round < 3; round++) {
+            boolean report = round == 2;
+            rebuildEveryPoll(polls, report);
+            incremental(polls, report);
+        }
+    }
+
+    private static void rebuildEveryPoll(String[][] polls, boolean report) {
+        CountingList shown = new CountingList();
+        long start = System.nanoTime();
+        for (String[] poll : polls) {
+            shown.clear();
+            for (String user : poll) {
+                shown.add(user);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (report) {
+            System.out.printf("Rebuild every poll: GUI thread %.1f us/poll, %d list changes/poll%n",
+                    elapsed / 1e3 / polls.length, shown.changes / polls.length);
+        }
+    }
+
+    private static void incremental(String[][] polls, boolean report) {
+        CountingList shown = new CountingList();
+        UserListModel model = new UserListModel(shown);
+        // The first poll fills the list, count from the second one
+        model.apply(model.diff(polls[0]));
+        shown.changes = 0;
+        long diffNanos = 0;
+        long applyNanos = 0;
+        for (int i = 1; i < polls.length; i++) {
+            long start = System.nanoTime();
+            UserListModel.Changes changes = model.diff(polls[i]);
+            long diffed = System.nanoTime();
+            model.apply(changes);
+            applyNanos += System.nanoTime() - diffed;
+            diffNanos += diffed - start;
+        }
+        if (report) {
+            int count = polls.length - 1;
+            System.out.printf("UserListModel:      GUI thread %.1f us/poll, %d list changes/poll, "
+                            + "diff on the receiving thread %.1f us/poll%n",
+                    applyNanos / 1e3 / count, shown.changes / count, diffNanos / 1e3 / count);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UserListModelTest {
+
+    /**
+     * Test that the shown list follows the polled lists, sorted, and that only
+     * the changes are reported
+     */
+    @Test
+    public void testUpdates() {
+        List<String> shown = new ArrayList<>();
+        UserListModel model = new UserListModel(shown);
+        UserListModel.Changes changes = model.diff(new String[]{"carol", "Bob", "alice", "bob"});
+        assertEquals(Arrays.asList("alice", "Bob", "bob", "carol"), changes.getAdded());
+        model.apply(changes);
+        assertEquals(Arrays.asList("alice", "Bob", "bob", "carol"), shown);
+
+        changes = model.diff(new String[]{"bob", "alice", "Bob", "carol"});
+        assertTrue(changes.isEmpty());
+
+        changes = model.diff(new String[]{"alice", "bob", "Bob", "carol", "Dave"});
+        assertEquals(Arrays.asList("Dave"), changes.getAdded());
+        assertTrue(changes.getRemoved().isEmpty());
+        model.apply(changes);
+        assertEquals(Arrays.asList("alice", "Bob", "bob", "carol", "Dave"), shown);
+
+        changes = model.diff(new String[]{"alice", "carol", "Dave", "Bob"});
+        assertEquals(Arrays.asList("bob"), changes.getRemoved());
+        model.apply(changes);
+        assertEquals(Arrays.asList("alice", "Bob", "carol", "Dave"), shown);
+    }
+
+    /**
+     * Test that random polls, applied incrementally or rebuilt, always give the
+     * same list as sorting the polled list
+     */
+    @Test
+    public void testAgainstSorting() {
+        Random random = new Random(42);
+        List<String> shown = new ArrayList<>();
+        UserListModel model = new UserListModel(shown);
+        TreeSet<String> room = new TreeSet<>();
+        for (int poll = 0; poll < 200; poll++) {
+            // Mostly small changes, sometimes half the room leaves
+            int changes = (poll % 50 == 49) ? room.size() / 2 : random.nextInt(20);
+            for (int i = 0; i < changes; i++) {
+                String user = "user" + random.nextInt(3000);
+                if (!room.remove(user)) {
+                    room.add(user);
+                }
+            }
+            model.apply(model.diff(room.toArray(new String[0])));
+            List<String> expected = new ArrayList<>(room);
+            expected.sort(UserListModel.ORDER);
+            assertEquals(expected, shown);
+        }
+    }
+
+    /**
+     * Test the prefix search used to complete recipients
+     */
+    @Test
+    public void testPrefix() {
+        UserListModel model = new UserListModel(new ArrayList<>());
+        model.apply(model.diff(new String[]{"al", "Al", "alice", "ALBERT", "bob", "alfa", "zed"}));
+        assertEquals(Arrays.asList("Al", "al", "ALBERT", "alfa", "alice"), model.withPrefix("al", 10));
+        assertEquals(Arrays.asList("ALBERT", "alfa"), model.withPrefix("AL", 10).subList(2, 4));
+        assertEquals(Arrays.asList("Al", "al"), model.withPrefix("al", 2));
+        assertEquals(Arrays.asList("alice"), model.withPrefix("ALI", 10));
+        assertEquals(Arrays.asList("zed"), model.withPrefix("z", 10));
+        assertTrue(model.withPrefix("x", 10).isEmpty());
+        assertEquals(7, model.withPrefix("", 10).size());
+    }
+}
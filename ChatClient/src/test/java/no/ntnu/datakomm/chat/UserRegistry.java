@@ -0,0 +1,89 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logged in users of a chat server: user name to session. Safe to use
+ * from all the session threads at once, without a global lock: the map is
+ * split in bins locked one at a time (ConcurrentHashMap), so logins of
+ * different users don't wait for each other, and lookups don't lock at all.
+ * A private message is routed with one lookup, and the user list is a
+ * snapshot taken while the users log in and out, never blocking them.
+ *
+ * @param <S> Type of the sessions
+ */
+public class UserRegistry<S> {
+    private final ConcurrentHashMap<String, S> users;
+
+    /**
+     * @param expectedUsers Number of users expected, to size the map once
+     */
+    public UserRegistry(int expectedUsers) {
+        // Sized once: no resizing during a login storm
+        users = new ConcurrentHashMap<>(expectedUsers);
+    }
+
+    /**
+     * Log a session in, or rename it.
+     *
+     * @param name     The user name
+     * @param session  The session
+     * @param previous The current name of the session, null if not logged in
+     * @return False if the name is used by another session
+     */
+    public boolean login(String name, S session, String previous) {
+        S owner = users.putIfAbsent(name, session);
+        if (owner != null && owner != session) {
+            return false;
+        }
+        if (previous != null && !previous.equals(name)) {
+            users.remove(previous, session);
+        }
+        return true;
+    }
+
+    /**
+     * Log a session out. Nothing is done if the name is now used by another
+     * session.
+     *
+     * @param name    The user name of the session
+     * @param session The session
+     * @return True if the session was logged in with that name
+     */
+    public boolean logout(String name, S session) {
+        return name != null && users.remove(name, session);
+    }
+
+    /**
+     * @param name A user name
+     * @return The session logged in with that name, null if none
+     */
+    public S get(String name) {
+        return users.get(name);
+    }
+
+    /**
+     * @return The user names, separated by spaces. Users logging in or out
+     * meanwhile may or may not be listed.
+     */
+    public String listNames() {
+        return String.join(" ", users.keySet());
+    }
+
+    /**
+     * @return The sessions logged in, for a broadcast. Users logging in or
+     * out meanwhile may or may not be included.
+     */
+    public List<S> sessions() {
+        return new ArrayList<>(users.values());
+    }
+
+    /**
+     * @return Number of users logged in
+     */
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,174 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates 50 000 sessions of a chat server on the user registry, without
+ * sockets: all the sessions log in at once (login storm), then send private
+ * messages (one lookup each), ask for the user list now and then, and log
+ * out. Compares UserRegistry with a HashMap behind one lock, as the
+ * StandInChatServer had before. Not a unit test - run main().
+ */
+public class UserRegistryBenchmark {
+    private static final int SESSIONS = 50000;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int PRIVATE_MESSAGES_PER_SESSION = 20;
+    // One user list request per this many private messages
+    private static final int MESSAGES_PER_USER_LIST = 5000;
+
+    /**
+     * The registry operations used by a server session.
+     */
+    private interface Registry {
+        boolean login(String name, Object session);
+
+        Object get(String name);
+
+        String listNames();
+
+        void logout(String name, Object session);
+    }
+
+    private static class Sharded implements Registry {
+        private final UserRegistry<Object> users = new UserRegistry<>(SESSIONS);
+
+        @Override
+        public boolean login(String name, Object session) {
+            return users.login(name, session, null);
+        }
+
+        @Override
+        public Object get(String name) {
+            return users.get(name);
+        }
+
+        @Override
+        public String listNames() {
+            return users.listNames();
+        }
+
+        @Override
+        public void logout(String name, Object session) {
+            users.logout(name, session);
+        }
+    }
+
+    private static class GlobalLock implements Registry {
+        private final Map<String, Object> users = new HashMap<>();
+
+        @Override
+        public boolean login(String name, Object session) {
+            synchronized (users) {
+                Object owner = users.get(name);
+                if (owner != null && owner != session) {
+                    return false;
+                }
+                users.put(name, session);
+                return true;
+            }
+        }
+
+        @Override
+        public Object get(String name) {
+            synchronized (users) {
+                return users.get(name);
+            }
+        }
+
+        @Override
+        public String listNames() {
+            synchronized (users) {
+                return String.join(" ", users.keySet());
+            }
+        }
+
+        @Override
+        public void logout(String name, Object session) {
+            synchronized (users) {
+                if (users.get(name) == session) {
+                    users.remove(name);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println(SESSIONS + " sessions on " + THREADS + " threads");
+        for (int round = 0; round < 3; round++) {
+            boolean print = round == 2;
+            run("One lock ", new GlobalLock(), print);
+            run("Registry ", new Sharded(), print);
+        }
+    }
+
+    private static void run(String name, Registry registry, boolean print) throws InterruptedException {
+        String[] names = new String[SESSIONS];
+        Object[] sessions = new Object[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            names[i] = "user" + i;
+            sessions[i] = new Object();
+        }
+        LongAdder found = new LongAdder();
+        long loginNanos = inParallel((thread) -> {
+            for (int i = thread; i < SESSIONS; i += THREADS) {
+                registry.login(names[i], sessions[i]);
+            }
+        });
+        long messageNanos = inParallel((thread) -> {
+            Random random = new Random(thread);
+            int count = 0;
+            for (int i = thread; i < SESSIONS; i += THREADS) {
+                for (int m = 0; m < PRIVATE_MESSAGES_PER_SESSION; m++) {
+                    if (registry.get(names[random.nextInt(SESSIONS)]) != null) {
+                        count++;
+                    }
+                    if (++count % MESSAGES_PER_USER_LIST == 0) {
+                        count += registry.listNames().length() > 0 ? 1 : 0;
+                    }
+                }
+            }
+            found.add(count);
+        });
+        long logoutNanos = inParallel((thread) -> {
+            for (int i = thread; i < SESSIONS; i += THREADS) {
+                registry.logout(names[i], sessions[i]);
+            }
+        });
+        if (print) {
+            long messages = (long) SESSIONS * PRIVATE_MESSAGES_PER_SESSION;
+            System.out.printf("%s login storm %.0f logins/s, privmsg + users %.0f messages/s, "
+                            + "logout %.0f/s (%d)%n", name, SESSIONS * 1e9 / loginNanos,
+                    messages * 1e9 / messageNanos, SESSIONS * 1e9 / logoutNanos, found.sum());
+        }
+    }
+
+    private interface Work {
+        void run(int thread);
+    }
+
+    /**
+     * Run the work on all the threads at once.
+     *
+     * @return The time until all the threads are done, in ns
+     */
+    private static long inParallel(Work work) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> work.run(thread)));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
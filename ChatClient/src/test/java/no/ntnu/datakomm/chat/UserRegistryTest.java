@@ -0,0 +1,80 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UserRegistryTest {
+
+    /**
+     * Test login, rename, lookup and logout of sessions
+     */
+    @Test
+    public void testLogin() {
+        UserRegistry<Object> registry = new UserRegistry<>(10);
+        Object alice = new Object();
+        Object bob = new Object();
+        assertTrue(registry.login("alice", alice, null));
+        assertTrue(registry.login("alice", alice, "alice"));
+        assertFalse(registry.login("alice", bob, null));
+        assertTrue(registry.login("bob", bob, null));
+        assertSame(alice, registry.get("alice"));
+        assertNull(registry.get("carol"));
+        assertEquals(new HashSet<>(Arrays.asList("alice", "bob")),
+                new HashSet<>(Arrays.asList(registry.listNames().split(" "))));
+
+        // Rename: the old name is free again
+        assertTrue(registry.login("alice2", alice, "alice"));
+        assertNull(registry.get("alice"));
+        assertSame(alice, registry.get("alice2"));
+        assertEquals(2, registry.size());
+
+        // Only the owner of the name can log it out
+        assertFalse(registry.logout("alice2", bob));
+        assertFalse(registry.logout(null, bob));
+        assertTrue(registry.logout("alice2", alice));
+        assertEquals(1, registry.size());
+        assertEquals("bob", registry.listNames());
+        assertEquals(1, registry.sessions().size());
+    }
+
+    /**
+     * Test that each name is given to one session only, when many sessions
+     * try to log in with the same names at once
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void testConcurrentLogin() throws InterruptedException {
+        final int names = 1000;
+        UserRegistry<Object> registry = new UserRegistry<>(names);
+        AtomicInteger accepted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < names; i++) {
+                    if (registry.login("user" + i, new Object(), null)) {
+                        accepted.incrementAndGet();
+                    }
+                    // Snapshots while the others log in
+                    if (i % 100 == 0) {
+                        registry.listNames();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(names, accepted.get());
+        assertEquals(names, registry.size());
+        assertEquals(names, registry.listNames().split(" ").length);
+    }
+}
@@ -0,0 +1,56 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WireCodecTest {
+
+    /**
+     * Test that lines are encoded as UTF-8 with a single newline, both for ASCII
+     * and non-ASCII text
+     */
+    @Test
+    public void testEncodeLine() {
+        assertArrayEquals("msg hello\n".getBytes(StandardCharsets.UTF_8),
+                WireCodec.encodeLine("msg hello"));
+        assertArrayEquals("msg Ålesund æøå\n".getBytes(StandardCharsets.UTF_8),
+                WireCodec.encodeLine("msg Ålesund æøå"));
+    }
+
+    /**
+     * Test that decoding gives back the original text
+     */
+    @Test
+    public void testDecode() {
+        byte[] ascii = "xxloginok".getBytes(StandardCharsets.UTF_8);
+        assertEquals("loginok", WireCodec.decode(ascii, 2, ascii.length - 2));
+        byte[] utf8 = "privmsg bob Hei på deg".getBytes(StandardCharsets.UTF_8);
+        assertEquals("privmsg bob Hei på deg", WireCodec.decode(utf8, 0, utf8.length));
+    }
+
+    /**
+     * Test that WireReader splits the stream into lines, strips carriage returns
+     * and handles lines longer than its internal buffer
+     *
+     * @throws IOException Never, the stream is in memory
+     */
+    @Test
+    public void testWireReader() throws IOException {
+        StringBuilder longLine = new StringBuilder("msg bob ");
+        for (int i = 0; i < 20000; i++) {
+            longLine.append(i % 2 == 0 ? 'a' : 'ø');
+        }
+        String input = "loginok\r\nusers a b\n" + longLine + "\nsupported";
+        WireReader reader = new WireReader(new ByteArrayInputStream(
+                input.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("loginok", reader.readLine());
+        assertEquals("users a b", reader.readLine());
+        assertEquals(longLine.toString(), reader.readLine());
+        // Unterminated last line is not returned: the server always ends lines
+        assertNull(reader.readLine());
+    }
+}
@@ -0,0 +1,119 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection storm against SimpleTcpServer: many threads open connections as
+ * fast as they can and keep them open, first with the old listening socket
+ * settings (backlog 50, one acceptor), then with the tuned ones. Reports
+ * accepts per second and connect latency; a full accept queue shows up as
+ * connects taking a second or more (the SYN is dropped and retransmitted).
+ *
+ * Usage: AcceptStormBenchmark [threads] [connections per thread] [acceptors]
+ */
+public class AcceptStormBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 25;
+        int acceptors = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        // One line per connection would dominate the measurement
+        AsyncLogger.getDefault().setLevel(AsyncLogger.Level.WARN);
+
+        ServerConfig old = ServerConfig.oldDefaults().setPort(0);
+        ServerConfig tuned = new ServerConfig().setPort(0).setBacklog(4096).setAcceptors(acceptors)
+                .setReusePort(true);
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JVM and the kernel
+            boolean report = round == 1;
+            storm(old, threads, perThread, report);
+            storm(tuned, threads, perThread, report);
+        }
+    }
+
+    private static void storm(ServerConfig config, int threads, int perThread, boolean report)
+            throws InterruptedException {
+        SimpleTcpServer server = new SimpleTcpServer(config);
+        Thread serverThread = new Thread(server::run, "server");
+        serverThread.start();
+        while (server.getPort() < 0) {
+            Thread.sleep(10);
+        }
+        int port = server.getPort();
+
+        int total = threads * perThread;
+        long[] latencies = new long[total];
+        AtomicInteger failures = new AtomicInteger();
+        List<List<Socket>> sockets = new ArrayList<>();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            List<Socket> open = new ArrayList<>();
+            sockets.add(open);
+            new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    for (int i = 0; i < perThread; i++) {
+                        long start = System.nanoTime();
+                        try {
+                            Socket socket = new Socket();
+                            socket.connect(new InetSocketAddress("localhost", port), 10000);
+                            open.add(socket);
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[first + i] = System.nanoTime() - start;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        // Connected is not accepted yet: wait until the server has taken them all
+        long accepted;
+        while ((accepted = server.getMetrics().getAcceptedConnections()) < total - failures.get()
+                && System.nanoTime() - start < 30_000_000_000L) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (List<Socket> open : sockets) {
+            for (Socket socket : open) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignored, only the server side matters
+                }
+            }
+        }
+        server.shutdown(5000);
+        serverThread.join();
+
+        if (report) {
+            Arrays.sort(latencies);
+            System.out.println(config);
+            System.out.printf("  %d connections, %d failed, %.0f accepts/s, connect p50 %.2f ms, p99 %.2f ms, "
+                            + "max %.2f ms, %d over 1 s%n",
+                    accepted, failures.get(), accepted * 1e9 / elapsed, latencies[total / 2] / 1e6,
+                    latencies[(int) (total * 0.99)] / 1e6, latencies[total - 1] / 1e6,
+                    Arrays.stream(latencies).filter(l -> l >= 1_000_000_000L).count());
+        }
+    }
+}
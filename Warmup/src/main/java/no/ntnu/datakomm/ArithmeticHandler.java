@@ -0,0 +1,114 @@
+package no.ntnu.datakomm;
+
+/**
+ * Answers integer expressions with any number of operands: "1+2", "3 * 4 - 5",
+ * "-2*-3". Supports +, - and *, with * before + and -. Parses the request
+ * bytes directly, without creating strings or boxing numbers. A request which
+ * is not a valid expression, or whose result does not fit in a long, is
+ * answered with an error.
+ */
+public class ArithmeticHandler implements RequestHandler {
+    // Expressions with more operators than this are handled by a worker
+    private final int inlineOperators;
+
+    /**
+     * @param inlineOperators Max number of operators handled on the connection
+     *                        thread
+     */
+    public ArithmeticHandler(int inlineOperators) {
+        this.inlineOperators = inlineOperators;
+    }
+
+    @Override
+    public Outcome handle(Request request, Response response, Next next) {
+        byte[] bytes = request.array();
+        int to = request.to();
+        // Sum of the finished terms, and product of the current term
+        long sum = 0;
+        long product = 1;
+        int sign = 1;
+        int i = skipSpaces(bytes, request.from(), to);
+        while (true) {
+            // Operand: optional sign, then digits
+            boolean negative = false;
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+                negative = bytes[i] == '-';
+                i = skipSpaces(bytes, i + 1, to);
+            }
+            int digits = i;
+            long value = 0;
+            while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+                value = value * 10 + (bytes[i] - '0');
+                if (i - digits >= 18) {
+                    // Too many digits for a long
+                    return next.handle(request, response);
+                }
+                i++;
+            }
+            if (i == digits) {
+                // No digits: not an expression for us
+                return next.handle(request, response);
+            }
+            if (negative) {
+                value = -value;
+            }
+            if (!productFits(product, value)) {
+                return next.handle(request, response);
+            }
+            product *= value;
+
+            i = skipSpaces(bytes, i, to);
+            if (i == to || bytes[i] == '+' || bytes[i] == '-') {
+                // End of a term
+                if (sign < 0 && product == Long.MIN_VALUE) {
+                    return next.handle(request, response);
+                }
+                long term = sign * product;
+                if (((sum ^ (sum + term)) & (term ^ (sum + term))) < 0) {
+                    // Overflow
+                    return next.handle(request, response);
+                }
+                sum += term;
+                if (i == to) {
+                    break;
+                }
+                sign = bytes[i] == '-' ? -1 : 1;
+                product = 1;
+            } else if (bytes[i] != '*') {
+                return next.handle(request, response);
+            }
+            i = skipSpaces(bytes, i + 1, to);
+        }
+        response.append(sum);
+        return Outcome.RESPOND;
+    }
+
+    @Override
+    public boolean isExpensive(Request request) {
+        int operators = 0;
+        byte[] bytes = request.array();
+        for (int i = request.from(); i < request.to(); i++) {
+            byte b = bytes[i];
+            if ((b == '+' || b == '-' || b == '*') && ++operators > inlineOperators) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if a * b does not overflow
+     */
+    private static boolean productFits(long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        return (high == 0 && low >= 0) || (high == -1 && low < 0);
+    }
+
+    private static int skipSpaces(byte[] bytes, int i, int to) {
+        while (i < to && bytes[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+}
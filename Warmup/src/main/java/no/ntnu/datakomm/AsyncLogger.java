@@ -0,0 +1,249 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger for the server hot paths. Logging threads only claim a
+ * slot in a preallocated, lock-free ring buffer and store the message template
+ * and its arguments there; a single writer thread formats the messages and
+ * writes them to standard output. Logging threads therefore never wait for the
+ * console or for each other, and a message below the configured level costs one
+ * comparison and allocates nothing.
+ *
+ * Messages are templates where every "{}" is replaced by the next argument:
+ * <pre>
+ * LOG.info("Responded to request &lt; {} &gt; with &lt; {} &gt;", request, response);
+ * </pre>
+ * Pass the values as arguments instead of concatenating them, so that no string
+ * is built when the level is disabled. Primitive arguments are boxed by the
+ * caller, so guard such calls with isEnabled() in hot paths. When the ring
+ * buffer is full the message is dropped (and counted) instead of blocking the
+ * caller.
+ *
+ * The level is read from the system property "warmup.log.level" (DEBUG, INFO,
+ * WARN or ERROR, default INFO).
+ */
+public final class AsyncLogger {
+    /**
+     * Log levels, least severe first
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    // Must be a power of two
+    private static final int CAPACITY = 8192;
+    // How long the writer sleeps when there is nothing to write
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static final AsyncLogger DEFAULT = new AsyncLogger(
+            Level.valueOf(System.getProperty("warmup.log.level", "INFO").toUpperCase()),
+            new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                    false));
+
+    /**
+     * One entry of the ring buffer. The sequence number tells who owns the slot:
+     * sequence == position means free for the producer claiming position,
+     * sequence == position + 1 means published and ready for the writer.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        String template;
+        Object arg1;
+        Object arg2;
+        long threadId;
+    }
+
+    private final Slot[] slots = new Slot[CAPACITY];
+    private final AtomicLong claimed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out;
+    private final Thread writer;
+    private volatile Level level;
+    // Position of the next slot to write, guarded by the lock of writeNext()
+    private long written = 0;
+
+    private AsyncLogger(Level level, PrintStream out) {
+        this.level = level;
+        this.out = out;
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        writer = new Thread(this::writeLoop, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "async-logger-shutdown"));
+    }
+
+    /**
+     * @return The logger shared by the whole application
+     */
+    public static AsyncLogger getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param level Messages below this level are discarded
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @param level A log level
+     * @return true if messages of the given level are logged
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * @return Number of messages dropped because the ring buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null, null);
+    }
+
+    public void debug(String template, Object arg) {
+        log(Level.DEBUG, template, arg, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null, null);
+    }
+
+    public void info(String template, Object arg) {
+        log(Level.INFO, template, arg, null);
+    }
+
+    public void info(String template, Object arg1, Object arg2) {
+        log(Level.INFO, template, arg1, arg2);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null, null);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null, null);
+    }
+
+    public void error(String template, Object arg) {
+        log(Level.ERROR, template, arg, null);
+    }
+
+    /**
+     * Queue a message for the writer thread.
+     *
+     * @param level    Level of the message
+     * @param template Message template, "{}" is replaced by the arguments
+     * @param arg1     First argument, or null
+     * @param arg2     Second argument, or null
+     */
+    public void log(Level level, String template, Object arg1, Object arg2) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long position;
+        Slot slot;
+        while (true) {
+            position = claimed.get();
+            slot = slots[(int) (position & (CAPACITY - 1))];
+            long sequence = slot.sequence;
+            if (sequence == position) {
+                if (claimed.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The writer has not freed this slot yet: the buffer is full
+                dropped.increment();
+                return;
+            }
+            // Otherwise another thread claimed the position first, try the next
+        }
+        slot.template = template;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.threadId = Thread.currentThread().getId();
+        // Publish: the volatile write makes the fields above visible to the writer
+        slot.sequence = position + 1;
+    }
+
+    /**
+     * Body of the writer thread.
+     */
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDropped = 0;
+        while (true) {
+            if (!writeNext(line)) {
+                long droppedNow = dropped.sum();
+                if (droppedNow != reportedDropped) {
+                    out.println("WARNING: " + (droppedNow - reportedDropped)
+                            + " log messages dropped, the log buffer was full");
+                    reportedDropped = droppedNow;
+                }
+                out.flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Format and write the next published message, if any.
+     *
+     * @return false if there was no message to write
+     */
+    private synchronized boolean writeNext(StringBuilder line) {
+        Slot slot = slots[(int) (written & (CAPACITY - 1))];
+        if (slot.sequence != written + 1) {
+            return false;
+        }
+        line.setLength(0);
+        line.append("THREAD #").append(slot.threadId).append(": ");
+        appendFormatted(line, slot.template, slot.arg1, slot.arg2);
+        slot.template = null;
+        slot.arg1 = null;
+        slot.arg2 = null;
+        // Free the slot for the producer which will claim it on the next lap
+        slot.sequence = written + CAPACITY;
+        written++;
+        out.append(line).append(System.lineSeparator());
+        return true;
+    }
+
+    private static void appendFormatted(StringBuilder line, String template, Object arg1, Object arg2) {
+        int start = 0;
+        int argument = 0;
+        int placeholder;
+        while (argument < 2 && (placeholder = template.indexOf("{}", start)) >= 0) {
+            line.append(template, start, placeholder).append(argument == 0 ? arg1 : arg2);
+            start = placeholder + 2;
+            argument++;
+        }
+        line.append(template, start, template.length());
+    }
+
+    /**
+     * Write everything still in the buffer. Runs at JVM shutdown so that the
+     * last messages are not lost.
+     */
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (writeNext(line)) {
+            // keep writing
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,71 @@
+package no.ntnu.datakomm;
+
+/**
+ * Splits a batch request, "1+2;3*4;5-6", into its parts and passes each part
+ * on to the next stages. The responses are joined the same way: "3;12;-1".
+ * A part which would close the connection is answered with an error instead.
+ */
+public class BatchHandler implements RequestHandler {
+    /**
+     * Separates the requests in a batch
+     */
+    public static final byte SEPARATOR = ';';
+
+    // Batches with more parts than this are handled by a worker
+    private final int inlineParts;
+
+    /**
+     * @param inlineParts Max number of parts handled on the connection thread
+     */
+    public BatchHandler(int inlineParts) {
+        this.inlineParts = inlineParts;
+    }
+
+    @Override
+    public Outcome handle(Request request, Response response, Next next) {
+        int from = request.from();
+        int to = request.to();
+        byte[] bytes = request.array();
+        int separator = indexOf(bytes, from, to);
+        if (separator < 0) {
+            return next.handle(request, response);
+        }
+        int start = from;
+        while (start <= to) {
+            int end = (separator >= 0) ? separator : to;
+            if (start > from) {
+                response.append(SEPARATOR);
+            }
+            request.window(start, end);
+            int mark = response.length();
+            if (next.handle(request, response) == Outcome.CLOSE || response.length() == mark) {
+                response.appendError();
+            }
+            start = end + 1;
+            separator = (start < to) ? indexOf(bytes, start, to) : -1;
+        }
+        request.window(from, to);
+        return Outcome.RESPOND;
+    }
+
+    @Override
+    public boolean isExpensive(Request request) {
+        int parts = 1;
+        byte[] bytes = request.array();
+        for (int i = request.from(); i < request.to(); i++) {
+            if (bytes[i] == SEPARATOR && ++parts > inlineParts) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == SEPARATOR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
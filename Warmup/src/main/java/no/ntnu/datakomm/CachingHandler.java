@@ -0,0 +1,34 @@
+package no.ntnu.datakomm;
+
+/**
+ * Answers repeated requests from a ResponseCache, and stores what the next
+ * stages answer. Placed in front of handlers whose response depends on the
+ * request only, like ArithmeticHandler; behind BatchHandler, the parts of a
+ * batch are cached one by one.
+ */
+public class CachingHandler implements RequestHandler {
+    private final ResponseCache cache;
+
+    /**
+     * @param cache Where the responses are kept
+     */
+    public CachingHandler(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public Outcome handle(Request request, Response response, Next next) {
+        if (!cache.isCacheable(request)) {
+            return next.handle(request, response);
+        }
+        if (cache.get(request, response)) {
+            return Outcome.RESPOND;
+        }
+        int mark = response.length();
+        Outcome outcome = next.handle(request, response);
+        if (outcome == Outcome.RESPOND && response.length() > mark) {
+            cache.put(request, response, mark, response.isErrorFrom(mark));
+        }
+        return outcome;
+    }
+}
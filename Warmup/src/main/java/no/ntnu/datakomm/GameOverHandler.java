@@ -0,0 +1,16 @@
+package no.ntnu.datakomm;
+
+/**
+ * Closes the connection when the client sends "game over".
+ */
+public class GameOverHandler implements RequestHandler {
+    private static final String GAME_OVER = "game over";
+
+    @Override
+    public Outcome handle(Request request, Response response, Next next) {
+        if (request.matches(GAME_OVER)) {
+            return Outcome.CLOSE;
+        }
+        return next.handle(request, response);
+    }
+}
@@ -0,0 +1,76 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads newline-terminated lines from a stream. Replaces Scanner: the bytes
+ * are read in bulk into one reusable buffer, without the intermediate char
+ * buffers and regex matching of a Scanner. As the RequestDecoder of the
+ * request pipeline it hands over the raw bytes of each line, without decoding
+ * them at all (Request decodes them with WireCodec when asked for the text).
+ * Not thread safe - meant to be used by the single thread reading the socket.
+ */
+class LineReader implements RequestDecoder {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    // Collects a line which does not fit in the buffer, or spans two reads
+    private byte[] pending = new byte[0];
+    private int pendingLength = 0;
+
+    /**
+     * @param in The stream to read from
+     */
+    LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read one line as raw bytes, without decoding it.
+     *
+     * @param request Where the line is stored, without the newline (and
+     *                without a trailing carriage return)
+     * @return False when the end of the stream is reached
+     * @throws IOException When reading from the stream fails
+     */
+    @Override
+    public boolean decode(Request request) throws IOException {
+        while (true) {
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    if (pendingLength == 0) {
+                        request.set(buffer, position, i - position);
+                    } else {
+                        request.set(pending, 0, pendingLength);
+                        request.append(buffer, position, i - position);
+                        pendingLength = 0;
+                    }
+                    request.stripCarriageReturn();
+                    position = i + 1;
+                    return true;
+                }
+            }
+            appendPending(position, limit - position);
+            position = 0;
+            limit = in.read(buffer);
+            if (limit < 0) {
+                limit = 0;
+                return false;
+            }
+        }
+    }
+
+    private void appendPending(int offset, int length) {
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+        }
+        System.arraycopy(buffer, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+}
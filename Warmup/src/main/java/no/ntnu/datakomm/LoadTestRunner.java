@@ -0,0 +1,221 @@
+package no.ntnu.datakomm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a number of SimpleTcpClient sessions against the server as one scoped
+ * unit of work: run() starts all the sessions, waits until every one of them
+ * has finished and only then returns a summary. If a session fails, or the
+ * deadline passes, all the sessions still running are cancelled (their
+ * sockets are closed, so they stop even when blocked in a read) - no session
+ * outlives run().
+ *
+ * Each session runs on its own virtual thread when the JVM has them (Java 21
+ * and later), otherwise on its own platform thread.
+ */
+public class LoadTestRunner {
+    private final String host;
+    private final int port;
+    private final int sessions;
+    private final long deadlineMillis;
+    private int minSleepMillis = 0;
+    private int maxSleepMillis = 0;
+
+    /**
+     * Result of one load test run.
+     */
+    public static class Summary {
+        private final int sessions;
+        private final int succeeded;
+        private final int failed;
+        private final int cancelled;
+        private final boolean deadlineExceeded;
+        private final long elapsedNanos;
+        private final long[] responseTimes;
+
+        Summary(int sessions, int succeeded, int failed, int cancelled, boolean deadlineExceeded,
+                long elapsedNanos, long[] responseTimes) {
+            this.sessions = sessions;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.deadlineExceeded = deadlineExceeded;
+            this.elapsedNanos = elapsedNanos;
+            this.responseTimes = responseTimes;
+            Arrays.sort(this.responseTimes);
+        }
+
+        /**
+         * @return True when every session succeeded within the deadline
+         */
+        public boolean isSuccess() {
+            return succeeded == sessions;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDeadlineExceeded() {
+            return deadlineExceeded;
+        }
+
+        /**
+         * @param percentile 0-100
+         * @return The response time at the given percentile in microseconds,
+         * 0 if there were no responses
+         */
+        public long getResponseTimeMicros(double percentile) {
+            if (responseTimes.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * responseTimes.length) - 1;
+            return responseTimes[Math.max(0, Math.min(index, responseTimes.length - 1))] / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d sessions: %d succeeded, %d failed, %d cancelled%s in %.2f s%n"
+                            + "%d responses, response time p50 %d us, p95 %d us, p99 %d us, max %d us",
+                    sessions, succeeded, failed, cancelled, deadlineExceeded ? " (deadline exceeded)" : "",
+                    elapsedNanos / 1e9, responseTimes.length, getResponseTimeMicros(50),
+                    getResponseTimeMicros(95), getResponseTimeMicros(99), getResponseTimeMicros(100));
+        }
+    }
+
+    /**
+     * @param host           The server host
+     * @param port           The server TCP port
+     * @param sessions       Number of client sessions to run concurrently
+     * @param deadlineMillis Max time for the whole run
+     */
+    public LoadTestRunner(String host, int port, int sessions, long deadlineMillis) {
+        this.host = host;
+        this.port = port;
+        this.sessions = sessions;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Set how long each client sleeps between its two requests. Default 0.
+     *
+     * @param minMillis Minimum sleep time
+     * @param maxMillis Maximum sleep time (exclusive)
+     */
+    public void setSleepRange(int minMillis, int maxMillis) {
+        this.minSleepMillis = minMillis;
+        this.maxSleepMillis = maxMillis;
+    }
+
+    /**
+     * Run all the sessions and wait for them.
+     *
+     * @return Summary of the run
+     * @throws InterruptedException When interrupted while waiting; the
+     *                              sessions are cancelled first
+     */
+    public Summary run() throws InterruptedException {
+        List<SimpleTcpClient> clients = new ArrayList<>();
+        List<Future<Boolean>> futures = new ArrayList<>();
+        ExecutorService executor = newThreadPerTaskExecutor();
+        ExecutorCompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        // Stops the run, the summary counts the final state of every session
+        boolean sessionFailed = false;
+        boolean deadlineExceeded = false;
+        try {
+            for (int i = 0; i < sessions; i++) {
+                SimpleTcpClient client = new SimpleTcpClient(host, port);
+                client.setSleepRange(minSleepMillis, maxSleepMillis);
+                clients.add(client);
+                futures.add(completion.submit(client::run));
+            }
+            for (int done = 0; done < sessions && !sessionFailed; done++) {
+                Future<Boolean> result = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (result == null) {
+                    deadlineExceeded = true;
+                    break;
+                }
+                sessionFailed = !Boolean.TRUE.equals(getQuietly(result));
+            }
+        } finally {
+            // Cancel whatever is still running, then wait for it to stop
+            for (int i = 0; i < futures.size(); i++) {
+                if (futures.get(i).cancel(true)) {
+                    clients.get(i).cancel();
+                }
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                System.out.println("Waiting for cancelled sessions to stop...");
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Sessions which finished before the cancel but were not polled yet
+        // count as what they were, not as cancelled
+        int succeeded = 0;
+        int failed = 0;
+        int cancelled = 0;
+        for (Future<Boolean> future : futures) {
+            if (future.isCancelled()) {
+                cancelled++;
+            } else if (Boolean.TRUE.equals(getQuietly(future))) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+        }
+        List<Long> times = new ArrayList<>();
+        for (SimpleTcpClient client : clients) {
+            times.addAll(client.getResponseTimes());
+        }
+        long[] responseTimes = new long[times.size()];
+        for (int i = 0; i < responseTimes.length; i++) {
+            responseTimes[i] = times.get(i);
+        }
+        return new Summary(sessions, succeeded, failed, cancelled, deadlineExceeded, elapsed, responseTimes);
+    }
+
+    /**
+     * @return The result of a finished session, null if it threw or was
+     * cancelled
+     */
+    private static Boolean getQuietly(Future<Boolean> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create an executor which starts a new virtual thread for each task, or a
+     * new platform thread before Java 21.
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
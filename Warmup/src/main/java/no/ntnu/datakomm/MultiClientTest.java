@@ -6,38 +6,34 @@ package no.ntnu.datakomm;
 public class MultiClientTest {
 
     /**
-     * Run multiple parallel clients that all connect to the same server
+     * Run multiple parallel clients that all connect to the same server, wait for
+     * all of them and print a summary. The process exits with status 1 if any
+     * client failed, so the test can run in a CI pipeline.
      *
-     * @param args Command-line arguments. Not used.
+     * @param args Command-line arguments, all optional: number of clients
+     *             (default 3), deadline in seconds (default 30), max sleep
+     *             time of each client in milliseconds (default 7000)
      */
     public static void main(String args[]) {
-        log("Starting several clients to test servers multi-threading capability");
-        startNewClient();
-        startNewClient();
-        startNewClient();
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int deadlineSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int maxSleepMillis = args.length > 2 ? Integer.parseInt(args[2]) : 7000;
+        log("Starting " + clients + " clients to test servers multi-threading capability");
+        LoadTestRunner runner = new LoadTestRunner("localhost", 1301, clients, deadlineSeconds * 1000L);
+        runner.setSleepRange(Math.min(2000, maxSleepMillis), maxSleepMillis);
+        LoadTestRunner.Summary summary;
+        try {
+            summary = runner.run();
+        } catch (InterruptedException e) {
+            log("Multi client test interrupted");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        log(summary.toString());
         log("Multi client app main thread done");
-    }
-
-    /**
-     * Start a new client in a new thread.
-     */
-    private static void startNewClient() {
-        final SimpleTcpClient client = new SimpleTcpClient();
-        Runnable taskToBeExecutedOnAnotherThread = new Runnable() {
-            public void run() {
-                try {
-                    long threadId = Thread.currentThread().getId();
-                    log("Starting a client on thread #" + threadId);
-                    client.run();
-                    log("Done processing client on thread #" + threadId);
-                } catch (InterruptedException e) {
-                    log("Client 1 interrupted");
-                    Thread.currentThread().interrupt();
-                }
-            }
-        };
-        Thread t = new Thread(taskToBeExecutedOnAnotherThread);
-        t.start();
+        if (!summary.isSuccess()) {
+            System.exit(1);
+        }
     }
 
     /**
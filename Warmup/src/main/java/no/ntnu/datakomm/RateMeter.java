@@ -0,0 +1,49 @@
+package no.ntnu.datakomm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events per second over a sliding window of the last minute. Every
+ * second has its own slot, which is reset lazily when the ring wraps around.
+ * An event racing with the reset of its slot may be lost, so the rate is
+ * approximate - good enough for a dashboard.
+ */
+public class RateMeter {
+    private static final int WINDOW_SECONDS = 60;
+
+    private final AtomicLongArray counts = new AtomicLongArray(WINDOW_SECONDS);
+    // The second each slot currently counts for
+    private final AtomicLongArray seconds = new AtomicLongArray(WINDOW_SECONDS);
+
+    /**
+     * Count one event.
+     */
+    public void mark() {
+        long now = System.currentTimeMillis() / 1000;
+        int slot = (int) (now % WINDOW_SECONDS);
+        long slotSecond = seconds.get(slot);
+        if (slotSecond != now && seconds.compareAndSet(slot, slotSecond, now)) {
+            // First event in this second: forget what the slot counted a minute ago
+            counts.set(slot, 0);
+        }
+        counts.incrementAndGet(slot);
+    }
+
+    /**
+     * @param lastSeconds Length of the period, at most 59 seconds
+     * @return Average number of events per second during the last completed
+     * seconds
+     */
+    public double getRate(int lastSeconds) {
+        int period = Math.max(1, Math.min(lastSeconds, WINDOW_SECONDS - 1));
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (long second = now - period; second < now; second++) {
+            int slot = (int) (second % WINDOW_SECONDS);
+            if (seconds.get(slot) == second) {
+                total += counts.get(slot);
+            }
+        }
+        return (double) total / period;
+    }
+}
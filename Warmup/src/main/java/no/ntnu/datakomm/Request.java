@@ -0,0 +1,111 @@
+package no.ntnu.datakomm;
+
+import java.util.Arrays;
+
+/**
+ * One request line as raw bytes, without the newline. A connection reuses one
+ * instance for all its requests, so reading and handling a request allocates
+ * nothing. Handlers look at a window of the line, which is the whole line
+ * unless a handler narrows it (see BatchHandler).
+ */
+public final class Request {
+    private byte[] bytes = new byte[256];
+    private int length = 0;
+    private int from = 0;
+    private int to = 0;
+
+    /**
+     * Replace the content with bytes from an array.
+     */
+    void set(byte[] source, int offset, int count) {
+        length = 0;
+        append(source, offset, count);
+    }
+
+    /**
+     * Append bytes to the content and widen the window to all of it.
+     */
+    void append(byte[] source, int offset, int count) {
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + count, bytes.length * 2));
+        }
+        System.arraycopy(source, offset, bytes, length, count);
+        length += count;
+        from = 0;
+        to = length;
+    }
+
+    /**
+     * Remove a trailing carriage return.
+     */
+    void stripCarriageReturn() {
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+            to = length;
+        }
+    }
+
+    /**
+     * @return Start of the window, an index into array()
+     */
+    public int from() {
+        return from;
+    }
+
+    /**
+     * @return End of the window (exclusive)
+     */
+    public int to() {
+        return to;
+    }
+
+    /**
+     * Narrow the window to a part of the line.
+     *
+     * @param from Start index in array()
+     * @param to   End index in array(), exclusive
+     */
+    public void window(int from, int to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return The array holding the line. Only the bytes from from() to to()
+     * belong to the current window.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * @return Length of the window
+     */
+    public int length() {
+        return to - from;
+    }
+
+    /**
+     * @param ascii An ASCII string
+     * @return True if the window contains exactly the given string
+     */
+    public boolean matches(String ascii) {
+        if (ascii.length() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (bytes[from + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The window as text. Allocates, meant for logging.
+     */
+    @Override
+    public String toString() {
+        return WireCodec.decode(bytes, from, to - from);
+    }
+}
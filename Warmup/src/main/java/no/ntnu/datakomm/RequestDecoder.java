@@ -0,0 +1,19 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+
+/**
+ * First stage of the request pipeline: reads the next request of one
+ * connection from its stream.
+ */
+public interface RequestDecoder {
+
+    /**
+     * Read the next request.
+     *
+     * @param request Where the request is stored
+     * @return False when the client closed the connection
+     * @throws IOException When reading fails
+     */
+    boolean decode(Request request) throws IOException;
+}
@@ -0,0 +1,59 @@
+package no.ntnu.datakomm;
+
+/**
+ * One stage of the request pipeline (see RequestPipeline). A handler either
+ * answers the request by appending to the response, or passes it on to the
+ * next stage. Handlers are shared by all the connections, so they must keep
+ * no per-request state in fields.
+ */
+public interface RequestHandler {
+
+    /**
+     * What the connection does after a request has been handled.
+     */
+    enum Outcome {
+        /**
+         * Send the response and wait for the next request
+         */
+        RESPOND,
+        /**
+         * Close the connection without responding
+         */
+        CLOSE
+    }
+
+    /**
+     * The rest of the pipeline after a handler.
+     */
+    interface Next {
+        /**
+         * Pass the request to the next stage.
+         *
+         * @param request  The request
+         * @param response Where the next stages append the response
+         * @return The outcome decided by the next stages
+         */
+        Outcome handle(Request request, Response response);
+    }
+
+    /**
+     * Handle a request, or pass it on with next.handle().
+     *
+     * @param request  The request
+     * @param response Where the response is appended
+     * @param next     The rest of the pipeline
+     * @return The outcome
+     */
+    Outcome handle(Request request, Response response, Next next);
+
+    /**
+     * Tell whether handling a request takes long enough to be moved off the
+     * connection thread to a worker.
+     *
+     * @param request The request
+     * @return True if the request is expensive for this handler
+     */
+    default boolean isExpensive(Request request) {
+        return false;
+    }
+}
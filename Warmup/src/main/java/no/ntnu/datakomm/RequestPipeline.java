@@ -0,0 +1,171 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * How the server turns requests into responses: a decoder reads a request
+ * from the connection, a chain of handlers produces the response and an
+ * encoder writes it. Each handler either answers the request or passes it on
+ * to the next one; a request nobody answers gets the error response.
+ *
+ * Requests are handled on the connection thread, except those that a handler
+ * marks as expensive (RequestHandler.isExpensive()): they are handled by a
+ * small worker pool, one thread per core, while the connection thread waits.
+ * This bounds the CPU time spent on huge requests, so the connection threads
+ * serving cheap requests are not starved. The connection thread waits for the
+ * worker, so responses stay in request order and the request and response
+ * buffers of the connection are never used by two threads at once.
+ *
+ * The request, the response and the handler chain are reused, so handling a
+ * cheap request allocates nothing.
+ */
+public class RequestPipeline {
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+    // Writes the response as a line
+    private static final ResponseEncoder LINE_ENCODER = Response::writeLine;
+
+    private final Function<InputStream, RequestDecoder> decoders;
+    private final ResponseEncoder encoder;
+    private final List<RequestHandler> handlers;
+    private final RequestHandler.Next head;
+    private final ExecutorService workers;
+
+    /**
+     * @param decoders Creates the decoder of each connection from its stream
+     * @param encoder  Writes the responses
+     * @param handlers The handler chain, in order
+     * @param workers  Number of worker threads for expensive requests, 0 to
+     *                 handle all requests on the connection threads
+     */
+    public RequestPipeline(Function<InputStream, RequestDecoder> decoders, ResponseEncoder encoder,
+                           List<RequestHandler> handlers, int workers) {
+        this.decoders = decoders;
+        this.encoder = encoder;
+        this.handlers = List.copyOf(handlers);
+        this.workers = (workers > 0) ? Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "request-worker");
+            // Must not keep the JVM alive when the pipeline is not shut down
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        // Link the chain once, from the end: the last handler is followed by the error response
+        RequestHandler.Next next = (request, response) -> {
+            response.appendError();
+            return RequestHandler.Outcome.RESPOND;
+        };
+        for (int i = this.handlers.size() - 1; i >= 0; i--) {
+            RequestHandler handler = this.handlers.get(i);
+            RequestHandler.Next rest = next;
+            next = (request, response) -> handler.handle(request, response, rest);
+        }
+        head = next;
+    }
+
+    /**
+     * The pipeline of the warmup protocol: line requests, "game over" closes the
+     * connection, batches of ';'-separated requests, arithmetic expressions.
+     *
+     * @return A new pipeline
+     */
+    public static RequestPipeline standard() {
+        return standard(null);
+    }
+
+    /**
+     * The pipeline of the warmup protocol, with the arithmetic responses cached.
+     *
+     * @param cache Cache of the arithmetic responses, null for none
+     * @return A new pipeline
+     */
+    public static RequestPipeline standard(ResponseCache cache) {
+        List<RequestHandler> handlers = new ArrayList<>();
+        handlers.add(new GameOverHandler());
+        handlers.add(new BatchHandler(16));
+        if (cache != null) {
+            handlers.add(new CachingHandler(cache));
+        }
+        handlers.add(new ArithmeticHandler(256));
+        return new RequestPipeline(LineReader::new, LINE_ENCODER, handlers,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param in The stream of a new connection
+     * @return The decoder for the connection
+     */
+    public RequestDecoder newDecoder(InputStream in) {
+        return decoders.apply(in);
+    }
+
+    /**
+     * Handle one request, on this thread or on a worker. A handler which
+     * fails is answered with the error response, like an invalid request.
+     *
+     * @param request  The request
+     * @param response Where the response is built, cleared first
+     * @return Whether to respond or close the connection
+     * @throws InterruptedException When interrupted while waiting for a worker
+     */
+    public RequestHandler.Outcome handle(Request request, Response response) throws InterruptedException {
+        response.clear();
+        try {
+            if (workers == null || !isExpensive(request)) {
+                return head.handle(request, response);
+            }
+            Future<RequestHandler.Outcome> outcome = workers.submit(() -> head.handle(request, response));
+            return outcome.get();
+        } catch (ExecutionException e) {
+            return failed(response, e.getCause());
+        } catch (RuntimeException e) {
+            return failed(response, e);
+        }
+    }
+
+    /**
+     * Replace whatever the failed handler wrote with the error response.
+     */
+    private static RequestHandler.Outcome failed(Response response, Throwable cause) {
+        LOG.error("ERROR: Request handler failed: {}", cause);
+        response.clear();
+        response.appendError();
+        return RequestHandler.Outcome.RESPOND;
+    }
+
+    /**
+     * Write a response.
+     *
+     * @param response The response
+     * @param out      The stream of the connection
+     * @throws IOException When writing fails
+     */
+    public void encode(Response response, OutputStream out) throws IOException {
+        encoder.encode(response, out);
+    }
+
+    /**
+     * Stop the worker threads. Call after the connections are closed.
+     */
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    private boolean isExpensive(Request request) {
+        for (int i = 0; i < handlers.size(); i++) {
+            if (handlers.get(i).isExpensive(request)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,167 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The response to one request, built as raw bytes. Like Request, a connection
+ * reuses one instance for all its responses.
+ */
+public final class Response {
+    /**
+     * Sent for a request which could not be handled
+     */
+    public static final String ERROR = "error";
+
+    private byte[] bytes = new byte[64];
+    private int length = 0;
+    private boolean error = false;
+
+    /**
+     * Empty the response, before handling the next request.
+     */
+    void clear() {
+        length = 0;
+        error = false;
+    }
+
+    /**
+     * Append the error response and mark the response as an error.
+     *
+     * @return This response
+     */
+    public Response appendError() {
+        error = true;
+        return append(ERROR);
+    }
+
+    /**
+     * @param ascii ASCII text to append
+     * @return This response
+     */
+    public Response append(String ascii) {
+        ensureRoom(ascii.length());
+        for (int i = 0; i < ascii.length(); i++) {
+            bytes[length++] = (byte) ascii.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * @param b Byte to append
+     * @return This response
+     */
+    public Response append(byte b) {
+        ensureRoom(1);
+        bytes[length++] = b;
+        return this;
+    }
+
+    /**
+     * @param source Bytes to append
+     * @param offset Start in source
+     * @param count  Number of bytes
+     * @return This response
+     */
+    public Response append(byte[] source, int offset, int count) {
+        ensureRoom(count);
+        System.arraycopy(source, offset, bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * Append a number in decimal, without creating a String.
+     *
+     * @param value The number
+     * @return This response
+     */
+    public Response append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+        ensureRoom(20);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            bytes[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // The digits were written backwards
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte digit = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = digit;
+        }
+        return this;
+    }
+
+    /**
+     * @return True if an error was appended
+     */
+    public boolean isError() {
+        return error;
+    }
+
+    /**
+     * @return Number of bytes in the response
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @param from Start index
+     * @return A copy of the bytes from the start index to the end
+     */
+    byte[] copyOfRange(int from) {
+        return Arrays.copyOfRange(bytes, from, length);
+    }
+
+    /**
+     * @param from Start index
+     * @return True if the bytes from the start index to the end are the error
+     * response
+     */
+    boolean isErrorFrom(int from) {
+        if (!error || length - from != ERROR.length()) {
+            return false;
+        }
+        for (int i = 0; i < ERROR.length(); i++) {
+            if (bytes[from + i] != ERROR.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the response followed by a newline.
+     *
+     * @param out Where to write
+     * @throws IOException When writing fails
+     */
+    void writeLine(OutputStream out) throws IOException {
+        append((byte) '\n');
+        out.write(bytes, 0, length);
+        length--;
+    }
+
+    /**
+     * @return The response as text. Allocates, meant for logging.
+     */
+    @Override
+    public String toString() {
+        return WireCodec.decode(bytes, 0, length);
+    }
+
+    private void ensureRoom(int count) {
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + count, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package no.ntnu.datakomm;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of responses, keyed on the request bytes. Spaces are not
+ * part of the key, so "1 + 2" and "1+2" share an entry; a space between two
+ * digits is kept, as "1 2" is not "12". The values are the response bytes as
+ * the handlers produced them, ready to be copied into the next response.
+ *
+ * The cache is split into stripes, each with its own lock and its own LRU
+ * order, so connection threads looking up different requests rarely wait for
+ * each other. A stripe holds at most its share of the entries and evicts its
+ * least recently used entry when full. A lookup allocates nothing; only
+ * storing a new entry does.
+ */
+public class ResponseCache {
+    private final Stripe[] stripes;
+    private final int minKeyLength;
+    private final int maxKeyLength;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A request without its spaces, as a map key. The stored keys own their
+     * bytes; the probe key of a stripe is refilled for every lookup.
+     */
+    private static final class Key {
+        private byte[] bytes;
+        private int length;
+        private int hash;
+
+        Key(byte[] bytes, int length, int hash) {
+            this.bytes = bytes;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash
+                    && Arrays.equals(bytes, 0, length, other.bytes, 0, other.length);
+        }
+    }
+
+    /**
+     * One lock and one LRU map.
+     */
+    private final class Stripe {
+        private final Key probe = new Key(new byte[64], 0, 0);
+        private final Map<Key, byte[]> entries;
+
+        Stripe(int capacity) {
+            // Access order: a hit moves the entry to the end, the eldest is the LRU one
+            entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Fill the probe key with the normalized request window.
+         */
+        Key probe(Request request, int hash) {
+            if (probe.bytes.length < request.length()) {
+                probe.bytes = new byte[Math.max(request.length(), probe.bytes.length * 2)];
+            }
+            byte[] bytes = request.array();
+            int length = 0;
+            byte last = 0;
+            boolean space = false;
+            for (int i = request.from(); i < request.to(); i++) {
+                byte b = bytes[i];
+                if (b == ' ') {
+                    space = true;
+                    continue;
+                }
+                if (space && isDigit(last) && isDigit(b)) {
+                    probe.bytes[length++] = ' ';
+                }
+                probe.bytes[length++] = b;
+                last = b;
+                space = false;
+            }
+            probe.length = length;
+            probe.hash = hash;
+            return probe;
+        }
+    }
+
+    /**
+     * @param maxEntries   Max number of cached responses, in total
+     * @param stripes      Number of independently locked parts, rounded up to
+     *                     a power of two
+     * @param minKeyLength Requests shorter than this are not cached: a lookup
+     *                     costs more than computing a short response
+     * @param maxKeyLength Requests longer than this are not cached
+     */
+    public ResponseCache(int maxEntries, int stripes, int minKeyLength, int maxKeyLength) {
+        int count = 1;
+        while (count < stripes) {
+            count <<= 1;
+        }
+        this.stripes = new Stripe[count];
+        int perStripe = Math.max(1, (maxEntries + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe(perStripe);
+        }
+        this.minKeyLength = minKeyLength;
+        this.maxKeyLength = maxKeyLength;
+    }
+
+    /**
+     * @param request A request
+     * @return True if responses to the request may be cached
+     */
+    public boolean isCacheable(Request request) {
+        return request.length() >= minKeyLength && request.length() <= maxKeyLength;
+    }
+
+    /**
+     * Append the cached response to a request, if there is one.
+     *
+     * @param request  The request, its window is the key
+     * @param response Where the cached response is appended
+     * @return True on a hit, false if the response must be computed
+     */
+    public boolean get(Request request, Response response) {
+        int hash = hash(request);
+        Stripe stripe = stripeOf(hash);
+        byte[] cached;
+        synchronized (stripe) {
+            cached = stripe.entries.get(stripe.probe(request, hash));
+        }
+        if (cached == null) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        if (cached.length == 0) {
+            // The empty array stands for the error response
+            response.appendError();
+        } else {
+            response.append(cached, 0, cached.length);
+        }
+        return true;
+    }
+
+    /**
+     * Store the response to a request.
+     *
+     * @param request  The request, its window is the key
+     * @param response The response holding the bytes to store
+     * @param from     Start of the bytes to store in the response
+     * @param error    True if the stored bytes are the error response
+     */
+    public void put(Request request, Response response, int from, boolean error) {
+        byte[] value = error ? new byte[0] : response.copyOfRange(from);
+        int hash = hash(request);
+        Stripe stripe = stripeOf(hash);
+        synchronized (stripe) {
+            Key probe = stripe.probe(request, hash);
+            stripe.entries.put(new Key(Arrays.copyOf(probe.bytes, probe.length), probe.length, hash), value);
+        }
+    }
+
+    /**
+     * @return Number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of lookups which found nothing
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Hits divided by lookups, 0 before the first lookup
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    /**
+     * @return Number of entries evicted to make room for new ones
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Number of cached responses
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * FNV-1a over the normalized request window, the same bytes as
+     * Stripe.probe() produces.
+     */
+    private static int hash(Request request) {
+        byte[] bytes = request.array();
+        int hash = 0x811c9dc5;
+        byte last = 0;
+        boolean space = false;
+        for (int i = request.from(); i < request.to(); i++) {
+            byte b = bytes[i];
+            if (b == ' ') {
+                space = true;
+                continue;
+            }
+            if (space && isDigit(last) && isDigit(b)) {
+                hash = (hash ^ ' ') * 0x01000193;
+            }
+            hash = (hash ^ b) * 0x01000193;
+            last = b;
+            space = false;
+        }
+        return hash;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private Stripe stripeOf(int hash) {
+        // The low bits pick the bucket inside the stripe's map, use the high ones here
+        return stripes[(hash >>> 16) & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,96 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request pipeline throughput with and without the response cache, without
+ * the network: threads run requests through RequestPipeline.handle() and
+ * encode the responses to a null stream. Two workloads: the requests of
+ * SimpleTcpClient ("a+b" with operands 1 to 10, 100 distinct requests), and a
+ * few hundred distinct longer expressions sent over and over. The caches here
+ * have no minimum request length, to show where a lookup does not pay off.
+ *
+ * Usage: ResponseCacheBenchmark [threads] [seconds per run]
+ */
+public class ResponseCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Random random = new Random(42);
+        byte[][] client = new byte[100][];
+        for (int i = 0; i < client.length; i++) {
+            client[i] = ((i / 10 + 1) + "+" + (i % 10 + 1)).getBytes();
+        }
+        byte[][] expressions = new byte[500][];
+        for (int i = 0; i < expressions.length; i++) {
+            StringBuilder expression = new StringBuilder();
+            for (int operand = 0; operand < 8; operand++) {
+                if (operand > 0) {
+                    expression.append("+-*".charAt(random.nextInt(3)));
+                }
+                expression.append(random.nextInt(10) + 1);
+            }
+            expressions[i] = expression.toString().getBytes();
+        }
+
+        System.out.println(threads + " threads");
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT
+            boolean report = round == 1;
+            run("a+b, uncached", client, null, threads, seconds, report);
+            run("a+b, cached", client, new ResponseCache(4096, 16, 0, 64), threads, seconds, report);
+            run("8 operands, uncached", expressions, null, threads, seconds, report);
+            run("8 operands, cached", expressions, new ResponseCache(4096, 16, 0, 64), threads, seconds, report);
+        }
+    }
+
+    private static void run(String name, byte[][] requests, ResponseCache cache, int threads, int seconds,
+                            boolean report) throws InterruptedException {
+        RequestPipeline pipeline = RequestPipeline.standard(cache);
+        OutputStream sink = OutputStream.nullOutputStream();
+        LongAdder handled = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int first = t * 7;
+            new Thread(() -> {
+                Request request = new Request();
+                Response response = new Response();
+                long count = 0;
+                try {
+                    int i = first;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        byte[] bytes = requests[i];
+                        i = (i + 1 == requests.length) ? 0 : i + 1;
+                        request.set(bytes, 0, bytes.length);
+                        pipeline.handle(request, response);
+                        pipeline.encode(response, sink);
+                        count++;
+                    }
+                } catch (IOException | InterruptedException e) {
+                    System.out.println("ERROR: " + e);
+                } finally {
+                    handled.add(count);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pipeline.shutdown();
+        if (report) {
+            System.out.printf("  %-22s %,12.0f requests/s", name, handled.sum() * 1e9 / elapsed);
+            if (cache != null) {
+                System.out.printf(", hit rate %.4f, %d entries", cache.getHitRate(), cache.size());
+            }
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Last stage of the request pipeline: writes a response to the stream of a
+ * connection.
+ */
+public interface ResponseEncoder {
+
+    /**
+     * Write a response.
+     *
+     * @param response The response
+     * @param out      The stream of the connection
+     * @throws IOException When writing fails
+     */
+    void encode(Response response, OutputStream out) throws IOException;
+}
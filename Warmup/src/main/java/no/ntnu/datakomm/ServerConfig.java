@@ -0,0 +1,216 @@
+package no.ntnu.datakomm;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Listening socket settings of SimpleTcpServer. The defaults are tuned for
+ * connection storms, except SO_REUSEPORT which must be asked for: it lets a
+ * second server bind the same port and silently take part of the
+ * connections. oldDefaults() gives the settings of a plain
+ * new ServerSocket(port), for comparison. Every setting can also be given as a
+ * system property (see fromSystemProperties()).
+ */
+public class ServerConfig {
+    private int port = 1301;
+    private int backlog = 1024;
+    private int acceptors = 1;
+    private boolean reusePort = false;
+    private boolean reuseAddress = true;
+    private int receiveBufferSize = 0;
+    private boolean tcpNoDelay = true;
+    private SSLContext tls = null;
+
+    /**
+     * @return The settings of new ServerSocket(1301): backlog 50, one
+     * acceptor, no socket options
+     */
+    public static ServerConfig oldDefaults() {
+        ServerConfig config = new ServerConfig();
+        config.backlog = 50;
+        config.reusePort = false;
+        config.reuseAddress = false;
+        config.tcpNoDelay = false;
+        return config;
+    }
+
+    /**
+     * Read the settings from the system properties warmup.port,
+     * warmup.backlog, warmup.acceptors, warmup.reuseport, warmup.reuseaddress,
+     * warmup.rcvbuf and warmup.nodelay. Missing properties keep the defaults.
+     * TLS is turned on by warmup.tls.keystore, with the password in
+     * warmup.tls.password.
+     *
+     * @return The settings
+     * @throws IllegalArgumentException When the TLS key store can't be loaded
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.port = Integer.getInteger("warmup.port", config.port);
+        config.backlog = Integer.getInteger("warmup.backlog", config.backlog);
+        config.acceptors = Integer.getInteger("warmup.acceptors", config.acceptors);
+        config.reusePort = Boolean.parseBoolean(System.getProperty("warmup.reuseport", "" + config.reusePort));
+        config.reuseAddress = Boolean.parseBoolean(System.getProperty("warmup.reuseaddress", "" + config.reuseAddress));
+        config.receiveBufferSize = Integer.getInteger("warmup.rcvbuf", config.receiveBufferSize);
+        config.tcpNoDelay = Boolean.parseBoolean(System.getProperty("warmup.nodelay", "" + config.tcpNoDelay));
+        String keyStore = System.getProperty("warmup.tls.keystore");
+        if (keyStore != null) {
+            try {
+                config.setTls(keyStore, System.getProperty("warmup.tls.password", "").toCharArray());
+            } catch (IOException | GeneralSecurityException e) {
+                // Never fall back to plaintext when TLS was asked for
+                throw new IllegalArgumentException("Could not load the TLS key store " + keyStore, e);
+            }
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param port The TCP port to listen on
+     * @return This config
+     */
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @param backlog Max number of connections waiting to be accepted, per
+     *                listening socket. The kernel caps it (net.core.somaxconn
+     *                on Linux).
+     * @return This config
+     */
+    public ServerConfig setBacklog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @param acceptors Number of threads accepting connections. With
+     *                  SO_REUSEPORT each has its own listening socket and
+     *                  queue, otherwise they share one socket.
+     * @return This config
+     */
+    public ServerConfig setAcceptors(int acceptors) {
+        this.acceptors = Math.max(1, acceptors);
+        return this;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * @param reusePort Give each acceptor its own socket with SO_REUSEPORT,
+     *                  where the platform supports it (Linux, BSD). Only
+     *                  used with more than one acceptor.
+     * @return This config
+     */
+    public ServerConfig setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    /**
+     * @param reuseAddress SO_REUSEADDR: allow restarting the server while old
+     *                     connections are in TIME_WAIT
+     * @return This config
+     */
+    public ServerConfig setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+        return this;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @param receiveBufferSize SO_RCVBUF of the accepted sockets, set on the
+     *                          listening socket so that it applies from the
+     *                          handshake on. 0 for the system default.
+     * @return This config
+     */
+    public ServerConfig setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @param tcpNoDelay TCP_NODELAY on the accepted sockets: send small
+     *                   responses right away instead of waiting (Nagle)
+     * @return This config
+     */
+    public ServerConfig setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public SSLContext getTls() {
+        return tls;
+    }
+
+    /**
+     * @param tls Context holding the server certificate and the TLS session
+     *            cache, null for plaintext connections
+     * @return This config
+     */
+    public ServerConfig setTls(SSLContext tls) {
+        this.tls = tls;
+        return this;
+    }
+
+    /**
+     * Turn on TLS with the certificate and private key in a key store.
+     *
+     * @param keyStore Path of the key store (PKCS12 or JKS)
+     * @param password Password of the key store and the key
+     * @return This config
+     * @throws IOException              When the key store can't be read
+     * @throws GeneralSecurityException When the key store is not valid
+     */
+    public ServerConfig setTls(String keyStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(keyStore.endsWith(".jks") ? "JKS" : "PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            store.load(in, password);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return setTls(context);
+    }
+
+    @Override
+    public String toString() {
+        return "port " + port + ", backlog " + backlog + ", " + acceptors + " acceptor(s)"
+                + (reusePort ? ", SO_REUSEPORT" : "") + (reuseAddress ? ", SO_REUSEADDR" : "")
+                + (receiveBufferSize > 0 ? ", SO_RCVBUF " + receiveBufferSize : "")
+                + (tcpNoDelay ? ", TCP_NODELAY" : "") + (tls != null ? ", TLS" : "");
+    }
+}
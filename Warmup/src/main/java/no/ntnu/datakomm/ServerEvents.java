@@ -0,0 +1,61 @@
+package no.ntnu.datakomm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of SimpleTcpServer. When no recording is running
+ * (or the events are disabled in the recording settings), creating and
+ * committing an event costs next to nothing. Record with, for example:
+ * <pre>
+ * java -XX:StartFlightRecording=filename=server.jfr,settings=profile no.ntnu.datakomm.SimpleTcpServer
+ * </pre>
+ */
+final class ServerEvents {
+
+    private ServerEvents() {
+    }
+
+    @Name("no.ntnu.datakomm.Accept")
+    @Label("Client Accepted")
+    @Category({"DataKomm", "Warmup Server"})
+    @Description("A client connection was accepted; the duration is the time spent waiting in accept()")
+    @StackTrace(false)
+    static class Accept extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("no.ntnu.datakomm.Request")
+    @Label("Request Handled")
+    @Category({"DataKomm", "Warmup Server"})
+    @Description("One request was computed and answered")
+    @StackTrace(false)
+    static class Request extends Event {
+        @Label("Request")
+        String request;
+
+        @Label("Response")
+        String response;
+    }
+
+    @Name("no.ntnu.datakomm.Close")
+    @Label("Client Disconnected")
+    @Category({"DataKomm", "Warmup Server"})
+    @Description("A client connection was closed; the duration is the lifetime of the connection")
+    @StackTrace(false)
+    static class Close extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Requests")
+        long requests;
+
+        @Label("Bad Requests")
+        long badRequests;
+    }
+}
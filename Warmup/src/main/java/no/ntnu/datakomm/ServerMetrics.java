@@ -0,0 +1,186 @@
+package no.ntnu.datakomm;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of SimpleTcpServer: connections, accept rate, thread
+ * pool usage, request latency and errors. All updates are lock-free. Readable
+ * over JMX after registerMBean().
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final RateMeter accepts = new RateMeter();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder badRequests = new LongAdder();
+    private final LongAdder ioErrors = new LongAdder();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private volatile ThreadPoolExecutor threadPool;
+    private volatile ResponseCache responseCache;
+
+    /**
+     * @param threadPool The pool whose queue and active threads are reported
+     */
+    void setThreadPool(ThreadPoolExecutor threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * @param responseCache The cache whose hits and misses are reported
+     */
+    void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    void connectionAccepted() {
+        acceptedConnections.increment();
+        accepts.mark();
+    }
+
+    void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    void requestHandled(long nanos, boolean bad) {
+        requests.increment();
+        if (bad) {
+            badRequests.increment();
+        }
+        requestLatency.record(nanos);
+    }
+
+    void ioError() {
+        ioErrors.increment();
+    }
+
+    /**
+     * Register these metrics in the platform MBean server, under the name
+     * no.ntnu.datakomm:type=SimpleTcpServer.
+     *
+     * @return true on success, false otherwise
+     */
+    public boolean registerMBean() {
+        boolean success = false;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("no.ntnu.datakomm:type=SimpleTcpServer"));
+            success = true;
+        } catch (JMException e) {
+            System.out.println("ERROR: Could not register server metrics in JMX: " + e.getMessage());
+        }
+        return success;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    /**
+     * @return Average accepted connections per second over the last 10 seconds
+     */
+    @Override
+    public double getAcceptsPerSecond() {
+        return accepts.getRate(10);
+    }
+
+    /**
+     * @return Number of accepted clients waiting for a free worker thread
+     */
+    @Override
+    public int getQueuedClients() {
+        ThreadPoolExecutor pool = threadPool;
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    /**
+     * @return Number of worker threads currently serving a client
+     */
+    @Override
+    public int getBusyWorkers() {
+        ThreadPoolExecutor pool = threadPool;
+        return pool != null ? pool.getActiveCount() : 0;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getBadRequests() {
+        return badRequests.sum();
+    }
+
+    @Override
+    public long getIoErrors() {
+        return ioErrors.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        ResponseCache cache = responseCache;
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        ResponseCache cache = responseCache;
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        ResponseCache cache = responseCache;
+        return cache != null ? cache.getEvictions() : 0;
+    }
+
+    /**
+     * @return Number of cached responses
+     */
+    @Override
+    public int getCacheSize() {
+        ResponseCache cache = responseCache;
+        return cache != null ? cache.size() : 0;
+    }
+
+    @Override
+    public long getRequestLatencyP50Micros() {
+        return requestLatency.getPercentileMicros(50);
+    }
+
+    @Override
+    public long getRequestLatencyP90Micros() {
+        return requestLatency.getPercentileMicros(90);
+    }
+
+    @Override
+    public long getRequestLatencyP99Micros() {
+        return requestLatency.getPercentileMicros(99);
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + getActiveConnections() + " accepted=" + getAcceptedConnections()
+                + String.format(" accepts/s=%.1f", getAcceptsPerSecond())
+                + " queued=" + getQueuedClients() + " busy=" + getBusyWorkers()
+                + " requests=" + getRequests() + " bad=" + getBadRequests() + " ioErrors=" + getIoErrors()
+                + " cacheHits=" + getCacheHits() + " cacheMisses=" + getCacheMisses()
+                + " p50=" + getRequestLatencyP50Micros() + "us p90=" + getRequestLatencyP90Micros()
+                + "us p99=" + getRequestLatencyP99Micros() + "us";
+    }
+}
@@ -0,0 +1,37 @@
+package no.ntnu.datakomm;
+
+/**
+ * JMX view of ServerMetrics.
+ */
+public interface ServerMetricsMXBean {
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    double getAcceptsPerSecond();
+
+    int getQueuedClients();
+
+    int getBusyWorkers();
+
+    long getRequests();
+
+    long getBadRequests();
+
+    long getIoErrors();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    int getCacheSize();
+
+    long getRequestLatencyP50Micros();
+
+    long getRequestLatencyP90Micros();
+
+    long getRequestLatencyP99Micros();
+}
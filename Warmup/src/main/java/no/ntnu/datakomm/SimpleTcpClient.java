@@ -1,9 +1,15 @@
 package no.ntnu.datakomm;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A Simple TCP client, used as a warm-up exercise for assignment A4.
@@ -14,7 +20,64 @@ public class SimpleTcpClient {
     // TCP port
     private static final int PORT = 1301;
     // Socket to the server
-    private Socket serverSocket;
+    private volatile Socket serverSocket;
+    // Reads the responses from the socket
+    private BufferedReader fromServer;
+    // Writes the requests to the socket, in UTF-8 like the server expects
+    private Writer toServer;
+
+    private final String host;
+    private final int port;
+    // How long the client "thinks" between the two requests, in milliseconds
+    private int minSleepMillis = 2000;
+    private int maxSleepMillis = 7000;
+    // Time from sending each request to receiving its response, in nanoseconds
+    private final List<Long> responseTimes = new ArrayList<>();
+    private long requestSent;
+
+    /**
+     * Create a client for the server on localhost.
+     */
+    public SimpleTcpClient() {
+        this(HOST, PORT);
+    }
+
+    /**
+     * @param host The server host
+     * @param port The server TCP port
+     */
+    public SimpleTcpClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Set how long the client sleeps between its two requests, to simulate a
+     * long conversation. The default is 2-7 seconds.
+     *
+     * @param minMillis Minimum sleep time
+     * @param maxMillis Maximum sleep time (exclusive)
+     */
+    public void setSleepRange(int minMillis, int maxMillis) {
+        this.minSleepMillis = minMillis;
+        this.maxSleepMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * @return Time from sending each request to receiving its response, in
+     * nanoseconds, for the requests answered in the last run()
+     */
+    public List<Long> getResponseTimes() {
+        return responseTimes;
+    }
+
+    /**
+     * Abort the conversation by closing the socket. Can be called from another
+     * thread; a run() blocked waiting for the server then fails.
+     */
+    public void cancel() {
+        closeConnection();
+    }
 
     /**
      * Run the TCP Client.
@@ -35,14 +98,17 @@ public class SimpleTcpClient {
      * Run the TCP Client application. The logic is already implemented, no need to
      * change anything in this method. You can experiment, of course.
      *
+     * @return True when the whole conversation went as expected
      * @throws InterruptedException The method sleeps to simulate long client-server
      *                              conversation. This exception is thrown if the
      *                              execution is interrupted halfway.
      */
-    public void run() throws InterruptedException {
+    public boolean run() throws InterruptedException {
         log("Simple TCP client started");
+        boolean success = false;
+        responseTimes.clear();
 
-        if (connectToServer(HOST, PORT)) {
+        if (connectToServer(host, port)) {
             log("Connection to the server established");
             int a = (int) (1 + Math.random() * 10);
             int b = (int) (1 + Math.random() * 10);
@@ -52,9 +118,9 @@ public class SimpleTcpClient {
                 String response = readResponseFromServer();
                 if (response != null) {
                     log("Server responded with: " + response);
-                    int secondsToSleep = 2 + (int) (Math.random() * 5);
-                    log("Sleeping " + secondsToSleep + " seconds to allow simulate long client-server connection...");
-                    Thread.sleep(secondsToSleep * 1000);
+                    int millisToSleep = minSleepMillis + (int) (Math.random() * (maxSleepMillis - minSleepMillis));
+                    log("Sleeping " + millisToSleep + " ms to allow simulate long client-server connection...");
+                    Thread.sleep(millisToSleep);
                     request = "bla+bla";
                     if (sendRequestToServer(request)) {
                         log("Sent " + request + " to server");
@@ -66,6 +132,7 @@ public class SimpleTcpClient {
                                 // When the connection is closed, try to send one more message. It should fail.
                                 if (!sendRequestToServer("2+2")) {
                                     log("Sending another message after closing the connection failed as expected");
+                                    success = true;
                                 } else {
                                     log("ERROR: sending a message after closing the connection did not fail!");
                                 }
@@ -89,6 +156,7 @@ public class SimpleTcpClient {
         }
 
         log("Simple TCP client finished");
+        return success;
     }
 
     /**
@@ -97,7 +165,17 @@ public class SimpleTcpClient {
      * @return True on success, false otherwise
      */
     private boolean closeConnection() {
-        return false;
+        boolean success = false;
+        Socket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+                success = true;
+            } catch (IOException e) {
+                log("ERROR: An I/O error occured when closing the connection");
+            }
+        }
+        return success;
     }
 
     /**
@@ -112,6 +190,9 @@ public class SimpleTcpClient {
         boolean success = true;
         try {
             this.serverSocket = new Socket(host, port);
+            this.fromServer = new BufferedReader(new InputStreamReader(serverSocket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            this.toServer = new OutputStreamWriter(serverSocket.getOutputStream(), StandardCharsets.UTF_8);
         } catch (UnknownHostException e) {
             log("ERROR: The IP address of the host could not be determined");
             success = false;
@@ -139,7 +220,12 @@ public class SimpleTcpClient {
             success = false;
         } else {
             try {
-                new PrintWriter(this.serverSocket.getOutputStream(), true).println(request);
+                if (serverSocket.isClosed()) {
+                    throw new IOException("Socket closed");
+                }
+                toServer.write(request + "\n");
+                toServer.flush();
+                requestSent = System.nanoTime();
             } catch (IOException e) {
                 log("ERROR: Connection to the server has been lost");
                 success = false;
@@ -155,10 +241,16 @@ public class SimpleTcpClient {
      *         character is stripped away (not included in the returned value).
      */
     private String readResponseFromServer() {
-        // TODO - implement this method
-        // Similarly to other methods, exception can happen while trying to read the
-        // input stream of the TCP Socket
-        return null;
+        String response = null;
+        try {
+            response = fromServer.readLine();
+            if (response != null) {
+                responseTimes.add(System.nanoTime() - requestSent);
+            }
+        } catch (IOException e) {
+            log("ERROR: Connection to the server has been lost");
+        }
+        return response;
     }
 
     /**
@@ -1,55 +1,226 @@
 package no.ntnu.datakomm;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Scanner;
+import java.net.SocketTimeoutException;
+import javax.net.ssl.SSLSocket;
 
 public class SimpleTcpClientHandler implements Runnable {
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
+
+    // Used by the handlers created without a pipeline
+    private static final RequestPipeline DEFAULT_PIPELINE = RequestPipeline.standard();
+    // When draining, how long to wait for the rest of the requests already sent
+    private static final int DRAIN_READ_MILLIS = 250;
+
     private Socket clientSocket;
-    private Scanner inFromClient;
-    private PrintWriter outToClient;
+    private RequestDecoder inFromClient;
+    private OutputStream outToClient;
+    private final ServerMetrics metrics;
+    private final RequestPipeline pipeline;
+    // Reused for every request of this connection
+    private final Request request = new Request();
+    private final Response response = new Response();
+
+    // Statistics of this connection
+    private final ServerEvents.Close closeEvent = new ServerEvents.Close();
+    private long requestCount = 0;
+    private long badRequestCount = 0;
+
+    // Graceful shutdown, see drain(). Guarded by the monitor of this handler.
+    // Reading: blocked (or about to block) waiting for the next request
+    private boolean reading = false;
+    private boolean draining = false;
 
     public SimpleTcpClientHandler(Socket clientSocket) {
+        this(clientSocket, new ServerMetrics());
+    }
+
+    /**
+     * @param clientSocket The socket of the accepted client
+     * @param metrics      Server-wide metrics, updated by this handler
+     */
+    public SimpleTcpClientHandler(Socket clientSocket, ServerMetrics metrics) {
+        this(clientSocket, metrics, DEFAULT_PIPELINE);
+    }
+
+    /**
+     * @param clientSocket The socket of the accepted client
+     * @param metrics      Server-wide metrics, updated by this handler
+     * @param pipeline     Decodes, handles and encodes the requests
+     */
+    public SimpleTcpClientHandler(Socket clientSocket, ServerMetrics metrics, RequestPipeline pipeline) {
         this.clientSocket = clientSocket;
+        this.metrics = metrics;
+        this.pipeline = pipeline;
     }
 
     public void run() {
-        log("Client connected");
-        openStreams();
-        while (streamsAreOpen() && inFromClient.hasNextLine()) {
-            String request = inFromClient.nextLine();
-            if ("game over".equals(request)) {
-                closeStreams();
-            } else {
-                String response = "error";
-                String[] numberStrings = request.split("\\+");
-                if (numberStrings.length == 2) {
-                    try {
-                        response = "" + (Integer.parseInt(numberStrings[0].trim()) + Integer.parseInt(numberStrings[1].trim()));
-                    } catch (NumberFormatException e) {
+        closeEvent.begin();
+        metrics.connectionOpened();
+        LOG.info("Client connected");
+        try {
+            openStreams();
+            while (streamsAreOpen() && readRequest()) {
+                ServerEvents.Request event = new ServerEvents.Request();
+                event.begin();
+                long start = System.nanoTime();
+                if (handleRequest() == RequestHandler.Outcome.CLOSE) {
+                    closeStreams();
+                } else {
+                    sendResponse();
+                    boolean bad = response.isError();
+                    requestCount++;
+                    if (bad) {
+                        badRequestCount++;
+                    }
+                    metrics.requestHandled(System.nanoTime() - start, bad);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.request = request.toString();
+                        event.response = response.toString();
+                        event.commit();
+                    }
+                    if (LOG.isEnabled(AsyncLogger.Level.INFO)) {
+                        // Logged as strings: the request and response are reused
+                        LOG.info("Responded to request < {} > with < {} >", request.toString(), response.toString());
                     }
                 }
-                outToClient.println(response);
-                log("Responded to request < " + request + " > with < " + response + " >");
+            }
+        } finally {
+            // Also when a request fails unexpectedly: never leak the socket or the count
+            closeSocket();
+            metrics.connectionClosed();
+            commitCloseEvent();
+        }
+        if (LOG.isEnabled(AsyncLogger.Level.INFO)) {
+            LOG.info("Client disconnected after {} requests ({} bad)", requestCount, badRequestCount);
+        }
+    }
+
+    /**
+     * Ask the handler to close the connection as soon as it is idle. An idle
+     * connection (waiting for the next request) is closed right away. A
+     * request in flight is completed and answered first, and so are the
+     * requests the client has already sent: also those of a connection still
+     * waiting for a thread. Can be called from any thread.
+     *
+     * @return True if the connection was idle
+     */
+    public boolean drain() {
+        synchronized (this) {
+            draining = true;
+            if (!reading) {
+                // Not started yet, or busy: it stops when it has read what was sent
+                return false;
             }
         }
+        try {
+            if (clientSocket instanceof SSLSocket) {
+                // TLS can't half-close: a request arriving just now gets no response
+                clientSocket.close();
+            } else {
+                // Makes the blocked read return end of stream; responses can still be sent
+                clientSocket.shutdownInput();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        return true;
+    }
 
+    /**
+     * Close the connection now, even in the middle of a request. Used when
+     * draining takes too long.
+     */
+    public void forceClose() {
+        synchronized (this) {
+            draining = true;
+        }
         closeSocket();
-        log("Client disconnected");
+    }
+
+    /**
+     * Record the end of this connection in the flight recorder.
+     */
+    private void commitCloseEvent() {
+        closeEvent.end();
+        if (closeEvent.shouldCommit()) {
+            closeEvent.remoteAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+            closeEvent.requests = requestCount;
+            closeEvent.badRequests = badRequestCount;
+            closeEvent.commit();
+        }
+    }
+
+    /**
+     * Read one request from the client into the request field.
+     *
+     * @return False when the client closed the connection, or when draining
+     * and the client has sent nothing more
+     */
+    private boolean readRequest() {
+        try {
+            synchronized (this) {
+                if (draining) {
+                    // Shutting down: read only what the client has already sent
+                    clientSocket.setSoTimeout(DRAIN_READ_MILLIS);
+                } else {
+                    reading = true;
+                }
+            }
+            return inFromClient.decode(request);
+        } catch (SocketTimeoutException e) {
+            // Drained: nothing more was sent
+            return false;
+        } catch (IOException e) {
+            metrics.ioError();
+            LOG.error("ERROR: Connection to client has been lost");
+            return false;
+        } finally {
+            synchronized (this) {
+                reading = false;
+            }
+        }
+    }
+
+    /**
+     * Run the request through the handler chain, filling the response field.
+     */
+    private RequestHandler.Outcome handleRequest() {
+        try {
+            return pipeline.handle(request, response);
+        } catch (InterruptedException e) {
+            // Interrupted by a forced shutdown
+            Thread.currentThread().interrupt();
+            return RequestHandler.Outcome.CLOSE;
+        }
+    }
+
+    /**
+     * Send the response field to the client.
+     */
+    private void sendResponse() {
+        try {
+            pipeline.encode(response, outToClient);
+        } catch (IOException e) {
+            metrics.ioError();
+            LOG.error("ERROR: Connection to client has been lost");
+            closeStreams();
+        }
     }
 
     private void closeSocket() {
         try {
             clientSocket.close();
         } catch (IOException e) {
-            log("ERROR: An I/O error occured when closing socket");
+            LOG.error("ERROR: An I/O error occured when closing socket");
         }
     }
 
     private void closeStreams() {
-        inFromClient.close();
-        outToClient.close();
+        // Closing the socket closes the streams as well
         inFromClient = null;
         outToClient = null;
     }
@@ -60,20 +231,10 @@ public class SimpleTcpClientHandler implements Runnable {
 
     private void openStreams() {
         try {
-            inFromClient = new Scanner(clientSocket.getInputStream());
-            outToClient = new PrintWriter(clientSocket.getOutputStream(), true);
+            inFromClient = pipeline.newDecoder(clientSocket.getInputStream());
+            outToClient = clientSocket.getOutputStream();
         } catch (IOException e) {
-            log("ERROR: Connection to client has been lost");
+            LOG.error("ERROR: Connection to client has been lost");
         }
     }
-
-    /**
-     * Log a message to the system console.
-     *
-     * @param message The message to be logged (printed).
-     */
-    private void log(String message) {
-        String threadId = "THREAD #" + Thread.currentThread().getId() + ": ";
-        System.out.println(threadId + message);
-    }
-}
\ No newline at end of file
+}
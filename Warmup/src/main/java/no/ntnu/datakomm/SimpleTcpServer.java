@@ -1,45 +1,211 @@
 package no.ntnu.datakomm;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Simple TCP client, used as a warm-up exercise for assignment A4.
  */
 public class SimpleTcpServer {
+    private static final AsyncLogger LOG = AsyncLogger.getDefault();
     // The max number of threads
     private static final int THREAD_COUNT = 32;
-    // The TCP port
-    private static final int PORT = 1301;
-    // The welcoming socket
-    private ServerSocket serverSocket;
+    // Default time allowed for draining the connections on shutdown
+    private static final long DRAIN_MILLIS = Long.getLong("warmup.drain.millis", 10000);
+    // Max number of cached arithmetic responses. Off by default: it only pays
+    // off for long expressions sent repeatedly, not for the short "a+b" of
+    // SimpleTcpClient (see ResponseCacheBenchmark). 4096 is a sensible size.
+    private static final int CACHE_ENTRIES = Integer.getInteger("warmup.cache.entries", 0);
+    // Port, backlog, socket options and number of acceptor threads
+    private final ServerConfig config;
+    // The welcoming sockets: one, or one per acceptor with SO_REUSEPORT
+    private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<>();
     // The thread pool
-    private ExecutorService threadPool;
+    private ThreadPoolExecutor threadPool;
+    // Connection, request and error statistics
+    private final ServerMetrics metrics = new ServerMetrics();
+    // Decodes, handles and encodes the requests of all connections
+    private final RequestPipeline pipeline;
+    // Handlers of the open connections, including those waiting for a thread
+    private final Set<SimpleTcpClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private volatile boolean shuttingDown = false;
 
     /**
-     * Instanziates a new server.
+     * Outcome of a graceful shutdown.
+     */
+    public static class DrainReport {
+        private final int connections;
+        private final int idleClosed;
+        private final int forced;
+        private final long elapsedMillis;
+
+        DrainReport(int connections, int idleClosed, int forced, long elapsedMillis) {
+            this.connections = connections;
+            this.idleClosed = idleClosed;
+            this.forced = forced;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return True if every connection was closed without interrupting a request
+         */
+        public boolean isClean() {
+            return forced == 0;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Drained " + connections + " connections in " + elapsedMillis + " ms: "
+                    + idleClosed + " idle closed, " + (connections - idleClosed - forced)
+                    + " closed after their request, " + forced + " forced";
+        }
+    }
+
+    /**
+     * Instanziates a new server with the settings from the system properties.
      */
     public SimpleTcpServer() {
-        this.threadPool = Executors.newFixedThreadPool(THREAD_COUNT);
+        this(ServerConfig.fromSystemProperties());
+    }
+
+    /**
+     * Instanziates a new server.
+     *
+     * @param config Port and listening socket settings
+     */
+    public SimpleTcpServer(ServerConfig config) {
+        this.config = config;
+        // Same as Executors.newFixedThreadPool(), but typed so the queue can be monitored
+        this.threadPool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        metrics.setThreadPool(threadPool);
+        ResponseCache cache = null;
+        if (CACHE_ENTRIES > 0) {
+            // Shorter than 8 bytes ("10+10"), computing is faster than a lookup
+            // (see ResponseCacheBenchmark); longer than 64 bytes is rarely repeated
+            cache = new ResponseCache(CACHE_ENTRIES, 16, 8, 64);
+            metrics.setResponseCache(cache);
+        }
+        this.pipeline = RequestPipeline.standard(cache);
     }
 
     public static void main(String[] args) {
         SimpleTcpServer server = new SimpleTcpServer();
-        log("Simple TCP server starting");
+        LOG.info("Simple TCP server starting");
+        server.getMetrics().registerMBean();
+        // On Ctrl+C or kill: stop accepting and let the clients finish their requests.
+        // Printed directly, the asynchronous log may already be flushed for the last time.
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> System.out.println(server.shutdown(DRAIN_MILLIS)), "server-shutdown"));
         server.run();
-        log("ERROR: the server should never go out of the run() method! After handling one client");
+        LOG.info("Server stopped");
     }
 
     /**
-     * Runs the server.
+     * Runs the server. Returns when the server is shut down.
      */
     public void run() {
         openServer();
-        while (serverIsOpen())
-            acceptClient();
+        if (serverSockets.isEmpty()) {
+            return;
+        }
+        // This thread is the first acceptor, start the others
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 1; i < config.getAcceptors(); i++) {
+            ServerSocket socket = serverSockets.get(i % serverSockets.size());
+            Thread acceptor = new Thread(() -> acceptLoop(socket), "acceptor-" + i);
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        acceptLoop(serverSockets.get(0));
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeServer();
+    }
+
+    /**
+     * Accept clients on one welcoming socket until it is closed.
+     */
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (serverIsOpen(serverSocket))
+            acceptClient(serverSocket);
+    }
+
+    /**
+     * @return The port the server listens on, or -1 if it is not open (yet)
+     */
+    public int getPort() {
+        return serverSockets.isEmpty() ? -1 : serverSockets.get(0).getLocalPort();
+    }
+
+    /**
+     * Shut the server down gracefully: stop accepting new clients, close the
+     * idle connections, let the requests in flight complete and then close
+     * their connections. Connections still open when the deadline passes are
+     * closed by force. Returns when all the handler threads have stopped.
+     *
+     * @param timeoutMillis Max time to wait for the requests in flight
+     * @return What happened to the connections, and how long it took
+     */
+    public DrainReport shutdown(long timeoutMillis) {
+        long start = System.nanoTime();
+        shuttingDown = true;
         closeServer();
+        threadPool.shutdown();
+        int connections = 0;
+        int idle = 0;
+        for (SimpleTcpClientHandler handler : handlers) {
+            connections++;
+            if (handler.drain()) {
+                idle++;
+            }
+        }
+        int forced = 0;
+        try {
+            if (!threadPool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                for (SimpleTcpClientHandler handler : handlers) {
+                    forced++;
+                    handler.forceClose();
+                }
+                threadPool.shutdownNow();
+                threadPool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pipeline.shutdown();
+        return new DrainReport(connections, idle, forced,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Returns the metrics of the server.
+     *
+     * @return the server metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -47,19 +213,23 @@ public class SimpleTcpServer {
      * 
      * @return wether the server is open
      */
-    private boolean serverIsOpen() {
+    private boolean serverIsOpen(ServerSocket serverSocket) {
         return !serverSocket.isClosed();
     }
 
     /**
-     * Closes the server socket.
+     * Closes the server sockets.
      */
     private void closeServer() {
-        try {
-            log("Closing server");
-            serverSocket.close();
-        } catch (IOException e) {
-            log("ERROR: An I/O error occured when closing server");
+        for (ServerSocket serverSocket : serverSockets) {
+            if (!serverSocket.isClosed()) {
+                try {
+                    LOG.info("Closing server");
+                    serverSocket.close();
+                } catch (IOException e) {
+                    LOG.error("ERROR: An I/O error occured when closing server");
+                }
+            }
         }
     }
 
@@ -67,33 +237,93 @@ public class SimpleTcpServer {
      * Accepts a client and handles the client in a seperate thread. Method blocks
      * and waits until a client connects.
      */
-    private void acceptClient() {
+    private void acceptClient(ServerSocket serverSocket) {
         try {
-            log("Waiting for new client to connect");
-            threadPool.execute(new SimpleTcpClientHandler(serverSocket.accept()));
+            LOG.debug("Waiting for new client to connect");
+            ServerEvents.Accept event = new ServerEvents.Accept();
+            event.begin();
+            Socket clientSocket = serverSocket.accept();
+            event.end();
+            metrics.connectionAccepted();
+            if (config.isTcpNoDelay()) {
+                clientSocket.setTcpNoDelay(true);
+            }
+            if (event.shouldCommit()) {
+                event.remoteAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+                event.commit();
+            }
+            SimpleTcpClientHandler handler = new SimpleTcpClientHandler(clientSocket, metrics, pipeline);
+            handlers.add(handler);
+            try {
+                threadPool.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        handlers.remove(handler);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Accepted just as the server shut down
+                handlers.remove(handler);
+                handler.forceClose();
+            }
+            if (shuttingDown) {
+                // Accepted while shutdown() was draining, it may have missed it
+                handler.drain();
+            }
         } catch (IOException e) {
-            log("ERROR: An I/O error occured while waiting for client");
+            if (!shuttingDown) {
+                metrics.ioError();
+                LOG.error("ERROR: An I/O error occured while waiting for client");
+            }
         }
     }
 
     /**
-     * Opens the server socket to a port.
+     * Opens the server socket(s) to a port. With several acceptors and
+     * SO_REUSEPORT turned on in the config, every acceptor gets its own
+     * socket, bound to the same port, and the kernel spreads the incoming
+     * connections over their accept queues. Otherwise the acceptors share one
+     * socket, and the bind fails if another server has the port.
      */
     private void openServer() {
         try {
-            serverSocket = new ServerSocket(PORT);
-            log("Server opened on port: " + PORT);
+            int port = config.getPort();
+            ServerSocket first = createServerSocket();
+            boolean reusePort = config.isReusePort() && config.getAcceptors() > 1
+                    && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            int sockets = reusePort ? config.getAcceptors() : 1;
+            for (int i = 0; i < sockets; i++) {
+                ServerSocket serverSocket = (i == 0) ? first : createServerSocket();
+                serverSocket.setReuseAddress(config.isReuseAddress());
+                if (reusePort) {
+                    serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                if (config.getReceiveBufferSize() > 0) {
+                    serverSocket.setReceiveBufferSize(config.getReceiveBufferSize());
+                }
+                // Added before bind, so that it is closed if the bind fails
+                serverSockets.add(serverSocket);
+                serverSocket.bind(new InetSocketAddress(port), config.getBacklog());
+                // With port 0 the others must join the port the first one got
+                port = serverSocket.getLocalPort();
+            }
+            LOG.info("Server opened on port: {}", port);
+            LOG.info("Listening with {} socket(s): {}", sockets, config);
         } catch (IOException e) {
-            log("ERROR: An I/O error occured when opening server");
+            LOG.error("ERROR: An I/O error occured when opening server");
+            closeServer();
+            serverSockets.clear();
         }
     }
 
     /**
-     * Log a message to the system console.
-     *
-     * @param message The message to be logged (printed).
+     * @return An unbound welcoming socket, plain or TLS. With TLS, the
+     * handshake is done by the handler thread on the first read.
      */
-    private static void log(String message) {
-        System.out.println(message);
+    private ServerSocket createServerSocket() throws IOException {
+        return (config.getTls() != null)
+                ? config.getTls().getServerSocketFactory().createServerSocket()
+                : new ServerSocket();
     }
 }
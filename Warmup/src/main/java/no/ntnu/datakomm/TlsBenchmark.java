@@ -0,0 +1,198 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Arrays;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * SimpleTcpServer with and without TLS: connect latency (connect, one request,
+ * close) in plaintext, with a full TLS handshake and with a resumed TLS
+ * session, and the throughput of one connection sending requests back to
+ * back. The certificate is generated with keytool into a temporary directory.
+ *
+ * Usage: TlsBenchmark [connections] [pipelined requests]
+ */
+public class TlsBenchmark {
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    // Sent by the bulk test: a batch of ten expressions, 119 bytes
+    private static final String BULK_REQUEST = String.join(";", "12345+67890", "2*3*4*5*6*7",
+            "999-1000", "1+1+1+1+1+1", "-5*-5", "100*100", "31415-27182", "7*7*7", "64+64", "8");
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        AsyncLogger.getDefault().setLevel(AsyncLogger.Level.WARN);
+
+        Path dir = Files.createTempDirectory("tls-benchmark");
+        Path keyStore = dir.resolve("server.p12");
+        generateCertificate(keyStore);
+        SSLContext client = trusting(keyStore);
+
+        SimpleTcpServer plain = start(new ServerConfig().setPort(0));
+        SimpleTcpServer tls = start(new ServerConfig().setPort(0).setTls(keyStore.toString(), PASSWORD));
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT
+            boolean report = round == 1;
+            connects("plaintext", plain.getPort(), null, false, connections, report);
+            connects("TLS, full handshake", tls.getPort(), client, false, connections, report);
+            connects("TLS, resumed session", tls.getPort(), client, true, connections, report);
+            bulk("plaintext", plain.getPort(), null, requests, report);
+            bulk("TLS", tls.getPort(), client, requests, report);
+        }
+        plain.shutdown(1000);
+        tls.shutdown(1000);
+        Files.delete(keyStore);
+        Files.delete(dir);
+    }
+
+    /**
+     * Open connections one after the other, send one request on each.
+     */
+    private static void connects(String name, int port, SSLContext context, boolean resume, int count,
+                                 boolean report) throws IOException {
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            try (Socket socket = open(port, context)) {
+                exchange(socket, "1+2");
+                if (context != null && !resume) {
+                    // Next time, a full handshake
+                    ((SSLSocket) socket).getSession().invalidate();
+                }
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        if (report) {
+            Arrays.sort(latencies);
+            System.out.printf("%-22s connect + request + close: p50 %.3f ms, p99 %.3f ms%n", name,
+                    latencies[count / 2] / 1e6, latencies[(int) (count * 0.99)] / 1e6);
+        }
+    }
+
+    /**
+     * Send requests on one connection without waiting for the responses, and
+     * read the responses on another thread.
+     */
+    private static void bulk(String name, int port, SSLContext context, int count, boolean report)
+            throws Exception {
+        try (Socket socket = open(port, context)) {
+            // Completes the handshake before the clock starts
+            exchange(socket, "1+2");
+            long[] responseBytes = new long[1];
+            Thread reader = new Thread(() -> {
+                try {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    for (int i = 0; i < count; i++) {
+                        responseBytes[0] += in.readLine().length() + 1;
+                    }
+                } catch (IOException e) {
+                    System.out.println("ERROR: " + e);
+                }
+            });
+            long start = System.nanoTime();
+            reader.start();
+            byte[] line = (BULK_REQUEST + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] chunk = new byte[line.length * 64];
+            for (int i = 0; i < 64; i++) {
+                System.arraycopy(line, 0, chunk, i * line.length, line.length);
+            }
+            OutputStream out = socket.getOutputStream();
+            for (int sent = 0; sent < count; sent += 64) {
+                int lines = Math.min(64, count - sent);
+                out.write(chunk, 0, lines * line.length);
+            }
+            out.flush();
+            reader.join();
+            long elapsed = System.nanoTime() - start;
+            if (report) {
+                double seconds = elapsed / 1e9;
+                System.out.printf("%-22s bulk: %,.0f requests/s, %.1f MB/s sent, %.1f MB/s received%n", name,
+                        count / seconds, (double) count * line.length / seconds / 1e6,
+                        responseBytes[0] / seconds / 1e6);
+            }
+        }
+    }
+
+    private static Socket open(int port, SSLContext context) throws IOException {
+        if (context == null) {
+            Socket socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+        socket.setTcpNoDelay(true);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+        socket.startHandshake();
+        return socket;
+    }
+
+    private static void exchange(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write((request + "\n").getBytes(StandardCharsets.UTF_8));
+        InputStream in = socket.getInputStream();
+        int b;
+        while ((b = in.read()) != '\n' && b >= 0) {
+            // Skip the response
+        }
+    }
+
+    private static SimpleTcpServer start(ServerConfig config) throws InterruptedException {
+        SimpleTcpServer server = new SimpleTcpServer(config);
+        new Thread(server::run, "server").start();
+        while (server.getPort() < 0) {
+            Thread.sleep(10);
+        }
+        return server;
+    }
+
+    /**
+     * Create a self-signed certificate for localhost with keytool.
+     */
+    private static void generateCertificate(Path keyStore) throws IOException, InterruptedException {
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(new File(keyStore + ".log")))
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed, see " + keyStore + ".log");
+        }
+        Files.delete(Paths.get(keyStore + ".log"));
+    }
+
+    /**
+     * @return A client context trusting the certificate in the key store
+     */
+    private static SSLContext trusting(Path keyStore) throws Exception {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore.toFile())) {
+            store.load(in, PASSWORD);
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+}
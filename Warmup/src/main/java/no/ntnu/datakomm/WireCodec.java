@@ -0,0 +1,63 @@
+package no.ntnu.datakomm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes received protocol lines into text. The wire format is always UTF-8,
+ * independent of the default charset of the host. Protocol verbs and most
+ * traffic are plain ASCII, so lines consisting of ASCII only are converted
+ * directly, without going through a charset decoder. Other lines use a
+ * decoder which is created once per thread and then reused. Responses are
+ * encoded by Response itself (see ResponseEncoder).
+ */
+final class WireCodec {
+
+    /**
+     * The charset used on the wire
+     */
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private static final ThreadLocal<CharsetDecoder> DECODER = ThreadLocal.withInitial(()
+            -> CHARSET.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private WireCodec() {
+    }
+
+    /**
+     * Decode received bytes into text.
+     *
+     * @param bytes  Buffer holding the bytes
+     * @param offset Where the text starts in the buffer
+     * @param length Number of bytes to decode
+     * @return The decoded text
+     */
+    static String decode(byte[] bytes, int offset, int length) {
+        if (isAscii(bytes, offset, length)) {
+            // Every ASCII byte is one char, the ISO-8859-1 decoder is a plain copy
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        CharsetDecoder decoder = DECODER.get().reset();
+        try {
+            return decoder.decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            // Can't happen, malformed input is replaced instead of reported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}